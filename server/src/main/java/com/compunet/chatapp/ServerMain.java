@@ -1,8 +1,21 @@
 package com.compunet.chatapp;
 
+import com.compunet.chatapp.admission.AdmissionController;
+import com.compunet.chatapp.cache.ResponseCache;
+import com.compunet.chatapp.cluster.ShardRouter;
 import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.dispatch.DispatchLanes;
+import com.compunet.chatapp.presence.PresenceTracker;
+import com.compunet.chatapp.presence.TypingIndicators;
+import com.compunet.chatapp.replication.ReplicationManager;
+import com.compunet.chatapp.servants.AdminServiceI;
 import com.compunet.chatapp.servants.ChatServiceI;
+import com.compunet.chatapp.servants.ChannelServiceI;
 import com.compunet.chatapp.servants.GroupServiceI;
+import com.compunet.chatapp.servants.ReplicaServiceI;
+import com.compunet.chatapp.servants.ShardLocatorI;
+import com.compunet.chatapp.servants.TypingDatagramI;
+import com.compunet.chatapp.transfer.HistoryTransfer;
 import com.zeroc.Ice.Communicator;
 import com.zeroc.Ice.ObjectAdapter;
 import com.zeroc.Ice.Util;
@@ -34,12 +47,71 @@ public class ServerMain {
             // Sobrescribir con argumentos de línea de comandos si existen
             initData.properties.parseCommandLineOptions("", args);
             
+            // Archivo adicional indicado con --Ice.Config (p. ej. configuración de un nodo del cluster)
+            String extraConfig = initData.properties.getProperty("Ice.Config");
+            if (!extraConfig.isEmpty()) {
+                initData.properties.load(extraConfig);
+                initData.properties.parseCommandLineOptions("", args);
+                System.out.println("✓ Configuración adicional cargada desde: " + extraConfig);
+            }
+            
             // Inicializar Ice con configuración
             communicator = Util.initialize(initData);
             
             // Crear el ChatCore compartido
             ChatCore chatCore = new ChatCore();
             
+            // Modo particionado: solo si se configuró Cluster.NodeId
+            ShardRouter router = ShardRouter.fromProperties(communicator);
+            if (router != null) {
+                chatCore.setRemoteUserResolver(router::cachedRemoteUser);
+                chatCore.setLocalIdFilter(id -> router.isLocal(ShardRouter.idKey(id)));
+                System.out.println("Modo particionado activo, nodo: " + router.getLocalNodeId());
+            }
+            
+            // Nodo de los IDs de mensaje (solo para que no se repitan entre procesos,
+            // no para ubicar mensajes): por defecto la posición en Cluster.Nodes
+            chatCore.setMessageNodeId(communicator.getProperties().getPropertyAsIntWithDefault("Ids.NodeId",
+                router != null ? router.getLocalNodeIndex() : 0));
+            
+            // Marcas de memoria estimada: alerta (blanda) y rechazo de audios (dura)
+            chatCore.getFootprint().setWatermarks(
+                communicator.getProperties().getPropertyAsIntWithDefault("Footprint.SoftLimitMB", 0) * 1024L * 1024L,
+                communicator.getProperties().getPropertyAsIntWithDefault("Footprint.HardLimitMB", 0) * 1024L * 1024L);
+            
+            // Agrupación de candidatos ICE por destinatario
+            chatCore.setSignalCoalescing(
+                communicator.getProperties().getPropertyAsIntWithDefault("Signalling.CoalesceWindowMs", 200),
+                communicator.getProperties().getPropertyAsIntWithDefault("Signalling.MaxCandidatesPerEntry", 64));
+            
+            // Roster de llamadas grupales: cambios conservados y mínimo entre instantáneas completas
+            chatCore.setRosterLimits(
+                communicator.getProperties().getPropertyAsIntWithDefault("GroupCall.RosterHistory", 1024),
+                communicator.getProperties().getPropertyAsIntWithDefault("GroupCall.SnapshotIntervalMs", 2000));
+            
+            // Replicación primario/seguidor: solo si se configuró Replication.Role
+            ReplicationManager replication = ReplicationManager.fromProperties(communicator, chatCore);
+            
+            // Presencia derivada de las conexiones (cierre y heartbeats de ACM)
+            PresenceTracker presence = PresenceTracker.fromProperties(communicator);
+            
+            // Indicadores de escritura: estructura fija y con pérdida, fuera de ChatCore
+            TypingIndicators typing = TypingIndicators.fromProperties(communicator);
+            
+            // Caché de respuestas ya codificadas de historiales y listas de grupos,
+            // invalidada por versión con los avisos de ChatCore
+            ResponseCache responseCache = ResponseCache.fromProperties(communicator, chatCore);
+            
+            // Control de admisión de envíos, compartido por ambos servants
+            AdmissionController admission = AdmissionController.fromProperties(communicator);
+            
+            // Carriles de despacho por clase de operación (señalización, mensajería, bulk)
+            // y, con Engine.Mode=partitioned, particiones de un solo escritor para las mutaciones
+            DispatchLanes lanes = DispatchLanes.fromProperties(communicator);
+            if (lanes.isPartitioned()) {
+                System.out.println("Motor particionado activo: mutaciones en particiones de un solo escritor");
+            }
+            
             // NO inicializar datos de prueba - los usuarios se registrarán desde el cliente
             System.out.println("\nServidor iniciado sin datos de prueba.");
             System.out.println("Los usuarios se registrarán desde el cliente.\n");
@@ -47,24 +119,61 @@ public class ServerMain {
             // Crear los ObjectAdapters desde configuración
             ObjectAdapter adapter = communicator.createObjectAdapter("ChatAdapter");
             ObjectAdapter wsAdapter = communicator.createObjectAdapter("ChatWebSocketAdapter");
+            // Administración y replicación: adaptador aparte, en loopback o una interfaz interna
+            ObjectAdapter adminAdapter = communicator.createObjectAdapter("AdminAdapter");
+            // Datagramas (udp): solo notifyTyping
+            ObjectAdapter typingAdapter = communicator.createObjectAdapter("TypingAdapter");
             
             // Crear e instalar los servants
-            ChatServiceI chatServant = new ChatServiceI(chatCore);
-            GroupServiceI groupServant = new GroupServiceI(chatCore);
+            ChatServiceI chatServant = new ChatServiceI(chatCore, router, replication, presence, admission, lanes, typing,
+                responseCache);
+            GroupServiceI groupServant = new GroupServiceI(chatCore, router, replication, admission, lanes, responseCache);
+            ChannelServiceI channelServant = new ChannelServiceI(chatCore, router, replication, admission, lanes);
             
             // Registrar servants en ambos adapters (TCP y WebSocket)
             adapter.add(chatServant, Util.stringToIdentity("chatService"));
             adapter.add(groupServant, Util.stringToIdentity("groupService"));
+            adapter.add(channelServant, Util.stringToIdentity("channelService"));
             wsAdapter.add(chatServant, Util.stringToIdentity("chatService"));
             wsAdapter.add(groupServant, Util.stringToIdentity("groupService"));
+            wsAdapter.add(channelServant, Util.stringToIdentity("channelService"));
+            typingAdapter.add(new TypingDatagramI(chatServant), Util.stringToIdentity("chatService"));
+            
+            if (router != null) {
+                ShardLocatorI locatorServant = new ShardLocatorI(router);
+                adapter.add(locatorServant, Util.stringToIdentity("shardLocator"));
+                wsAdapter.add(locatorServant, Util.stringToIdentity("shardLocator"));
+            }
+            
+            // Métricas y transferencias de historial: solo en el adaptador de administración
+            adminAdapter.add(new AdminServiceI(lanes, chatCore.getFootprint(),
+                HistoryTransfer.fromProperties(chatCore, communicator), responseCache, replication),
+                Util.stringToIdentity("adminService"));
+            
+            // La replicación es interna entre servidores: también en el adaptador de administración
+            if (replication != null) {
+                adminAdapter.add(new ReplicaServiceI(replication), Util.stringToIdentity("replicaService"));
+            }
+            
+            // La replicación instala el journal antes de aceptar invocaciones:
+            // una mutación atendida antes quedaría fuera del log enviado a los seguidores
+            if (replication != null) {
+                replication.start();
+            }
             
-            // Activar ambos adapters
+            // Activar los adapters
+            adminAdapter.activate();
             adapter.activate();
             wsAdapter.activate();
+            typingAdapter.activate();
+            
+            presence.start();
             
             // Obtener endpoints desde configuración
             String tcpEndpoints = initData.properties.getProperty("ChatAdapter.Endpoints");
             String wsEndpoints = initData.properties.getProperty("ChatWebSocketAdapter.Endpoints");
+            String adminEndpoints = initData.properties.getProperty("AdminAdapter.Endpoints");
+            String udpEndpoints = initData.properties.getProperty("TypingAdapter.Endpoints");
             
             System.out.println("===========================================");
             System.out.println("Servidor de Chat iniciado correctamente");
@@ -72,9 +181,19 @@ public class ServerMain {
             System.out.println("Escuchando en:");
             System.out.println("  - TCP: " + (tcpEndpoints != null ? tcpEndpoints : "localhost:10000"));
             System.out.println("  - WebSocket: " + (wsEndpoints != null ? wsEndpoints : "localhost:10001"));
+            System.out.println("  - Administración: " + adminEndpoints);
+            System.out.println("  - UDP (solo notifyTyping): " + udpEndpoints);
             System.out.println("Servicios disponibles:");
             System.out.println("  - ChatService (identity: 'chatService')");
             System.out.println("  - GroupService (identity: 'groupService')");
+            System.out.println("  - AdminService (identity: 'adminService', solo administración)");
+            if (router != null) {
+                System.out.println("  - ShardLocator (identity: 'shardLocator')");
+            }
+            if (replication != null) {
+                System.out.println("  - ReplicaService (identity: 'replicaService', administración, rol: "
+                    + replication.getRole() + ")");
+            }
             System.out.println("===========================================");
             System.out.println("Presiona Ctrl+C para detener el servidor");
             System.out.println("===========================================");
@@ -0,0 +1,239 @@
+package com.compunet.chatapp.admission;
+
+import compunet.RateLimitedException;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Connection;
+import com.zeroc.Ice.Properties;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Control de admisión para los envíos (mensajes, audios y señales WebRTC).
+ * Cada usuario y cada conexión tienen cubetas de tokens separadas para número de
+ * mensajes, número de señales y bytes de payload (de mensajes y de señales); además hay
+ * un presupuesto global de bytes en proceso. Lo que excede el límite se rechaza de
+ * inmediato con RateLimitedException, antes de ocupar memoria o un hilo del servidor
+ * por más tiempo.
+ *
+ * Los IDs de usuario los elige el cliente: las cubetas de usuarios inactivos (llenas,
+ * iguales a unas nuevas) se descartan periódicamente para que el mapa no crezca sin límite.
+ *
+ * Configuración:
+ *   Admission.MessagesPerSecond=20      Admission.MessageBurst=40
+ *   Admission.BytesPerSecond=1048576    Admission.ByteBurst=4194304
+ *   Admission.SignalsPerSecond=50       Admission.SignalBurst=200
+ *   Admission.MaxPayloadBytes=1048576   Admission.MaxInFlightBytes=67108864
+ */
+public class AdmissionController {
+    
+    // Espera sugerida cuando se agota el presupuesto global
+    private static final long OVERLOAD_RETRY_MS = 100;
+    
+    // Cada cuánto se descartan las cubetas de usuarios inactivos
+    private static final long SWEEP_INTERVAL_MS = 10000;
+    
+    // Presupuestos de un usuario o de una conexión
+    private final class Budgets {
+        final TokenBucket messages = new TokenBucket(messageBurst, messagesPerSecond);
+        final TokenBucket bytes = new TokenBucket(byteBurst, bytesPerSecond);
+        final TokenBucket signals = new TokenBucket(signalBurst, signalsPerSecond);
+        
+        boolean isFull() {
+            return messages.isFull() && bytes.isFull() && signals.isFull();
+        }
+    }
+    
+    private final Map<String, Budgets> userBudgets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    
+    // Las conexiones cerradas se liberan solas (Ice solo permite un callback de cierre por conexión)
+    private final Map<Connection, Budgets> connectionBudgets =
+        Collections.synchronizedMap(new WeakHashMap<>());
+    
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    
+    private final long messagesPerSecond;
+    private final long messageBurst;
+    private final long bytesPerSecond;
+    private final long byteBurst;
+    private final long signalsPerSecond;
+    private final long signalBurst;
+    private final long maxPayloadBytes;
+    private final long maxInFlightBytes;
+    
+    private AdmissionController(Properties props) {
+        this.messagesPerSecond = props.getPropertyAsIntWithDefault("Admission.MessagesPerSecond", 20);
+        this.messageBurst = props.getPropertyAsIntWithDefault("Admission.MessageBurst", 40);
+        this.bytesPerSecond = props.getPropertyAsIntWithDefault("Admission.BytesPerSecond", 1024 * 1024);
+        this.signalsPerSecond = props.getPropertyAsIntWithDefault("Admission.SignalsPerSecond", 50);
+        this.signalBurst = props.getPropertyAsIntWithDefault("Admission.SignalBurst", 200);
+        this.maxPayloadBytes = props.getPropertyAsIntWithDefault("Admission.MaxPayloadBytes", 1024 * 1024);
+        this.maxInFlightBytes = props.getPropertyAsIntWithDefault("Admission.MaxInFlightBytes", 64 * 1024 * 1024);
+        
+        // Un payload admisible debe caber en una ráfaga
+        this.byteBurst = Math.max(maxPayloadBytes,
+            props.getPropertyAsIntWithDefault("Admission.ByteBurst", 4 * 1024 * 1024));
+        
+        if (maxPayloadBytes <= 0 || maxInFlightBytes < maxPayloadBytes) {
+            throw new IllegalArgumentException("Admission.MaxInFlightBytes debe ser mayor que Admission.MaxPayloadBytes");
+        }
+    }
+    
+    public static AdmissionController fromProperties(Communicator communicator) {
+        return new AdmissionController(communicator.getProperties());
+    }
+    
+    private Budgets budgetsOf(String userId) {
+        sweepIdleUsers();
+        return userBudgets.computeIfAbsent(userId, k -> new Budgets());
+    }
+    
+    // Una cubeta llena no recuerda nada que una nueva no tenga, así que descartarla no cambia
+    // lo que se admite; a lo sumo un envío concurrente con el barrido consume de la descartada
+    private void sweepIdleUsers() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        userBudgets.values().removeIf(Budgets::isFull);
+    }
+    
+    private Budgets budgetsOf(Connection connection) {
+        if (connection == null) {
+            return null; // invocación local (colocada)
+        }
+        synchronized (connectionBudgets) {
+            return connectionBudgets.computeIfAbsent(connection, k -> new Budgets());
+        }
+    }
+    
+    // ========== Admisión ==========
+    
+    /**
+     * Admite un mensaje cuyo contenido es payload; se cuentan sus bytes en UTF-8,
+     * que es como viaja en la invocación (no sus caracteres UTF-16).
+     */
+    public Permit admitMessage(String userId, Connection connection, String payload) throws RateLimitedException {
+        return admitMessage(userId, connection, utf8Length(payload));
+    }
+    
+    /**
+     * Admite un mensaje (texto o audio) de payloadBytes bytes.
+     * El permiso retornado debe liberarse al terminar de procesarlo.
+     */
+    public Permit admitMessage(String userId, Connection connection, long payloadBytes) throws RateLimitedException {
+        return admit("mensajes", 1, payloadBytes, budgetsOf(userId), budgetsOf(connection),
+            budgets -> budgets.messages);
+    }
+    
+    /**
+     * Admite count señales WebRTC (un envío individual o un lote) con payloadBytes bytes
+     * de SDP y candidatos en total. El permiso retornado debe liberarse al terminar.
+     */
+    public Permit admitSignals(String userId, Connection connection, int count, long payloadBytes)
+            throws RateLimitedException {
+        return admit("señales", count, payloadBytes, budgetsOf(userId), budgetsOf(connection),
+            budgets -> budgets.signals);
+    }
+    
+    // Cobra count unidades de la cubeta de conteo, los bytes y el presupuesto global, o nada
+    private Permit admit(String budget, long count, long payloadBytes, Budgets user, Budgets conn,
+                         Function<Budgets, TokenBucket> counter) throws RateLimitedException {
+        if (payloadBytes > maxPayloadBytes) {
+            throw new RateLimitedException("Payload de " + payloadBytes + " bytes excede el máximo de " +
+                maxPayloadBytes, -1);
+        }
+        
+        TokenBucket userCounter = counter.apply(user);
+        TokenBucket connCounter = conn != null ? counter.apply(conn) : null;
+        
+        acquire(budget, count, userCounter, connCounter);
+        try {
+            acquire("bytes", payloadBytes, user.bytes, conn != null ? conn.bytes : null);
+        } catch (RateLimitedException e) {
+            refund(count, userCounter, connCounter);
+            throw e;
+        }
+        
+        if (inFlightBytes.addAndGet(payloadBytes) > maxInFlightBytes) {
+            inFlightBytes.addAndGet(-payloadBytes);
+            refund(count, userCounter, connCounter);
+            refund(payloadBytes, user.bytes, conn != null ? conn.bytes : null);
+            throw new RateLimitedException("Servidor saturado", OVERLOAD_RETRY_MS);
+        }
+        return new Permit(inFlightBytes, payloadBytes);
+    }
+    
+    // Longitud en bytes de la codificación UTF-8, sin copiar el texto
+    public static long utf8Length(String text) {
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+    
+    // Consume de ambas cubetas o de ninguna
+    private static void acquire(String budget, long amount, TokenBucket userBucket, TokenBucket connectionBucket)
+            throws RateLimitedException {
+        long wait = userBucket.tryAcquire(amount);
+        if (wait > 0) {
+            throw new RateLimitedException("Límite de " + budget + " por usuario excedido", wait);
+        }
+        
+        if (connectionBucket != null) {
+            wait = connectionBucket.tryAcquire(amount);
+            if (wait > 0) {
+                userBucket.refund(amount);
+                throw new RateLimitedException("Límite de " + budget + " por conexión excedido", wait);
+            }
+        }
+    }
+    
+    private static void refund(long amount, TokenBucket userBucket, TokenBucket connectionBucket) {
+        userBucket.refund(amount);
+        if (connectionBucket != null) {
+            connectionBucket.refund(amount);
+        }
+    }
+    
+    /**
+     * Reserva de bytes en proceso dentro del presupuesto global.
+     */
+    public static final class Permit {
+        // Permiso vacío para invocaciones que no pasan por el control de admisión
+        public static final Permit NONE = new Permit(null, 0);
+        
+        private final AtomicLong inFlightBytes;
+        private final long bytes;
+        private boolean released;
+        
+        private Permit(AtomicLong inFlightBytes, long bytes) {
+            this.inFlightBytes = inFlightBytes;
+            this.bytes = bytes;
+        }
+        
+        public void release() {
+            if (!released && inFlightBytes != null) {
+                released = true;
+                inFlightBytes.addAndGet(-bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.compunet.chatapp.admission;
+
+/**
+ * Cubeta de tokens: admite ráfagas de hasta capacity unidades y se recarga
+ * a ratePerSecond unidades por segundo.
+ */
+public class TokenBucket {
+    
+    private final double capacity;
+    private final double ratePerMs;
+    private double tokens; // protegido por this
+    private long lastRefill; // protegido por this
+    
+    public TokenBucket(long capacity, long ratePerSecond) {
+        if (capacity <= 0 || ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Capacidad y tasa deben ser positivas");
+        }
+        
+        this.capacity = capacity;
+        this.ratePerMs = ratePerSecond / 1000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+    
+    /**
+     * Intenta consumir amount tokens.
+     * Retorna 0 si se consumieron, o los milisegundos a esperar hasta que haya suficientes.
+     */
+    public synchronized long tryAcquire(long amount) {
+        refill();
+        if (tokens >= amount) {
+            tokens -= amount;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((amount - tokens) / ratePerMs));
+    }
+    
+    /**
+     * Devuelve tokens consumidos por una solicitud que finalmente no se admitió.
+     */
+    public synchronized void refund(long amount) {
+        tokens = Math.min(capacity, tokens + amount);
+    }
+    
+    /**
+     * Indica si la cubeta está completa (sin consumo pendiente de recarga).
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+    
+    private void refill() {
+        long now = System.currentTimeMillis();
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerMs);
+            lastRefill = now;
+        }
+    }
+}
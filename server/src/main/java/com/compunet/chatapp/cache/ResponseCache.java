@@ -0,0 +1,365 @@
+package com.compunet.chatapp.cache;
+
+import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.core.MessageListener;
+import compunet.*;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Current;
+import com.zeroc.Ice.EncodingVersion;
+import com.zeroc.Ice.OutputStream;
+import com.zeroc.Ice.Properties;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Caché de respuestas ya codificadas de las consultas de lectura más repetidas
+ * (historial de un grupo o chat directo y lista de grupos de un usuario).
+ *
+ * La clave es (operación, alcance, codificación) y cada entrada guarda la versión del
+ * alcance con la que se codificó: la conversación (groupId o clave del chat directo) o el
+ * usuario dueño de la lista. Las versiones avanzan con los avisos de ChatCore (mensaje
+ * agregado o cambiado, marca de lectura, miembros nuevos), siempre después de que el cambio
+ * es visible, y quien consulta lee la versión antes de leer los datos: una entrada nunca se
+ * sirve si su versión quedó atrás, y a lo sumo se recodifica una vez de más. Las versiones
+ * salen de un reloj común (un contador nuevo nunca repite una versión ya entregada), así
+ * que los contadores de alcances sin entrada guardada se pueden descartar.
+ *
+ * Las consultas que llegan mientras otra codifica la misma versión esperan su resultado,
+ * así que un grupo con muchos lectores cuesta una codificación por cambio. El total se
+ * limita en bytes y se desaloja la entrada usada hace más tiempo (LRU).
+ *
+ * Un mensaje en un grupo de más de ResponseCache.LargeGroupMembers miembros no avanza la
+ * versión de cada miembro (costaría O(miembros) por mensaje): avanza una versión común que
+ * se suma a la de la lista de grupos de todo usuario que esté en algún grupo grande.
+ *
+ * Configuración:
+ *   ResponseCache.MaxMB=64               (0 = desactivada)
+ *   ResponseCache.MaxEntryKB=4096        (respuestas más grandes no se guardan)
+ *   ResponseCache.LargeGroupMembers=256
+ */
+public class ResponseCache implements MessageListener {
+    
+    // Operaciones cacheadas (nombres de las operaciones Slice)
+    public static final String OP_GROUP_MESSAGES = "getGroupChatMessages";
+    public static final String OP_DIRECT_MESSAGES = "getDirectChatMessages";
+    public static final String OP_USER_GROUP_CHATS = "getUserGroupChats";
+    
+    // Costo fijo estimado por entrada (clave, nodo del mapa, arreglo)
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    
+    // Contadores de versión tolerados por encima del doble de las entradas antes de descartar
+    private static final int VERSION_SLACK = 1024;
+    
+    private static final class Entry {
+        final long version;
+        final byte[] body;
+        
+        Entry(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+    
+    // Codificación en curso de una versión; las consultas concurrentes la esperan
+    private static final class Pending {
+        final long version;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        
+        Pending(long version) {
+            this.version = version;
+        }
+    }
+    
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final int largeGroupMembers;
+    private final Function<String, Collection<String>> groupMembers;
+    
+    // Versiones por conversación y por usuario; solo existen las de alcances consultados
+    // y se descartan las que no tienen entrada (pruneVersions)
+    private final Map<String, AtomicLong> conversationVersions = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> userVersions = new ConcurrentHashMap<>();
+    private final AtomicLong versionClock = new AtomicLong();
+    
+    // Grupos grandes ya vistos, sus miembros y la versión común de sus mensajes
+    private final Set<String> largeGroups = ConcurrentHashMap.newKeySet();
+    private final Set<String> largeGroupUsers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong largeGroupsVersion = new AtomicLong();
+    
+    // Entradas en orden de acceso y codificaciones en curso (protegidas por this)
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Pending> pending = new HashMap<>();
+    private long bytes;
+    
+    // Métricas (protegidas por this)
+    private long hits;
+    private long misses;
+    private long coalesced;
+    private long encodes;
+    private long evictions;
+    private long oversized;
+    
+    /**
+     * groupMembers: miembros de un grupo, para invalidar sus listas de grupos cuando cambia.
+     */
+    public ResponseCache(long maxBytes, long maxEntryBytes, int largeGroupMembers,
+                         Function<String, Collection<String>> groupMembers) {
+        if (maxBytes <= 0 || maxEntryBytes <= 0 || largeGroupMembers <= 0) {
+            throw new IllegalArgumentException("Configuración de la caché de respuestas inválida");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.largeGroupMembers = largeGroupMembers;
+        this.groupMembers = groupMembers;
+    }
+    
+    /**
+     * Crea la caché según la configuración y la registra como observador de ChatCore,
+     * o retorna null si ResponseCache.MaxMB es 0.
+     */
+    public static ResponseCache fromProperties(Communicator communicator, ChatCore chatCore) {
+        Properties props = communicator.getProperties();
+        int maxMB = props.getPropertyAsIntWithDefault("ResponseCache.MaxMB", 64);
+        if (maxMB <= 0) {
+            return null;
+        }
+        ResponseCache cache = new ResponseCache(maxMB * 1024L * 1024L,
+            props.getPropertyAsIntWithDefault("ResponseCache.MaxEntryKB", 4096) * 1024L,
+            props.getPropertyAsIntWithDefault("ResponseCache.LargeGroupMembers", 256),
+            chatCore::getGroupMembers);
+        chatCore.addMessageListener(cache);
+        return cache;
+    }
+    
+    // ========== Versiones ==========
+    
+    /**
+     * Versión actual de la conversación (groupId o clave del chat directo).
+     * Debe leerse antes de leer los datos que se van a codificar.
+     */
+    public long conversationVersion(String chatKey) {
+        return versionOf(conversationVersions, chatKey);
+    }
+    
+    /**
+     * Versión actual de la lista de grupos del usuario. Para miembros de grupos grandes
+     * incluye la versión común de esos grupos; ambas partes solo crecen.
+     */
+    public long userVersion(String userId) {
+        long version = versionOf(userVersions, userId);
+        return largeGroupUsers.contains(userId) ? version + largeGroupsVersion.get() : version;
+    }
+    
+    // Un contador creado de nuevo (o tras descartarse) toma un valor que nadie leyó antes
+    private long versionOf(Map<String, AtomicLong> versions, String key) {
+        return versions.computeIfAbsent(key, k -> new AtomicLong(versionClock.incrementAndGet())).get();
+    }
+    
+    // Un alcance sin versión no tiene entrada que invalidar: quien lo consulte después crea
+    // la versión y lee los datos ya cambiados
+    private void advance(Map<String, AtomicLong> versions, String key) {
+        AtomicLong version = versions.get(key);
+        if (version != null) {
+            version.accumulateAndGet(versionClock.incrementAndGet(), Math::max);
+        }
+    }
+    
+    private void advanceGroupMembers(String groupId) {
+        Collection<String> members = groupMembers.apply(groupId);
+        if (members.size() > largeGroupMembers) {
+            // Se marca una vez por grupo; los que entren después se marcan en onMembersAdded
+            // (el alta es visible antes del aviso, así que uno de los dos lo ve)
+            if (largeGroups.add(groupId)) {
+                largeGroupUsers.addAll(members);
+            }
+            largeGroupsVersion.incrementAndGet();
+            return;
+        }
+        for (String member : members) {
+            advance(userVersions, member);
+        }
+    }
+    
+    @Override
+    public void onMessageAppended(String chatKey, Message message) {
+        advance(conversationVersions, chatKey);
+        if (ChatCore.isGroupChatId(chatKey)) {
+            // El último mensaje, la secuencia y los no leídos de cada miembro cambiaron
+            advanceGroupMembers(chatKey);
+        }
+    }
+    
+    @Override
+    public void onMessageChanged(String chatKey, Message message, String oldContent) {
+        onMessageAppended(chatKey, message);
+    }
+    
+    @Override
+    public void onReadMarkMoved(String userId, String chatKey) {
+        if (ChatCore.isGroupChatId(chatKey)) {
+            advance(userVersions, userId);
+        }
+    }
+    
+    @Override
+    public void onMembersAdded(String groupId, Collection<String> userIds) {
+        if (largeGroups.contains(groupId)) {
+            largeGroupUsers.addAll(userIds);
+        }
+        for (String userId : userIds) {
+            advance(userVersions, userId);
+        }
+    }
+    
+    // ========== Entradas ==========
+    
+    /**
+     * Cuerpo codificado de la respuesta para esa versión: el guardado si sigue vigente,
+     * el de una codificación en curso de la misma versión, o el que produce encoder
+     * (que corre una sola vez y normalmente en otro hilo).
+     */
+    public CompletionStage<byte[]> load(String op, String scope, EncodingVersion encoding, long version,
+                                        Supplier<CompletionStage<byte[]>> encoder) {
+        String key = op + '\0' + scope + '\0' + encoding.major + '.' + encoding.minor;
+        Pending loading;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.version == version) {
+                hits++;
+                return CompletableFuture.completedFuture(entry.body);
+            }
+            Pending current = pending.get(key);
+            if (current != null && current.version == version) {
+                coalesced++;
+                return current.result;
+            }
+            misses++;
+            loading = new Pending(version);
+            pending.put(key, loading);
+            pruneVersions();
+        }
+        
+        CompletionStage<byte[]> encoded;
+        try {
+            encoded = encoder.get();
+        } catch (RuntimeException e) {
+            // Por ejemplo, carril saturado: se informa a todos los que esperan esta versión
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            encoded = failed;
+        }
+        
+        encoded.whenComplete((body, error) -> {
+            synchronized (this) {
+                if (pending.get(key) == loading) {
+                    pending.remove(key);
+                }
+                if (error == null) {
+                    encodes++;
+                    store(key, version, body);
+                }
+            }
+            if (error != null) {
+                loading.result.completeExceptionally(error);
+            } else {
+                loading.result.complete(body);
+            }
+        });
+        return loading.result;
+    }
+    
+    // Guarda el cuerpo salvo que exista uno de una versión posterior (requiere this)
+    private void store(String key, long version, byte[] body) {
+        if (body.length > maxEntryBytes) {
+            oversized++;
+            return;
+        }
+        Entry previous = entries.get(key);
+        if (previous != null) {
+            if (previous.version > version) {
+                return;
+            }
+            entries.remove(key);
+            bytes -= weight(previous);
+        }
+        Entry entry = new Entry(version, body);
+        entries.put(key, entry);
+        bytes += weight(entry);
+        
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= weight(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+    }
+    
+    // Descarta los contadores de alcances sin entrada ni codificación en curso cuando superan
+    // al doble de estas (requiere this). Un contador descartado solo puede causar un fallo de más
+    private void pruneVersions() {
+        int live = entries.size() + pending.size();
+        if (conversationVersions.size() + userVersions.size() <= 2 * live + VERSION_SLACK) {
+            return;
+        }
+        Set<String> scopes = new HashSet<>();
+        for (String key : entries.keySet()) {
+            scopes.add(scopeOf(key));
+        }
+        for (String key : pending.keySet()) {
+            scopes.add(scopeOf(key));
+        }
+        conversationVersions.keySet().retainAll(scopes);
+        userVersions.keySet().retainAll(scopes);
+    }
+    
+    // Clave: operación, alcance y codificación separados por '\0'
+    private static String scopeOf(String key) {
+        int start = key.indexOf('\0') + 1;
+        return key.substring(start, key.indexOf('\0', start));
+    }
+    
+    private static long weight(Entry entry) {
+        return entry.body.length + ENTRY_OVERHEAD_BYTES;
+    }
+    
+    /**
+     * Codifica fuera de una encapsulación lo que escribe writer, con la codificación de la
+     * invocación: el resultado se copia tal cual en la encapsulación de cada respuesta.
+     */
+    public static byte[] encode(Current current, Consumer<OutputStream> writer) {
+        OutputStream os = new OutputStream(current.adapter.getCommunicator(), current.encoding);
+        writer.accept(os);
+        return os.finished();
+    }
+    
+    // ========== Métricas ==========
+    
+    public synchronized ResponseCacheStats getStats() {
+        ResponseCacheStats stats = new ResponseCacheStats();
+        stats.enabled = true;
+        stats.entries = entries.size();
+        stats.bytes = bytes;
+        stats.maxBytes = maxBytes;
+        stats.hits = hits;
+        stats.misses = misses;
+        stats.coalesced = coalesced;
+        stats.encodes = encodes;
+        stats.evictions = evictions;
+        stats.oversized = oversized;
+        long lookups = hits + coalesced + misses;
+        stats.hitRate = lookups > 0 ? (double) (hits + coalesced) / lookups : 0;
+        return stats;
+    }
+}
@@ -0,0 +1,66 @@
+package com.compunet.chatapp.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Anillo de hashing consistente que asigna claves a shards.
+ * Cada shard aparece varias veces en el anillo (nodos virtuales) para
+ * repartir las claves de forma uniforme.
+ */
+public class ShardRing {
+    
+    // Posición en el anillo -> shardId
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shardCount;
+    
+    // MessageDigest no es thread-safe: una instancia por hilo
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 no disponible", e);
+        }
+    });
+    
+    public ShardRing(int shardCount, int virtualNodes) {
+        if (shardCount <= 0 || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Número de shards y nodos virtuales debe ser positivo");
+        }
+        
+        this.shardCount = shardCount;
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring.put(hash("shard-" + shard + "#" + v), shard);
+            }
+        }
+    }
+    
+    public int getShardCount() {
+        return shardCount;
+    }
+    
+    /**
+     * Retorna el shard dueño de la clave: el primer punto del anillo
+     * en sentido horario a partir del hash de la clave.
+     */
+    public int shardFor(String key) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+    
+    static long hash(String key) {
+        byte[] digest = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+}
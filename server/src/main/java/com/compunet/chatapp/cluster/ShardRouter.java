@@ -0,0 +1,409 @@
+package com.compunet.chatapp.cluster;
+
+import com.compunet.chatapp.core.ChatCore;
+import compunet.*;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Current;
+import com.zeroc.Ice.Properties;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Enrutador del modo particionado.
+ * Decide qué proceso (nodo) es dueño de cada usuario, conversación, grupo o llamada
+ * y mantiene los proxies hacia los demás nodos para reenviar las invocaciones.
+ *
+ * Configuración (application.config o línea de comandos):
+ *   Cluster.NodeId=node0
+ *   Cluster.Nodes=node0,node1
+ *   Cluster.Shards=16
+ *   Cluster.Node.node0.Endpoints=tcp -h localhost -p 10000
+ *   Cluster.Node.node0.Shards=0-7
+ *   Cluster.UserCache.Size=10000       (usuarios de otros nodos en caché)
+ *   Cluster.UserCache.TtlSeconds=300   (antigüedad tras la que se vuelven a consultar)
+ */
+public class ShardRouter {
+    
+    // Marca de contexto para que el nodo dueño no vuelva a reenviar la invocación
+    public static final String FORWARDED_CONTEXT_KEY = "cluster.forwarded";
+    
+    private final String localNodeId;
+    private final ShardRing ring;
+    private final String[] shardOwners; // shardId -> nodeId
+    private final Map<String, String> nodeEndpoints; // nodeId -> endpoints
+    private final List<String> nodeOrder; // nodos en el orden de Cluster.Nodes
+    
+    private final Map<String, ChatServicePrx> chatProxies = new HashMap<>();
+    private final Map<String, GroupServicePrx> groupProxies = new HashMap<>();
+    private final Map<String, ChannelServicePrx> channelProxies = new HashMap<>();
+    
+    // Usuario de otro nodo resuelto y cuándo se consultó
+    private static final class CachedUser {
+        final User user;
+        final long resolvedAt;
+        
+        CachedUser(User user, long resolvedAt) {
+            this.user = user;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+    
+    // Usuarios de otros nodos ya resueltos, en orden de acceso y acotados (protegidos por el mapa)
+    private final LinkedHashMap<String, CachedUser> remoteUsers;
+    private final long userCacheTtlMs;
+    
+    private final Map<String, String> forwardContext =
+        Collections.singletonMap(FORWARDED_CONTEXT_KEY, "1");
+    
+    private ShardRouter(Communicator communicator, String localNodeId, ShardRing ring,
+                        String[] shardOwners, Map<String, String> nodeEndpoints,
+                        int userCacheSize, long userCacheTtlMs) {
+        this.localNodeId = localNodeId;
+        this.ring = ring;
+        this.shardOwners = shardOwners;
+        this.nodeEndpoints = nodeEndpoints;
+        this.nodeOrder = new ArrayList<>(nodeEndpoints.keySet());
+        this.userCacheTtlMs = userCacheTtlMs;
+        this.remoteUsers = new LinkedHashMap<String, CachedUser>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+                return size() > userCacheSize;
+            }
+        };
+        
+        for (Map.Entry<String, String> node : nodeEndpoints.entrySet()) {
+            if (node.getKey().equals(localNodeId)) {
+                continue;
+            }
+            chatProxies.put(node.getKey(), ChatServicePrx.uncheckedCast(
+                communicator.stringToProxy("chatService:" + node.getValue())));
+            groupProxies.put(node.getKey(), GroupServicePrx.uncheckedCast(
+                communicator.stringToProxy("groupService:" + node.getValue())));
+            channelProxies.put(node.getKey(), ChannelServicePrx.uncheckedCast(
+                communicator.stringToProxy("channelService:" + node.getValue())));
+        }
+    }
+    
+    /**
+     * Construye el enrutador desde las propiedades Cluster.*.
+     * Retorna null si no se configuró Cluster.NodeId (modo de un solo proceso).
+     */
+    public static ShardRouter fromProperties(Communicator communicator) {
+        Properties props = communicator.getProperties();
+        String localNodeId = props.getProperty("Cluster.NodeId");
+        if (localNodeId.isEmpty()) {
+            return null;
+        }
+        
+        int shardCount = props.getPropertyAsIntWithDefault("Cluster.Shards", 16);
+        int virtualNodes = props.getPropertyAsIntWithDefault("Cluster.VirtualNodes", 32);
+        String[] nodes = props.getPropertyAsList("Cluster.Nodes");
+        if (nodes.length == 0) {
+            nodes = new String[]{localNodeId};
+        }
+        
+        Map<String, String> nodeEndpoints = new LinkedHashMap<>();
+        String[] shardOwners = new String[shardCount];
+        for (String node : nodes) {
+            String endpoints = props.getProperty("Cluster.Node." + node + ".Endpoints");
+            if (endpoints.isEmpty() && !node.equals(localNodeId)) {
+                throw new IllegalArgumentException("Falta Cluster.Node." + node + ".Endpoints");
+            }
+            nodeEndpoints.put(node, endpoints);
+            
+            for (int shard : parseShards(props.getProperty("Cluster.Node." + node + ".Shards"), shardCount)) {
+                if (shardOwners[shard] != null) {
+                    throw new IllegalArgumentException("Shard " + shard + " asignado a " +
+                        shardOwners[shard] + " y a " + node);
+                }
+                shardOwners[shard] = node;
+            }
+        }
+        
+        if (!nodeEndpoints.containsKey(localNodeId)) {
+            throw new IllegalArgumentException("Cluster.NodeId " + localNodeId + " no está en Cluster.Nodes");
+        }
+        
+        // Los shards sin dueño explícito se reparten en round-robin
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (shardOwners[shard] == null) {
+                shardOwners[shard] = nodes[shard % nodes.length];
+            }
+        }
+        
+        // Cada nodo debe tener al menos un shard: los IDs de grupo/llamada se generan hasta
+        // dar con uno propio, y un nodo sin shards nunca lo encontraría
+        Set<String> nodesWithShards = new HashSet<>(Arrays.asList(shardOwners));
+        for (String node : nodes) {
+            if (!nodesWithShards.contains(node)) {
+                throw new IllegalArgumentException("El nodo " + node + " no tiene shards asignados "
+                    + "(Cluster.Shards=" + shardCount + ")");
+            }
+        }
+        
+        int userCacheSize = props.getPropertyAsIntWithDefault("Cluster.UserCache.Size", 10000);
+        int userCacheTtlSeconds = props.getPropertyAsIntWithDefault("Cluster.UserCache.TtlSeconds", 300);
+        if (userCacheSize <= 0 || userCacheTtlSeconds <= 0) {
+            throw new IllegalArgumentException("Cluster.UserCache.Size y .TtlSeconds deben ser positivos");
+        }
+        
+        return new ShardRouter(communicator, localNodeId, new ShardRing(shardCount, virtualNodes),
+            shardOwners, nodeEndpoints, userCacheSize, userCacheTtlSeconds * 1000L);
+    }
+    
+    // Formato: "0-7" o "0,2,4" o combinaciones "0-3,8"
+    private static List<Integer> parseShards(String spec, int shardCount) {
+        List<Integer> shards = new ArrayList<>();
+        if (spec == null || spec.trim().isEmpty()) {
+            return shards;
+        }
+        
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash).trim());
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+            for (int shard = from; shard <= to; shard++) {
+                if (shard < 0 || shard >= shardCount) {
+                    throw new IllegalArgumentException("Shard fuera de rango: " + shard);
+                }
+                shards.add(shard);
+            }
+        }
+        return shards;
+    }
+    
+    // ========== Claves de particionado ==========
+    
+    public static String userKey(String userId) {
+        return "user:" + userId;
+    }
+    
+    public static String conversationKey(String userA, String userB) {
+        return "conv:" + ChatCore.getConversationKey(userA, userB);
+    }
+    
+    // Grupos y llamadas comparten espacio de IDs generados por el nodo dueño
+    public static String idKey(String id) {
+        return "id:" + id;
+    }
+    
+    // Clave de una conversación de ChatCore (groupId o clave ya normalizada del chat directo)
+    public static String chatKey(String chatKey) {
+        return ChatCore.isGroupChatId(chatKey) ? idKey(chatKey) : "conv:" + chatKey;
+    }
+    
+    // Clave de la conversación a la que pertenece el mensaje
+    public static String messageKey(Message message) {
+        return message.chatType == ChatType.GROUP
+            ? idKey(message.recipientId)
+            : conversationKey(message.senderId, message.recipientId);
+    }
+    
+    // ========== Consultas de ubicación ==========
+    
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+    
+    public Set<String> getNodeIds() {
+        return nodeEndpoints.keySet();
+    }
+    
+    // Posición del nodo en Cluster.Nodes (se usa como nodo de los IDs de mensaje)
+    public int getLocalNodeIndex() {
+        return nodeOrder.indexOf(localNodeId);
+    }
+    
+    public int shardOf(String shardKey) {
+        return ring.shardFor(shardKey);
+    }
+    
+    public String ownerOf(String shardKey) {
+        return shardOwners[ring.shardFor(shardKey)];
+    }
+    
+    public boolean isLocal(String shardKey) {
+        return localNodeId.equals(ownerOf(shardKey));
+    }
+    
+    public ShardInfo locate(String shardKey) {
+        return shardInfo(ring.shardFor(shardKey));
+    }
+    
+    public ShardInfo[] getShardTable() {
+        ShardInfo[] table = new ShardInfo[shardOwners.length];
+        for (int shard = 0; shard < shardOwners.length; shard++) {
+            table[shard] = shardInfo(shard);
+        }
+        return table;
+    }
+    
+    private ShardInfo shardInfo(int shard) {
+        String owner = shardOwners[shard];
+        return new ShardInfo(shard, owner, nodeEndpoints.get(owner));
+    }
+    
+    // ========== Reenvío entre nodos ==========
+    
+    /**
+     * Indica si la invocación ya fue reenviada por otro nodo y debe atenderse localmente.
+     */
+    public boolean isForwarded(Current current) {
+        return current != null && current.ctx != null && current.ctx.containsKey(FORWARDED_CONTEXT_KEY);
+    }
+    
+    public Map<String, String> forwardContext() {
+        return forwardContext;
+    }
+    
+    /**
+     * Proxy de ChatService del dueño de la clave, o null si el dueño es este nodo.
+     */
+    public ChatServicePrx remoteChatService(String shardKey) {
+        return chatProxies.get(ownerOf(shardKey));
+    }
+    
+    /**
+     * Proxy de ChatService de un nodo concreto, o null si es este nodo.
+     */
+    public ChatServicePrx chatServiceOfNode(String nodeId) {
+        return chatProxies.get(nodeId);
+    }
+    
+    /**
+     * Proxy de GroupService del dueño de la clave, o null si el dueño es este nodo.
+     */
+    public GroupServicePrx remoteGroupService(String shardKey) {
+        return groupProxies.get(ownerOf(shardKey));
+    }
+    
+    /**
+     * Proxy de ChannelService del dueño de la clave, o null si el dueño es este nodo.
+     */
+    public ChannelServicePrx remoteChannelService(String shardKey) {
+        return channelProxies.get(ownerOf(shardKey));
+    }
+    
+    /**
+     * Invoca la operación en todos los demás nodos en paralelo y concatena los resultados.
+     * El futuro se completa cuando responden todos, sin bloquear el hilo que lo pide.
+     */
+    public <T> CompletableFuture<List<T>> gatherChat(Function<ChatServicePrx, CompletableFuture<T[]>> call) {
+        return gather(chatProxies.values(), call);
+    }
+    
+    public <T> CompletableFuture<List<T>> gatherGroup(Function<GroupServicePrx, CompletableFuture<T[]>> call) {
+        return gather(groupProxies.values(), call);
+    }
+    
+    public <T> CompletableFuture<List<T>> gatherChannel(Function<ChannelServicePrx, CompletableFuture<T[]>> call) {
+        return gather(channelProxies.values(), call);
+    }
+    
+    private static <P, T> CompletableFuture<List<T>> gather(Collection<P> proxies, Function<P, CompletableFuture<T[]>> call) {
+        List<CompletableFuture<T[]>> pending = new ArrayList<>();
+        for (P proxy : proxies) {
+            pending.add(call.apply(proxy));
+        }
+        
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<T> results = new ArrayList<>();
+            for (CompletableFuture<T[]> future : pending) {
+                T[] partial = future.join(); // ya completado
+                if (partial != null) {
+                    results.addAll(Arrays.asList(partial));
+                }
+            }
+            return results;
+        });
+    }
+    
+    /**
+     * Adapta el futuro de una invocación reenviada (o compuesta con otros nodos) al manejo
+     * de errores de los servants: registra el fallo y lo propaga como RuntimeException.
+     */
+    public static <T> CompletableFuture<T> relay(CompletableFuture<T> call, String errorPrefix) {
+        return call.handle((result, error) -> {
+            if (error != null) {
+                String message = causeOf(error).getMessage();
+                System.err.println(errorPrefix + ": " + message);
+                throw new RuntimeException(message);
+            }
+            return result;
+        });
+    }
+    
+    /**
+     * Igual que relay, pero las lecturas que fallan responden con el valor por defecto.
+     */
+    public static <T> CompletableFuture<T> relay(CompletableFuture<T> call, String errorPrefix, T fallback) {
+        return call.handle((result, error) -> {
+            if (error != null) {
+                System.err.println(errorPrefix + ": " + causeOf(error).getMessage());
+                return fallback;
+            }
+            return result;
+        });
+    }
+    
+    private static Throwable causeOf(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+    
+    // ========== Usuarios de otros nodos ==========
+    
+    /**
+     * Resuelve en paralelo los usuarios de otros nodos que no están en caché o cuya consulta
+     * superó Cluster.UserCache.TtlSeconds. Los servants esperan este futuro antes de entrar al
+     * carril o la partición; un usuario inexistente o un nodo que no responde queda sin
+     * resolver y ChatCore lo informa.
+     */
+    public CompletableFuture<Void> resolveUsers(Collection<String> userIds) {
+        long staleBefore = System.currentTimeMillis() - userCacheTtlMs;
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (String userId : new HashSet<>(userIds)) {
+            ChatServicePrx owner = remoteChatService(userKey(userId));
+            if (owner == null || isFresh(userId, staleBefore)) {
+                continue;
+            }
+            calls.add(owner.findUserByIdAsync(userId, forwardContext).handle((user, error) -> {
+                if (error == null) {
+                    synchronized (remoteUsers) {
+                        if (user != null) {
+                            remoteUsers.put(userId, new CachedUser(user, System.currentTimeMillis()));
+                        } else {
+                            remoteUsers.remove(userId);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+    }
+    
+    public CompletableFuture<Void> resolveUsers(String... userIds) {
+        return resolveUsers(Arrays.asList(userIds));
+    }
+    
+    private boolean isFresh(String userId, long staleBefore) {
+        synchronized (remoteUsers) {
+            CachedUser cached = remoteUsers.get(userId);
+            return cached != null && cached.resolvedAt > staleBefore;
+        }
+    }
+    
+    /**
+     * Usuario de otro nodo ya resuelto, o null (usado por ChatCore: nunca invoca a otro nodo).
+     * Una entrada vencida se sigue usando hasta que resolveUsers la renueve.
+     */
+    public User cachedRemoteUser(String userId) {
+        synchronized (remoteUsers) {
+            CachedUser cached = remoteUsers.get(userId);
+            return cached != null ? cached.user : null;
+        }
+    }
+}
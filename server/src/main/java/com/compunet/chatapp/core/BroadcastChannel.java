@@ -0,0 +1,168 @@
+package com.compunet.chatapp.core;
+
+import com.compunet.chatapp.util.IntLongHashMap;
+import compunet.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.LongConsumer;
+
+/**
+ * Canal de difusión: cada publicación se guarda una sola vez en un registro de solo
+ * agregado, dividido en bloques fijos que nunca se copian. Los suscriptores no tienen
+ * copia de las publicaciones: solo un bit en el mapa de suscriptores (por ordinal de
+ * usuario) y una marca de lectura, así que publicar no depende de cuántos hay.
+ */
+class BroadcastChannel {
+    
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    final String id;
+    final String name;
+    final Set<String> ownerIds = new CopyOnWriteArraySet<>();
+    
+    // Registro de publicaciones (protegido por postLock al escribir; lectura sin lock hasta lastSeq)
+    private final Object postLock = new Object();
+    private volatile ChannelPost[][] chunks = new ChannelPost[4][];
+    private volatile long lastSeq;
+    
+    // Suscriptores: bit por ordinal de usuario y marca de lectura por ordinal (protegidos por this)
+    private long[] subscriberBits = new long[1];
+    private int subscriberCount;
+    private final IntLongHashMap readMarks = new IntLongHashMap();
+    
+    BroadcastChannel(String id, String name, String ownerId) {
+        this.id = id;
+        this.name = name;
+        this.ownerIds.add(ownerId);
+    }
+    
+    // ========== Publicaciones ==========
+    
+    /**
+     * Agrega la publicación con la siguiente secuencia y la retorna.
+     * record recibe la secuencia con postLock tomado (registro en el journal): así las
+     * publicaciones de un canal se replican en el orden de sus secuencias.
+     */
+    long append(ChannelPost post, LongConsumer record) {
+        synchronized (postLock) {
+            long seq = store(lastSeq + 1, post);
+            record.accept(seq);
+            return seq;
+        }
+    }
+    
+    /**
+     * Aplica una publicación replicada con la secuencia asignada por el primario.
+     * Llegan en orden de secuencia, porque el primario las registra con postLock.
+     */
+    void applyAppend(ChannelPost post) {
+        synchronized (postLock) {
+            store(post.seq, post);
+        }
+    }
+    
+    private long store(long seq, ChannelPost post) {
+        int chunk = (int) ((seq - 1) >>> CHUNK_BITS);
+        ChannelPost[][] current = chunks;
+        if (chunk >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, chunk + 1));
+        }
+        if (current[chunk] == null) {
+            current[chunk] = new ChannelPost[CHUNK_SIZE];
+        }
+        post.seq = seq;
+        current[chunk][(int) ((seq - 1) & (CHUNK_SIZE - 1))] = post;
+        
+        // Se publica el arreglo de bloques antes que la secuencia: quien lee lastSeq ve la publicación
+        chunks = current;
+        lastSeq = Math.max(lastSeq, seq);
+        return seq;
+    }
+    
+    long lastSeq() {
+        return lastSeq;
+    }
+    
+    /**
+     * Hasta limit publicaciones con secuencia mayor que afterSeq, en orden.
+     */
+    List<ChannelPost> postsAfter(long afterSeq, int limit) {
+        long last = lastSeq;
+        ChannelPost[][] current = chunks;
+        long from = Math.max(afterSeq, 0) + 1;
+        long to = Math.min(last, from + limit - 1);
+        
+        List<ChannelPost> posts = new ArrayList<>((int) Math.max(to - from + 1, 0));
+        for (long seq = from; seq <= to; seq++) {
+            // Huecos posibles solo en réplicas que empezaron a mitad del registro
+            ChannelPost[] block = current[(int) ((seq - 1) >>> CHUNK_BITS)];
+            ChannelPost post = block != null ? block[(int) ((seq - 1) & (CHUNK_SIZE - 1))] : null;
+            if (post != null) {
+                posts.add(post);
+            }
+        }
+        return posts;
+    }
+    
+    // ========== Suscriptores ==========
+    
+    /**
+     * Retorna true si el usuario no estaba suscrito.
+     */
+    synchronized boolean subscribe(int userOrdinal) {
+        int word = userOrdinal >>> 6;
+        if (word >= subscriberBits.length) {
+            subscriberBits = Arrays.copyOf(subscriberBits, Math.max(subscriberBits.length * 2, word + 1));
+        }
+        long bit = 1L << userOrdinal;
+        if ((subscriberBits[word] & bit) != 0) {
+            return false;
+        }
+        subscriberBits[word] |= bit;
+        subscriberCount++;
+        // Las publicaciones anteriores a la suscripción no cuentan como no leídas
+        readMarks.put(userOrdinal, lastSeq);
+        return true;
+    }
+    
+    /**
+     * Retorna true si el usuario estaba suscrito.
+     */
+    synchronized boolean unsubscribe(int userOrdinal) {
+        if (!isSubscriber(userOrdinal)) {
+            return false;
+        }
+        subscriberBits[userOrdinal >>> 6] &= ~(1L << userOrdinal);
+        subscriberCount--;
+        readMarks.remove(userOrdinal);
+        return true;
+    }
+    
+    synchronized boolean isSubscriber(int userOrdinal) {
+        int word = userOrdinal >>> 6;
+        return word < subscriberBits.length && (subscriberBits[word] & (1L << userOrdinal)) != 0;
+    }
+    
+    synchronized int subscriberCount() {
+        return subscriberCount;
+    }
+    
+    /**
+     * Avanza la marca de lectura del suscriptor (nunca retrocede ni pasa de la última publicación).
+     * Retorna la marca resultante.
+     */
+    synchronized long markRead(int userOrdinal, long upToSeq) {
+        if (!isSubscriber(userOrdinal)) {
+            return 0;
+        }
+        return readMarks.putMax(userOrdinal, Math.min(upToSeq, lastSeq));
+    }
+    
+    synchronized long readSeq(int userOrdinal) {
+        return readMarks.get(userOrdinal, 0);
+    }
+}
@@ -1,10 +1,18 @@
 package com.compunet.chatapp.core;
 
+import com.compunet.chatapp.footprint.FootprintTracker;
+import com.compunet.chatapp.search.MessageSearchIndex;
+import com.compunet.chatapp.util.MessageIdGenerator;
 import compunet.*;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -29,41 +37,515 @@ public class ChatCore {
     // Llamadas de voz: callId -> VoiceCall
     private final Map<String, VoiceCall> voiceCalls = new ConcurrentHashMap<>();
     
-    // Señales WebRTC pendientes: userId -> Queue<WebRTCSignal>
-    private final Map<String, Queue<WebRTCSignal>> webrtcSignals = new ConcurrentHashMap<>();
+    // Participantes de llamadas grupales: callId -> roster con versión e historial de cambios
+    private final Map<String, GroupCallRoster> groupCallRosters = new ConcurrentHashMap<>();
     
-    // Generadores de IDs
-    private final AtomicLong messageIdCounter = new AtomicLong(1);
+    // Cambios del roster que se conservan y mínimo entre instantáneas completas
+    private volatile int rosterHistorySize = 1024;
+    private volatile long rosterSnapshotIntervalMs = 2000;
+    
+    // Señales WebRTC pendientes: userId -> buzón con las señales (candidatos ICE agrupados)
+    private final Map<String, SignalMailbox> webrtcSignals = new ConcurrentHashMap<>();
+    
+    // Agrupación de candidatos ICE: ventana y máximo de candidatos por entrada
+    private volatile long signalCoalesceWindowMs = 200;
+    private volatile int maxSignalsPerEntry = 64;
+    
+    // Canales de difusión: channelId -> canal (registro compartido, suscriptores y marcas de lectura)
+    private final Map<String, BroadcastChannel> channels = new ConcurrentHashMap<>();
+    
+    // Ordinales de usuario para los mapas de bits de suscriptores de los canales
+    private final Map<String, Integer> channelUserOrdinals = new ConcurrentHashMap<>();
+    private final AtomicInteger nextChannelUserOrdinal = new AtomicInteger();
+    
+    // Canales de cada suscriptor, para consultar sus novedades en una sola llamada
+    private final Map<String, Set<String>> userChannels = new ConcurrentHashMap<>();
+    
+    // Índice global ID de mensaje -> conversación, posición y mensaje
+    private final MessageIdIndex messageIndex = new MessageIdIndex();
+    
+    // Generadores de IDs (mensajes: 64 bits ordenados por tiempo, con el nodo incluido)
+    private final MessageIdGenerator messageIds = new MessageIdGenerator();
     private final AtomicLong groupIdCounter = new AtomicLong(1);
     private final AtomicLong callIdCounter = new AtomicLong(1);
+    private final AtomicLong channelIdCounter = new AtomicLong(1);
+    
+    // Observadores de mensajes nuevos (índice de búsqueda, etc.)
+    private final List<MessageListener> messageListeners = new CopyOnWriteArrayList<>();
+    
+    // Índice de búsqueda de texto completo, actualizado con cada mensaje de texto
+    private final MessageSearchIndex searchIndex = new MessageSearchIndex();
+    
+    // Contabilidad de memoria por conversación, grupo, usuario y buzón de señales
+    private final FootprintTracker footprint = new FootprintTracker();
+    
+    // Secuencias por conversación y marcas de lectura por usuario (no leídos)
+    private final UnreadTracker unreadTracker = new UnreadTracker();
+    
+    // Registro de mutaciones para replicación (null si no hay réplicas)
+    private volatile MutationJournal journal;
+    
+    // Operaciones registradas en el journal
+    public static final String OP_REGISTER_USER = "registerUser";
+    public static final String OP_MESSAGE = "message";
+    public static final String OP_CREATE_GROUP = "createGroup";
+    public static final String OP_ADD_GROUP_MEMBER = "addGroupMember";
+    public static final String OP_CALL = "call";
+    public static final String OP_SIGNAL = "signal";
+    public static final String OP_ACK_SIGNAL = "ackSignal";
+    public static final String OP_ACK_SIGNALS = "ackSignals";
+    public static final String OP_MARK_READ = "markRead";
+    public static final String OP_ROSTER = "roster";
+    public static final String OP_EDIT_MESSAGE = "editMessage";
+    public static final String OP_DELETE_MESSAGE = "deleteMessage";
+    public static final String OP_CREATE_CHANNEL = "createChannel";
+    public static final String OP_CHANNEL_OWNER = "channelOwner";
+    public static final String OP_CHANNEL_SUBSCRIPTION = "channelSubscription";
+    public static final String OP_CHANNEL_POST = "channelPost";
+    public static final String OP_CHANNEL_READ = "channelRead";
+    
+    // Prefijo de los IDs de grupo (permite distinguir un chat de grupo de uno directo)
+    public static final String GROUP_ID_PREFIX = "group_";
+    public static final String CHANNEL_ID_PREFIX = "channel_";
+    
+    // Publicaciones por página de canal
+    public static final int DEFAULT_CHANNEL_PAGE = 50;
+    public static final int MAX_CHANNEL_PAGE = 200;
+    
+    // Modo particionado: usuarios de otro proceso ya resueltos por los servants (solo caché)
+    private volatile Function<String, User> remoteUserResolver;
+    
+    // Modo particionado: solo se generan IDs de grupo/llamada cuyo dueño es este proceso
+    private volatile Predicate<String> localIdFilter = id -> true;
     
     // Clase interna para representar un grupo
     private static class Group {
         String id;
         String name;
         String ownerId;
-        Set<String> memberIds;
+        // Concurrente: en modo particionado la partición del grupo agrega miembros mientras
+        // otras (conversaciones, presencia) leen la membresía
+        final Set<String> memberIds = ConcurrentHashMap.newKeySet();
         
         Group(String id, String name, String ownerId, Set<String> memberIds) {
             this.id = id;
             this.name = name;
             this.ownerId = ownerId;
-            this.memberIds = new HashSet<>(memberIds);
+            this.memberIds.addAll(memberIds);
         }
     }
     
-    // ========== Métodos para usuarios ==========
+    public ChatCore() {
+        messageListeners.add(searchIndex);
+        messageListeners.add(footprint);
+    }
     
-    public synchronized boolean registerUser(String userId, String userName) {
-        if (users.containsKey(userId)) {
-            System.out.println("Usuario ya existe: " + userId);
-            return false;
+    public FootprintTracker getFootprint() {
+        return footprint;
+    }
+    
+    public void addMessageListener(MessageListener listener) {
+        messageListeners.add(listener);
+    }
+    
+    // ========== Configuración del modo particionado ==========
+    
+    public void setRemoteUserResolver(Function<String, User> remoteUserResolver) {
+        this.remoteUserResolver = remoteUserResolver;
+    }
+    
+    public void setSignalCoalescing(long windowMs, int maxPerEntry) {
+        if (windowMs < 0 || maxPerEntry <= 0) {
+            throw new IllegalArgumentException("Configuración de agrupación de señales inválida");
+        }
+        this.signalCoalesceWindowMs = windowMs;
+        this.maxSignalsPerEntry = maxPerEntry;
+    }
+    
+    public void setRosterLimits(int historySize, long snapshotIntervalMs) {
+        if (historySize <= 0 || snapshotIntervalMs < 0) {
+            throw new IllegalArgumentException("Configuración del roster de llamadas inválida");
+        }
+        this.rosterHistorySize = historySize;
+        this.rosterSnapshotIntervalMs = snapshotIntervalMs;
+    }
+    
+    // Nodo incluido en los IDs de mensaje (distinto en cada proceso que genera IDs)
+    public void setMessageNodeId(int nodeId) {
+        messageIds.setNodeId(nodeId);
+    }
+    
+    public void setLocalIdFilter(Predicate<String> localIdFilter) {
+        this.localIdFilter = localIdFilter;
+    }
+    
+    // Busca el usuario localmente y, si no está, entre los de otros procesos ya resueltos
+    private User lookupUser(String userId) {
+        User user = users.get(userId);
+        if (user == null && remoteUserResolver != null) {
+            user = remoteUserResolver.apply(userId);
+        }
+        return user;
+    }
+    
+    // Genera el siguiente ID que pertenezca a este proceso
+    private String nextLocalId(String prefix, AtomicLong counter) {
+        String id;
+        do {
+            id = prefix + counter.getAndIncrement();
+        } while (!localIdFilter.test(id));
+        return id;
+    }
+    
+    // ========== Replicación ==========
+    
+    public void setJournal(MutationJournal journal) {
+        this.journal = journal;
+    }
+    
+    private void journal(String op, String... args) {
+        MutationJournal j = journal;
+        if (j != null) {
+            j.record(op, args);
+        }
+    }
+    
+    // Agrega el mensaje a su conversación y avisa a los observadores.
+    // La secuencia se asigna con el lock de la cola para que coincida con la posición del mensaje,
+    // y con el mismo lock se registra en el journal (record) para que los seguidores apliquen
+    // los mensajes de la conversación en el mismo orden que el primario.
+    private void storeMessage(Map<String, Queue<Message>> store, String chatKey, Message message, boolean record) {
+        Queue<Message> queue = store.computeIfAbsent(chatKey, k -> new ConcurrentLinkedQueue<>());
+        synchronized (queue) {
+            queue.add(message);
+            long seq = unreadTracker.onAppend(chatKey, message);
+            long id = MessageIdGenerator.parse(message.id);
+            if (id > 0) {
+                messageIndex.put(id, new MessageIdIndex.Location(chatKey, seq, message));
+            }
+            if (record) {
+                journal(OP_MESSAGE, messageArgs(chatKey, message));
+            }
+        }
+        for (MessageListener listener : messageListeners) {
+            listener.onMessageAppended(chatKey, message);
+        }
+    }
+    
+    // Avisos de los cambios que no son mensajes pero alteran lo que un usuario ve del chat
+    private void notifyMembersAdded(String groupId, Collection<String> userIds) {
+        for (MessageListener listener : messageListeners) {
+            listener.onMembersAdded(groupId, userIds);
+        }
+    }
+    
+    private void notifyReadMarkMoved(String userId, String chatKey) {
+        for (MessageListener listener : messageListeners) {
+            listener.onReadMarkMoved(userId, chatKey);
+        }
+    }
+    
+    // Agrega el mensaje y lo registra en el journal
+    private void appendMessage(Map<String, Queue<Message>> store, String chatKey, Message message) {
+        storeMessage(store, chatKey, message, true);
+    }
+    
+    private static String[] messageArgs(String chatKey, Message message) {
+        return new String[]{chatKey, message.id, message.senderId, message.senderName, message.recipientId,
+            message.content, String.valueOf(message.timestamp), message.chatType.name(),
+            message.messageType.name(), String.valueOf(message.audioDuration),
+            String.valueOf(message.editedAt), String.valueOf(message.deleted)};
+    }
+    
+    private String nextMessageId() {
+        return String.valueOf(messageIds.next());
+    }
+    
+    // Los participantes de llamadas grupales se replican como eventos del roster (OP_ROSTER)
+    private void journalCall(VoiceCall call) {
+        String[] participants = call.callType == ChatType.GROUP ? new String[0] : call.participants;
+        String[] args = new String[8 + participants.length];
+        args[0] = call.callId;
+        args[1] = call.callerId;
+        args[2] = call.callerName;
+        args[3] = call.recipientId;
+        args[4] = String.valueOf(call.startTime);
+        args[5] = String.valueOf(call.endTime);
+        args[6] = call.status.name();
+        args[7] = call.callType.name();
+        System.arraycopy(participants, 0, args, 8, participants.length);
+        journal(OP_CALL, args);
+    }
+    
+    private GroupCallRoster rosterOf(String callId) {
+        return groupCallRosters.computeIfAbsent(callId, k -> new GroupCallRoster(rosterHistorySize));
+    }
+    
+    private SignalMailbox mailboxOf(String userId) {
+        return webrtcSignals.computeIfAbsent(userId, k -> new SignalMailbox());
+    }
+    
+    /**
+     * Aplica una entrada del journal generada por otra instancia (réplica seguidora).
+     * Las entradas traen el estado final, por lo que no se vuelven a validar.
+     */
+    public void applyReplicated(String op, String[] args) {
+        switch (op) {
+            case OP_REGISTER_USER: {
+                users.put(args[0], new User(args[0], args[1]));
+                break;
+            }
+            case OP_MESSAGE: {
+                Message message = new Message();
+                message.id = args[1];
+                message.senderId = args[2];
+                message.senderName = args[3];
+                message.recipientId = args[4];
+                message.content = args[5];
+                message.timestamp = Long.parseLong(args[6]);
+                message.chatType = ChatType.valueOf(args[7]);
+                message.messageType = MessageType.valueOf(args[8]);
+                message.audioDuration = Integer.parseInt(args[9]);
+                message.editedAt = Long.parseLong(args[10]);
+                message.deleted = Boolean.parseBoolean(args[11]);
+                
+                storeMessage(message.chatType == ChatType.DIRECT ? directMessages : groupMessages, args[0], message, false);
+                messageIds.observe(MessageIdGenerator.parse(message.id));
+                break;
+            }
+            case OP_CREATE_CHANNEL: {
+                channels.putIfAbsent(args[0], new BroadcastChannel(args[0], args[1], args[2]));
+                advancePast(channelIdCounter, args[0]);
+                break;
+            }
+            case OP_CHANNEL_OWNER: {
+                BroadcastChannel channel = channels.get(args[0]);
+                if (channel != null) {
+                    channel.ownerIds.add(args[1]);
+                }
+                break;
+            }
+            case OP_CHANNEL_SUBSCRIPTION: {
+                BroadcastChannel channel = channels.get(args[0]);
+                if (channel != null) {
+                    applySubscription(channel, args[1], Boolean.parseBoolean(args[2]));
+                }
+                break;
+            }
+            case OP_CHANNEL_POST: {
+                BroadcastChannel channel = channels.get(args[0]);
+                if (channel != null) {
+                    channel.applyAppend(new ChannelPost(Long.parseLong(args[1]), args[2], args[3], args[4],
+                        Long.parseLong(args[5])));
+                }
+                break;
+            }
+            case OP_CHANNEL_READ: {
+                BroadcastChannel channel = channels.get(args[0]);
+                if (channel != null) {
+                    channel.markRead(channelUserOrdinal(args[1]), Long.parseLong(args[2]));
+                }
+                break;
+            }
+            case OP_EDIT_MESSAGE: {
+                MessageIdIndex.Location location = messageIndex.get(MessageIdGenerator.parse(args[0]));
+                if (location != null) {
+                    changeContent(location, args[1], Long.parseLong(args[2]), false);
+                }
+                break;
+            }
+            case OP_DELETE_MESSAGE: {
+                MessageIdIndex.Location location = messageIndex.get(MessageIdGenerator.parse(args[0]));
+                if (location != null) {
+                    changeContent(location, "", Long.parseLong(args[1]), true);
+                }
+                break;
+            }
+            case OP_CREATE_GROUP: {
+                Set<String> members = new HashSet<>(Arrays.asList(args).subList(3, args.length));
+                groups.put(args[0], new Group(args[0], args[1], args[2], members));
+                advancePast(groupIdCounter, args[0]);
+                notifyMembersAdded(args[0], members);
+                break;
+            }
+            case OP_ADD_GROUP_MEMBER: {
+                Group group = groups.get(args[0]);
+                if (group != null) {
+                    group.memberIds.add(args[1]);
+                    notifyMembersAdded(args[0], Collections.singleton(args[1]));
+                }
+                break;
+            }
+            case OP_CALL: {
+                VoiceCall call = new VoiceCall();
+                call.callId = args[0];
+                call.callerId = args[1];
+                call.callerName = args[2];
+                call.recipientId = args[3];
+                call.startTime = Long.parseLong(args[4]);
+                call.endTime = Long.parseLong(args[5]);
+                call.status = CallStatus.valueOf(args[6]);
+                call.callType = ChatType.valueOf(args[7]);
+                call.participants = Arrays.copyOfRange(args, 8, args.length);
+                // Los participantes de una llamada grupal llegan como eventos de roster (OP_ROSTER)
+                if (call.callType == ChatType.GROUP && call.status == CallStatus.ENDED) {
+                    groupCallRosters.remove(call.callId);
+                }
+                voiceCalls.put(call.callId, call);
+                advancePast(callIdCounter, call.callId);
+                break;
+            }
+            case OP_SIGNAL: {
+                mailboxOf(args[0]).applyAppend(Long.parseLong(args[1]), args[2], args[3], args[4], args[5]);
+                footprint.onSignalsChanged(args[0], 1, args[5].length());
+                break;
+            }
+            case OP_ROSTER: {
+                VoiceCall call = voiceCalls.get(args[0]);
+                if (call == null || call.status != CallStatus.ENDED) {
+                    rosterOf(args[0]).applyEvent(Long.parseLong(args[3]), args[1], Boolean.parseBoolean(args[2]));
+                }
+                break;
+            }
+            case OP_MARK_READ: {
+                unreadTracker.markRead(args[0], args[1], Long.parseLong(args[2]));
+                notifyReadMarkMoved(args[0], args[1]);
+                break;
+            }
+            case OP_ACK_SIGNAL: {
+                SignalMailbox mailbox = webrtcSignals.get(args[0]);
+                if (mailbox != null) {
+                    long bytes = mailbox.removeItem(Long.parseLong(args[1]), Integer.parseInt(args[2]));
+                    if (bytes >= 0) {
+                        footprint.onSignalsChanged(args[0], -1, -bytes);
+                    }
+                }
+                break;
+            }
+            case OP_ACK_SIGNALS: {
+                SignalMailbox mailbox = webrtcSignals.get(args[0]);
+                if (mailbox != null) {
+                    long[] removed = mailbox.acknowledgeUpTo(Long.parseLong(args[1]));
+                    footprint.onSignalsChanged(args[0], -removed[0], -removed[1]);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Operación de replicación desconocida: " + op);
+        }
+    }
+    
+    // Mantiene los contadores por delante de los IDs replicados (necesario al promover la réplica)
+    private static void advancePast(AtomicLong counter, String id) {
+        int start = id.lastIndexOf('_') + 1;
+        try {
+            long value = Long.parseLong(id.substring(start));
+            counter.accumulateAndGet(value + 1, Math::max);
+        } catch (NumberFormatException e) {
+            // ID sin sufijo numérico: no afecta a los contadores
+        }
+    }
+    
+    // ========== Exportación e importación ==========
+    
+    public void exportUsers(EntrySink sink) throws IOException {
+        for (User user : users.values()) {
+            sink.accept(OP_REGISTER_USER, new String[]{user.id, user.name});
+        }
+    }
+    
+    // Cada grupo con su membresía actual en una sola entrada
+    public void exportGroups(EntrySink sink) throws IOException {
+        for (Group group : groups.values()) {
+            String[] members = group.memberIds.toArray(new String[0]);
+            String[] args = new String[3 + members.length];
+            args[0] = group.id;
+            args[1] = group.name;
+            args[2] = group.ownerId;
+            System.arraycopy(members, 0, args, 3, members.length);
+            sink.accept(OP_CREATE_GROUP, args);
+        }
+    }
+    
+    public List<String> getConversationKeys() {
+        List<String> keys = new ArrayList<>(directMessages.size() + groupMessages.size());
+        keys.addAll(directMessages.keySet());
+        keys.addAll(groupMessages.keySet());
+        return keys;
+    }
+    
+    /**
+     * Entrega los mensajes de la conversación en orden, sin copiar el historial.
+     * Retorna la cantidad de mensajes exportados.
+     */
+    public long exportConversation(String chatKey, EntrySink sink) throws IOException {
+        Queue<Message> queue = (isGroupChatId(chatKey) ? groupMessages : directMessages).get(chatKey);
+        if (queue == null) {
+            return 0;
+        }
+        
+        long count = 0;
+        for (Message message : queue) {
+            sink.accept(OP_MESSAGE, messageArgs(chatKey, message));
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Aplica una entrada exportada y la registra en el journal para las réplicas.
+     * Los usuarios y grupos existentes no se sobrescriben (a un grupo existente solo se
+     * le agregan los miembros que falten). Retorna false si la entrada ya estaba aplicada.
+     */
+    public boolean importEntry(String op, String[] args) {
+        switch (op) {
+            case OP_REGISTER_USER:
+                if (users.containsKey(args[0])) {
+                    return false;
+                }
+                break;
+            case OP_CREATE_GROUP: {
+                Group existing = groups.get(args[0]);
+                if (existing != null) {
+                    for (int i = 3; i < args.length; i++) {
+                        if (existing.memberIds.add(args[i])) {
+                            notifyMembersAdded(args[0], Collections.singleton(args[i]));
+                            journal(OP_ADD_GROUP_MEMBER, args[0], args[i]);
+                        }
+                    }
+                    return false;
+                }
+                break;
+            }
+            case OP_MESSAGE: {
+                // Un mensaje ya importado (reanudación) tiene su ID en el índice
+                long id = MessageIdGenerator.parse(args[1]);
+                if (id > 0 && messageIndex.get(id) != null) {
+                    return false;
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Operación no importable: " + op);
         }
         
+        applyReplicated(op, args);
+        journal(op, args);
+        return true;
+    }
+    
+    // ========== Métodos para usuarios ==========
+    
+    public boolean registerUser(String userId, String userName) {
         User user = new User();
         user.id = userId;
         user.name = userName;
-        users.put(userId, user);
+        // putIfAbsent en lugar de un lock global: registros de usuarios distintos no se bloquean entre sí
+        if (users.putIfAbsent(userId, user) != null) {
+            System.out.println("Usuario ya existe: " + userId);
+            return false;
+        }
+        journal(OP_REGISTER_USER, userId, userName);
         System.out.println("Usuario registrado: " + userId + " (" + userName + ")");
         return true;
     }
@@ -102,8 +584,8 @@ public class ChatCore {
         System.out.println("Content: " + content);
         System.out.println("Usuarios registrados: " + users.keySet());
         
-        User sender = users.get(fromUserId);
-        User recipient = users.get(toUserId);
+        User sender = lookupUser(fromUserId);
+        User recipient = lookupUser(toUserId);
         
         if (sender == null || recipient == null) {
             String error = "Usuario no encontrado - Sender: " + (sender != null) + ", Recipient: " + (recipient != null);
@@ -112,7 +594,7 @@ public class ChatCore {
         }
         
         Message message = new Message();
-        message.id = String.valueOf(messageIdCounter.getAndIncrement());
+        message.id = nextMessageId();
         message.senderId = fromUserId;
         message.senderName = sender.name;
         message.recipientId = toUserId;
@@ -123,7 +605,7 @@ public class ChatCore {
         message.audioDuration = 0;
         
         String conversationKey = getConversationKey(fromUserId, toUserId);
-        directMessages.computeIfAbsent(conversationKey, k -> new ConcurrentLinkedQueue<>()).add(message);
+        appendMessage(directMessages, conversationKey, message);
         
         System.out.println("✓ Mensaje directo enviado exitosamente: " + fromUserId + " -> " + toUserId + ": " + content);
     }
@@ -134,8 +616,8 @@ public class ChatCore {
         System.out.println("To: " + toUserId);
         System.out.println("Duration: " + duration + " segundos");
         
-        User sender = users.get(fromUserId);
-        User recipient = users.get(toUserId);
+        User sender = lookupUser(fromUserId);
+        User recipient = lookupUser(toUserId);
         
         if (sender == null || recipient == null) {
             String error = "Usuario no encontrado - Sender: " + (sender != null) + ", Recipient: " + (recipient != null);
@@ -144,7 +626,7 @@ public class ChatCore {
         }
         
         Message message = new Message();
-        message.id = String.valueOf(messageIdCounter.getAndIncrement());
+        message.id = nextMessageId();
         message.senderId = fromUserId;
         message.senderName = sender.name;
         message.recipientId = toUserId;
@@ -155,7 +637,7 @@ public class ChatCore {
         message.audioDuration = duration;
         
         String conversationKey = getConversationKey(fromUserId, toUserId);
-        directMessages.computeIfAbsent(conversationKey, k -> new ConcurrentLinkedQueue<>()).add(message);
+        appendMessage(directMessages, conversationKey, message);
         
         System.out.println("✓ Audio directo enviado exitosamente: " + fromUserId + " -> " + toUserId);
     }
@@ -180,26 +662,21 @@ public class ChatCore {
             }
             
             if (otherUserId != null) {
-                Queue<Message> messages = entry.getValue();
-                if (!messages.isEmpty()) {
-                    // Obtener último mensaje de la cola
-                    Message lastMsg = null;
-                    for (Message msg : messages) {
-                        lastMsg = msg;
-                    }
+                // Último mensaje mantenido de forma incremental (sin recorrer el historial)
+                Message lastMsg = unreadTracker.lastMessage(entry.getKey());
+                if (lastMsg != null) {
+                    User otherUser = lookupUser(otherUserId);
                     
-                    if (lastMsg != null) {
-                        User otherUser = users.get(otherUserId);
-                        
-                        ChatSummary summary = new ChatSummary();
-                        summary.chatId = otherUserId;
-                        summary.chatName = otherUser != null ? otherUser.name : otherUserId;
-                        summary.lastMessage = lastMsg.messageType == MessageType.AUDIO ? "🎤 Audio" : lastMsg.content;
-                        summary.lastMessageTime = lastMsg.timestamp;
-                        summary.chatType = ChatType.DIRECT;
-                        
-                        chats.add(summary);
-                    }
+                    ChatSummary summary = new ChatSummary();
+                    summary.chatId = otherUserId;
+                    summary.chatName = otherUser != null ? otherUser.name : otherUserId;
+                    summary.lastMessage = lastMsg.messageType == MessageType.AUDIO ? "🎤 Audio" : lastMsg.content;
+                    summary.lastMessageTime = lastMsg.timestamp;
+                    summary.chatType = ChatType.DIRECT;
+                    summary.lastSeq = unreadTracker.lastSeq(entry.getKey());
+                    summary.unreadCount = unreadTracker.unreadCount(userId, entry.getKey());
+                    
+                    chats.add(summary);
                 }
             }
         }
@@ -210,7 +687,7 @@ public class ChatCore {
         return chats;
     }
     
-    private String getConversationKey(String userA, String userB) {
+    public static String getConversationKey(String userA, String userB) {
         // Normalizar alfabéticamente para que (A,B) y (B,A) sean la misma clave
         return userA.compareTo(userB) < 0 ? userA + ":" + userB : userB + ":" + userA;
     }
@@ -218,16 +695,29 @@ public class ChatCore {
     // ========== Métodos para grupos ==========
     
     public String createGroup(String ownerId, String groupName, String[] memberIds) {
-        if (!users.containsKey(ownerId)) {
+        if (lookupUser(ownerId) == null) {
             throw new IllegalArgumentException("Owner no encontrado");
         }
         
-        String groupId = "group_" + groupIdCounter.getAndIncrement();
+        String groupId = nextLocalId(GROUP_ID_PREFIX, groupIdCounter);
         Set<String> members = new HashSet<>(Arrays.asList(memberIds));
         members.add(ownerId); // El owner siempre es miembro
         
+        // Se crea en la partición del owner y se publica en el mapa concurrente;
+        // las operaciones siguientes sobre el grupo corren en la partición del grupo
         Group group = new Group(groupId, groupName, ownerId, members);
         groups.put(groupId, group);
+        notifyMembersAdded(groupId, members);
+        
+        String[] groupArgs = new String[3 + members.size()];
+        groupArgs[0] = groupId;
+        groupArgs[1] = groupName;
+        groupArgs[2] = ownerId;
+        int i = 3;
+        for (String member : members) {
+            groupArgs[i++] = member;
+        }
+        journal(OP_CREATE_GROUP, groupArgs);
         
         System.out.println("Grupo creado: " + groupId + " (" + groupName + ") por " + ownerId);
         
@@ -240,11 +730,13 @@ public class ChatCore {
             throw new IllegalArgumentException("Grupo no encontrado");
         }
         
-        if (!users.containsKey(userId)) {
+        if (lookupUser(userId) == null) {
             throw new IllegalArgumentException("Usuario no encontrado");
         }
         
         group.memberIds.add(userId);
+        notifyMembersAdded(groupId, Collections.singleton(userId));
+        journal(OP_ADD_GROUP_MEMBER, groupId, userId);
         System.out.println("Usuario " + userId + " agregado al grupo " + groupId);
     }
     
@@ -258,10 +750,10 @@ public class ChatCore {
             throw new IllegalArgumentException("Usuario no es miembro del grupo");
         }
         
-        User sender = users.get(fromUserId);
+        User sender = lookupUser(fromUserId);
         
         Message message = new Message();
-        message.id = String.valueOf(messageIdCounter.getAndIncrement());
+        message.id = nextMessageId();
         message.senderId = fromUserId;
         message.senderName = sender != null ? sender.name : fromUserId;
         message.recipientId = groupId;
@@ -271,7 +763,7 @@ public class ChatCore {
         message.messageType = MessageType.TEXT;
         message.audioDuration = 0;
         
-        groupMessages.computeIfAbsent(groupId, k -> new ConcurrentLinkedQueue<>()).add(message);
+        appendMessage(groupMessages, groupId, message);
         
         System.out.println("Mensaje de grupo enviado: " + fromUserId + " -> " + groupId + ": " + content);
     }
@@ -287,10 +779,10 @@ public class ChatCore {
             throw new IllegalArgumentException("Usuario no es miembro del grupo");
         }
         
-        User sender = users.get(fromUserId);
+        User sender = lookupUser(fromUserId);
         
         Message message = new Message();
-        message.id = String.valueOf(messageIdCounter.getAndIncrement());
+        message.id = nextMessageId();
         message.senderId = fromUserId;
         message.senderName = sender != null ? sender.name : fromUserId;
         message.recipientId = groupId;
@@ -300,7 +792,7 @@ public class ChatCore {
         message.messageType = MessageType.AUDIO;
         message.audioDuration = duration;
         
-        groupMessages.computeIfAbsent(groupId, k -> new ConcurrentLinkedQueue<>()).add(message);
+        appendMessage(groupMessages, groupId, message);
         
         System.out.println("✓ Audio de grupo enviado: " + fromUserId + " -> " + groupId + " (" + duration + "s)");
     }
@@ -324,25 +816,20 @@ public class ChatCore {
         
         for (Group group : groups.values()) {
             if (group.memberIds.contains(userId)) {
-                Queue<Message> messages = groupMessages.get(group.id);
+                // Último mensaje mantenido de forma incremental (sin recorrer el historial)
+                Message lastMsg = unreadTracker.lastMessage(group.id);
                 
                 ChatSummary summary = new ChatSummary();
                 summary.chatId = group.id;
                 summary.chatName = group.name;
                 summary.chatType = ChatType.GROUP;
                 
-                if (messages != null && !messages.isEmpty()) {
-                    // Obtener último mensaje de la cola
-                    Message lastMsg = null;
-                    for (Message msg : messages) {
-                        lastMsg = msg;
-                    }
-                    
-                    if (lastMsg != null) {
-                        String content = lastMsg.messageType == MessageType.AUDIO ? "🎤 Audio" : lastMsg.content;
-                        summary.lastMessage = lastMsg.senderName + ": " + content;
-                        summary.lastMessageTime = lastMsg.timestamp;
-                    }
+                if (lastMsg != null) {
+                    String content = lastMsg.messageType == MessageType.AUDIO ? "🎤 Audio" : lastMsg.content;
+                    summary.lastMessage = lastMsg.senderName + ": " + content;
+                    summary.lastMessageTime = lastMsg.timestamp;
+                    summary.lastSeq = unreadTracker.lastSeq(group.id);
+                    summary.unreadCount = unreadTracker.unreadCount(userId, group.id);
                 } else {
                     summary.lastMessage = "";
                     summary.lastMessageTime = 0;
@@ -358,15 +845,391 @@ public class ChatCore {
         return chats;
     }
     
+    /**
+     * Usuarios con los que el usuario comparte un chat directo o un grupo
+     * (interesados en su presencia).
+     */
+    public Set<String> getContactIds(String userId) {
+        Set<String> contacts = new HashSet<>();
+        
+        for (String chatKey : directMessages.keySet()) {
+            String[] participants = chatKey.split(":");
+            if (participants[0].equals(userId)) {
+                contacts.add(participants[1]);
+            } else if (participants[1].equals(userId)) {
+                contacts.add(participants[0]);
+            }
+        }
+        
+        for (Group group : groups.values()) {
+            if (group.memberIds.contains(userId)) {
+                contacts.addAll(group.memberIds);
+            }
+        }
+        
+        contacts.remove(userId);
+        return contacts;
+    }
+    
+    /**
+     * Miembros del grupo (vista sin copiar; vacío si el grupo no existe).
+     */
+    public Collection<String> getGroupMembers(String groupId) {
+        Group group = groups.get(groupId);
+        return group != null ? Collections.unmodifiableSet(group.memberIds) : Collections.emptySet();
+    }
+    
+    /**
+     * Los otros participantes del chat de userId: el usuario chatId (chat directo) o los
+     * miembros del grupo (vista sin copiar; vacío si userId no es miembro).
+     */
+    public Collection<String> getChatParticipants(String userId, String chatId) {
+        Group group = groups.get(chatId);
+        if (group != null) {
+            return group.memberIds.contains(userId)
+                ? Collections.unmodifiableSet(group.memberIds)
+                : Collections.emptySet();
+        }
+        return users.containsKey(chatId) ? Collections.singleton(chatId) : Collections.emptySet();
+    }
+    
+    // ========== Mensajes por ID ==========
+    
+    private MessageIdIndex.Location locate(String messageId) {
+        long id = MessageIdGenerator.parse(messageId);
+        MessageIdIndex.Location location = id > 0 ? messageIndex.get(id) : null;
+        if (location == null) {
+            throw new IllegalArgumentException("Mensaje no encontrado");
+        }
+        return location;
+    }
+    
+    /**
+     * Conversación (groupId o clave del chat directo) del mensaje, o null si no está en este nodo.
+     */
+    public String chatKeyOf(String messageId) {
+        long id = MessageIdGenerator.parse(messageId);
+        MessageIdIndex.Location location = id > 0 ? messageIndex.get(id) : null;
+        return location != null ? location.chatKey : null;
+    }
+    
+    /**
+     * Mensaje por ID con su posición en la conversación, sin recorrer el historial.
+     */
+    public LocatedMessage getMessageById(String userId, String messageId) {
+        MessageIdIndex.Location location = locate(messageId);
+        if (!canRead(userId, location.chatKey)) {
+            throw new IllegalArgumentException("Mensaje no encontrado");
+        }
+        return new LocatedMessage(location.message, location.seq);
+    }
+    
+    public void editMessage(String userId, String messageId, String content) {
+        MessageIdIndex.Location location = locate(messageId);
+        Message message = location.message;
+        if (!message.senderId.equals(userId)) {
+            throw new IllegalArgumentException("Solo el remitente puede editar el mensaje");
+        }
+        if (message.messageType != MessageType.TEXT) {
+            throw new IllegalArgumentException("Solo se pueden editar mensajes de texto");
+        }
+        
+        synchronized (message) {
+            if (message.deleted) {
+                throw new IllegalArgumentException("El mensaje fue eliminado");
+            }
+            long editedAt = System.currentTimeMillis();
+            changeContent(location, content, editedAt, false);
+            journal(OP_EDIT_MESSAGE, messageId, content, String.valueOf(editedAt));
+        }
+        System.out.println("✎ Mensaje editado: " + messageId);
+    }
+    
+    /**
+     * Elimina el contenido del mensaje y lo deja como marca (tombstone) en su lugar,
+     * para que las posiciones y contadores de no leídos de la conversación no cambien.
+     */
+    public void deleteMessage(String userId, String messageId) {
+        MessageIdIndex.Location location = locate(messageId);
+        Message message = location.message;
+        if (!message.senderId.equals(userId)) {
+            throw new IllegalArgumentException("Solo el remitente puede eliminar el mensaje");
+        }
+        
+        synchronized (message) {
+            if (message.deleted) {
+                return;
+            }
+            long deletedAt = System.currentTimeMillis();
+            changeContent(location, "", deletedAt, true);
+            journal(OP_DELETE_MESSAGE, messageId, String.valueOf(deletedAt));
+        }
+        System.out.println("🗑 Mensaje eliminado: " + messageId);
+    }
+    
+    private void changeContent(MessageIdIndex.Location location, String content, long changedAt, boolean delete) {
+        Message message = location.message;
+        String oldContent;
+        synchronized (message) {
+            oldContent = message.content;
+            message.content = content;
+            message.editedAt = changedAt;
+            if (delete) {
+                message.deleted = true;
+                message.audioDuration = 0;
+            }
+        }
+        for (MessageListener listener : messageListeners) {
+            listener.onMessageChanged(location.chatKey, message, oldContent);
+        }
+    }
+    
+    // ========== Marcas de lectura ==========
+    
+    /**
+     * Marca como leídos los mensajes del chat hasta upToSeq (incluido).
+     * chatId es el userId del otro usuario (chat directo) o el groupId.
+     */
+    public void markRead(String userId, String chatId, long upToSeq) {
+        String chatKey = isGroupChatId(chatId) ? chatId : getConversationKey(userId, chatId);
+        if (!canRead(userId, chatKey)) {
+            throw new IllegalArgumentException("Usuario no pertenece al chat");
+        }
+        
+        long readSeq = unreadTracker.markRead(userId, chatKey, upToSeq);
+        notifyReadMarkMoved(userId, chatKey);
+        journal(OP_MARK_READ, userId, chatKey, String.valueOf(readSeq));
+    }
+    
+    public static boolean isGroupChatId(String chatId) {
+        return chatId.startsWith(GROUP_ID_PREFIX);
+    }
+    
+    // ========== Búsqueda de texto completo ==========
+    
+    public SearchResult searchMessages(String userId, String query, int limit, String cursor) {
+        if (lookupUser(userId) == null) {
+            throw new IllegalArgumentException("Usuario no encontrado");
+        }
+        return searchIndex.search(query, limit, cursor, chatKey -> canRead(userId, chatKey));
+    }
+    
+    // Un usuario puede leer un grupo del que es miembro o una conversación directa en la que participa
+    private boolean canRead(String userId, String chatKey) {
+        Group group = groups.get(chatKey);
+        if (group != null) {
+            return group.memberIds.contains(userId);
+        }
+        
+        String[] participants = chatKey.split(":");
+        return participants.length == 2 && (participants[0].equals(userId) || participants[1].equals(userId));
+    }
+    
+    // ========== Canales de difusión ==========
+    
+    private BroadcastChannel requireChannel(String channelId) {
+        BroadcastChannel channel = channels.get(channelId);
+        if (channel == null) {
+            throw new IllegalArgumentException("Canal no encontrado");
+        }
+        return channel;
+    }
+    
+    private int channelUserOrdinal(String userId) {
+        return channelUserOrdinals.computeIfAbsent(userId, u -> nextChannelUserOrdinal.getAndIncrement());
+    }
+    
+    // true si el usuario puede leer el canal (suscriptor u owner), sin asignarle ordinal
+    private boolean canReadChannel(BroadcastChannel channel, String userId) {
+        Integer ordinal = channelUserOrdinals.get(userId);
+        return (ordinal != null && channel.isSubscriber(ordinal)) || channel.ownerIds.contains(userId);
+    }
+    
+    public String createChannel(String ownerId, String name) {
+        if (lookupUser(ownerId) == null) {
+            throw new IllegalArgumentException("Owner no encontrado");
+        }
+        
+        String channelId = nextLocalId(CHANNEL_ID_PREFIX, channelIdCounter);
+        channels.put(channelId, new BroadcastChannel(channelId, name, ownerId));
+        journal(OP_CREATE_CHANNEL, channelId, name, ownerId);
+        
+        // El owner queda suscrito para ver el canal entre los suyos
+        subscribeChannel(channelId, ownerId);
+        
+        System.out.println("📢 Canal creado: " + channelId + " (" + name + ") por " + ownerId);
+        return channelId;
+    }
+    
+    public void addChannelOwner(String channelId, String ownerId, String newOwnerId) {
+        BroadcastChannel channel = requireChannel(channelId);
+        if (!channel.ownerIds.contains(ownerId)) {
+            throw new IllegalArgumentException("Solo un owner puede agregar owners al canal");
+        }
+        if (lookupUser(newOwnerId) == null) {
+            throw new IllegalArgumentException("Usuario no encontrado");
+        }
+        
+        if (channel.ownerIds.add(newOwnerId)) {
+            journal(OP_CHANNEL_OWNER, channelId, newOwnerId);
+            System.out.println("Usuario " + newOwnerId + " es owner del canal " + channelId);
+        }
+    }
+    
+    public void subscribeChannel(String channelId, String userId) {
+        BroadcastChannel channel = requireChannel(channelId);
+        if (lookupUser(userId) == null) {
+            throw new IllegalArgumentException("Usuario no encontrado");
+        }
+        
+        if (applySubscription(channel, userId, true)) {
+            journal(OP_CHANNEL_SUBSCRIPTION, channelId, userId, "true");
+        }
+    }
+    
+    public void unsubscribeChannel(String channelId, String userId) {
+        BroadcastChannel channel = requireChannel(channelId);
+        if (applySubscription(channel, userId, false)) {
+            journal(OP_CHANNEL_SUBSCRIPTION, channelId, userId, "false");
+        }
+    }
+    
+    // Retorna true si cambió la suscripción
+    private boolean applySubscription(BroadcastChannel channel, String userId, boolean subscribe) {
+        int ordinal = channelUserOrdinal(userId);
+        if (subscribe) {
+            if (!channel.subscribe(ordinal)) {
+                return false;
+            }
+            userChannels.computeIfAbsent(userId, u -> ConcurrentHashMap.newKeySet()).add(channel.id);
+            return true;
+        }
+        
+        if (!channel.unsubscribe(ordinal)) {
+            return false;
+        }
+        Set<String> subscribed = userChannels.get(userId);
+        if (subscribed != null) {
+            subscribed.remove(channel.id);
+        }
+        return true;
+    }
+    
+    /**
+     * Publica en el canal (solo owners) y retorna la secuencia de la publicación.
+     * El costo no depende de la cantidad de suscriptores: la publicación se guarda una vez
+     * y cada suscriptor la lee desde su marca de lectura.
+     */
+    public long publishToChannel(String channelId, String authorId, String content) {
+        BroadcastChannel channel = requireChannel(channelId);
+        if (!channel.ownerIds.contains(authorId)) {
+            throw new IllegalArgumentException("Solo los owners pueden publicar en el canal");
+        }
+        
+        User author = lookupUser(authorId);
+        ChannelPost post = new ChannelPost(0, authorId, author != null ? author.name : authorId, content,
+            System.currentTimeMillis());
+        long seq = channel.append(post, assigned -> journal(OP_CHANNEL_POST, channelId, String.valueOf(assigned),
+            post.authorId, post.authorName, post.content, String.valueOf(post.timestamp)));
+        
+        System.out.println("📢 Publicación " + seq + " en canal " + channelId + " (" + channel.subscriberCount()
+            + " suscriptores)");
+        return seq;
+    }
+    
+    private static int channelPageSize(int limit) {
+        return limit <= 0 ? DEFAULT_CHANNEL_PAGE : Math.min(limit, MAX_CHANNEL_PAGE);
+    }
+    
+    private ChannelPage channelPage(BroadcastChannel channel, long readSeq, long afterSeq, int limit) {
+        int pageSize = channelPageSize(limit);
+        ChannelPage page = new ChannelPage();
+        page.channelId = channel.id;
+        page.lastSeq = channel.lastSeq();
+        page.readSeq = readSeq;
+        page.posts = channel.postsAfter(afterSeq, pageSize).toArray(new ChannelPost[0]);
+        page.hasMore = afterSeq + pageSize < page.lastSeq;
+        return page;
+    }
+    
+    /**
+     * Publicaciones posteriores a afterSeq (afterSeq negativo: desde la marca de lectura del usuario).
+     */
+    public ChannelPage getChannelPosts(String channelId, String userId, long afterSeq, int limit) {
+        BroadcastChannel channel = requireChannel(channelId);
+        if (!canReadChannel(channel, userId)) {
+            throw new IllegalArgumentException("Usuario no suscrito al canal");
+        }
+        
+        Integer ordinal = channelUserOrdinals.get(userId);
+        long readSeq = ordinal != null ? channel.readSeq(ordinal) : 0;
+        return channelPage(channel, readSeq, afterSeq < 0 ? readSeq : afterSeq, limit);
+    }
+    
+    public void markChannelRead(String channelId, String userId, long upToSeq) {
+        BroadcastChannel channel = requireChannel(channelId);
+        Integer ordinal = channelUserOrdinals.get(userId);
+        if (ordinal == null || !channel.isSubscriber(ordinal)) {
+            throw new IllegalArgumentException("Usuario no suscrito al canal");
+        }
+        
+        long readSeq = channel.markRead(ordinal, upToSeq);
+        journal(OP_CHANNEL_READ, channelId, userId, String.valueOf(readSeq));
+    }
+    
+    public List<ChannelInfo> getUserChannels(String userId) {
+        List<ChannelInfo> result = new ArrayList<>();
+        Set<String> subscribed = userChannels.get(userId);
+        Integer ordinal = channelUserOrdinals.get(userId);
+        if (subscribed == null || ordinal == null) {
+            return result;
+        }
+        
+        for (String channelId : subscribed) {
+            BroadcastChannel channel = channels.get(channelId);
+            if (channel != null) {
+                result.add(new ChannelInfo(channel.id, channel.name, channel.ownerIds.toArray(new String[0]),
+                    channel.subscriberCount(), channel.lastSeq(), channel.readSeq(ordinal)));
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.lastSeq - b.readSeq, a.lastSeq - a.readSeq));
+        return result;
+    }
+    
+    /**
+     * Novedades de todos los canales del usuario en una sola llamada: una página por canal
+     * con publicaciones posteriores a su marca de lectura (los canales sin novedades no se incluyen).
+     */
+    public List<ChannelPage> pollChannels(String userId, int limitPerChannel) {
+        List<ChannelPage> pages = new ArrayList<>();
+        Set<String> subscribed = userChannels.get(userId);
+        Integer ordinal = channelUserOrdinals.get(userId);
+        if (subscribed == null || ordinal == null) {
+            return pages;
+        }
+        
+        for (String channelId : subscribed) {
+            BroadcastChannel channel = channels.get(channelId);
+            if (channel == null) {
+                continue;
+            }
+            long readSeq = channel.readSeq(ordinal);
+            if (channel.lastSeq() > readSeq) {
+                pages.add(channelPage(channel, readSeq, readSeq, limitPerChannel));
+            }
+        }
+        return pages;
+    }
+    
     // ========== Métodos para llamadas de voz directas ==========
     
     public String startDirectCall(String callerId, String recipientId) {
-        if (!users.containsKey(callerId) || !users.containsKey(recipientId)) {
+        User caller = lookupUser(callerId);
+        if (caller == null || lookupUser(recipientId) == null) {
             throw new IllegalArgumentException("Usuario no encontrado");
         }
         
-        String callId = "call_" + callIdCounter.getAndIncrement();
-        User caller = users.get(callerId);
+        String callId = nextLocalId("call_", callIdCounter);
         
         VoiceCall call = new VoiceCall();
         call.callId = callId;
@@ -380,6 +1243,7 @@ public class ChatCore {
         call.participants = new String[]{callerId, recipientId};
         
         voiceCalls.put(callId, call);
+        journalCall(call);
         
         System.out.println("📞 Llamada directa iniciada: " + callId + " (" + caller.name + " -> " + recipientId + ")");
         return callId;
@@ -395,7 +1259,10 @@ public class ChatCore {
             throw new IllegalArgumentException("Solo el receptor puede contestar");
         }
         
-        call.status = CallStatus.ACTIVE;
+        synchronized (call) {
+            call.status = CallStatus.ACTIVE;
+            journalCall(call);
+        }
         System.out.println("✓ Llamada contestada: " + callId);
     }
     
@@ -409,8 +1276,11 @@ public class ChatCore {
             throw new IllegalArgumentException("Solo el receptor puede rechazar");
         }
         
-        call.status = CallStatus.REJECTED;
-        call.endTime = System.currentTimeMillis();
+        synchronized (call) {
+            call.status = CallStatus.REJECTED;
+            call.endTime = System.currentTimeMillis();
+            journalCall(call);
+        }
         System.out.println("✗ Llamada rechazada: " + callId);
     }
     
@@ -424,15 +1294,22 @@ public class ChatCore {
             throw new IllegalArgumentException("Solo los participantes pueden terminar la llamada");
         }
         
-        call.status = CallStatus.ENDED;
-        call.endTime = System.currentTimeMillis();
+        synchronized (call) {
+            call.status = CallStatus.ENDED;
+            call.endTime = System.currentTimeMillis();
+            journalCall(call);
+        }
         
         long duration = (call.endTime - call.startTime) / 1000;
         System.out.println("📞 Llamada terminada: " + callId + " (duración: " + duration + "s)");
     }
     
     public VoiceCall getCallStatus(String callId) {
-        return voiceCalls.get(callId);
+        VoiceCall call = voiceCalls.get(callId);
+        if (call != null && call.callType == ChatType.GROUP) {
+            refreshParticipants(call);
+        }
+        return call;
     }
     
     public List<VoiceCall> getActiveCallsForUser(String userId) {
@@ -448,7 +1325,8 @@ public class ChatCore {
     // ========== Métodos para llamadas de voz grupales ==========
     
     public String startGroupCall(String callerId, String groupId) {
-        if (!users.containsKey(callerId)) {
+        User caller = lookupUser(callerId);
+        if (caller == null) {
             throw new IllegalArgumentException("Usuario no encontrado");
         }
         
@@ -461,8 +1339,7 @@ public class ChatCore {
             throw new IllegalArgumentException("Usuario no es miembro del grupo");
         }
         
-        String callId = "groupcall_" + callIdCounter.getAndIncrement();
-        User caller = users.get(callerId);
+        String callId = nextLocalId("groupcall_", callIdCounter);
         
         VoiceCall call = new VoiceCall();
         call.callId = callId;
@@ -475,7 +1352,10 @@ public class ChatCore {
         call.callType = ChatType.GROUP;
         call.participants = new String[]{callerId}; // Solo el creador al inicio
         
+        GroupCallRoster roster = rosterOf(callId);
         voiceCalls.put(callId, call);
+        journalCall(call);
+        joinRoster(callId, roster, callerId);
         
         System.out.println("📞 Llamada grupal iniciada: " + callId + " en grupo " + group.name);
         return callId;
@@ -496,31 +1376,65 @@ public class ChatCore {
             throw new IllegalArgumentException("Usuario no es miembro del grupo");
         }
         
-        // Agregar participante si no está ya
-        List<String> participants = new ArrayList<>(Arrays.asList(call.participants));
-        if (!participants.contains(userId)) {
-            participants.add(userId);
-            call.participants = participants.toArray(new String[0]);
+        // Agregar participante si no está ya (con el lock de la llamada: no se une a una terminada)
+        boolean joined;
+        synchronized (call) {
+            if (call.status == CallStatus.ENDED) {
+                throw new IllegalArgumentException("La llamada ya terminó");
+            }
+            joined = joinRoster(callId, rosterOf(callId), userId);
+        }
+        if (joined) {
             System.out.println("✓ Usuario " + userId + " se unió a llamada grupal: " + callId);
         }
     }
     
+    // Une al participante y registra el evento con la versión asignada (bajo el lock del roster
+    // para que el journal quede en orden de versión)
+    private boolean joinRoster(String callId, GroupCallRoster roster, String userId) {
+        synchronized (roster) {
+            long version = roster.join(userId);
+            if (version < 0) {
+                return false;
+            }
+            journal(OP_ROSTER, callId, userId, "true", String.valueOf(version));
+            return true;
+        }
+    }
+    
     public void leaveGroupCall(String callId, String userId) {
         VoiceCall call = voiceCalls.get(callId);
         if (call == null) {
             throw new IllegalArgumentException("Llamada no encontrada");
         }
         
-        List<String> participants = new ArrayList<>(Arrays.asList(call.participants));
-        participants.remove(userId);
-        call.participants = participants.toArray(new String[0]);
-        
-        System.out.println("✓ Usuario " + userId + " salió de llamada grupal: " + callId);
+        GroupCallRoster roster = groupCallRosters.get(callId);
+        if (roster == null) {
+            return; // La llamada ya terminó y su roster se descartó
+        }
+        boolean empty;
+        synchronized (roster) {
+            long version = roster.leave(userId);
+            if (version >= 0) {
+                journal(OP_ROSTER, callId, userId, "false", String.valueOf(version));
+            }
+            empty = roster.isEmpty();
+        }
         
         // Si no quedan participantes, terminar la llamada
-        if (participants.isEmpty()) {
-            call.status = CallStatus.ENDED;
-            call.endTime = System.currentTimeMillis();
+        if (empty) {
+            synchronized (call) {
+                if (call.status != CallStatus.ENDED) {
+                    call.status = CallStatus.ENDED;
+                    call.endTime = System.currentTimeMillis();
+                    journalCall(call);
+                }
+                groupCallRosters.remove(callId);
+            }
+        }
+        
+        System.out.println("✓ Usuario " + userId + " salió de llamada grupal: " + callId);
+        if (empty) {
             System.out.println("📞 Llamada grupal terminada (sin participantes): " + callId);
         }
     }
@@ -535,65 +1449,156 @@ public class ChatCore {
             throw new IllegalArgumentException("Solo el creador puede terminar la llamada grupal");
         }
         
-        call.status = CallStatus.ENDED;
-        call.endTime = System.currentTimeMillis();
+        synchronized (call) {
+            call.status = CallStatus.ENDED;
+            call.endTime = System.currentTimeMillis();
+            journalCall(call);
+            // El roster solo sirve mientras la llamada está activa
+            groupCallRosters.remove(callId);
+        }
         
         long duration = (call.endTime - call.startTime) / 1000;
         System.out.println("📞 Llamada grupal terminada: " + callId + " (duración: " + duration + "s)");
     }
     
     public List<VoiceCall> getActiveGroupCalls(String groupId) {
-        return voiceCalls.values().stream()
+        List<VoiceCall> calls = voiceCalls.values().stream()
             .filter(call -> call.callType == ChatType.GROUP)
             .filter(call -> call.recipientId.equals(groupId))
             .filter(call -> call.status == CallStatus.ACTIVE)
             .collect(Collectors.toList());
+        for (VoiceCall call : calls) {
+            refreshParticipants(call);
+        }
+        return calls;
     }
     
-    // ========== Métodos para señalización WebRTC ==========
+    // Copia en la llamada la instantánea del roster (reconstruida como máximo una vez por intervalo)
+    private void refreshParticipants(VoiceCall call) {
+        GroupCallRoster roster = groupCallRosters.get(call.callId);
+        if (roster != null) {
+            call.participants = roster.participants(System.currentTimeMillis(), rosterSnapshotIntervalMs);
+        }
+    }
     
-    public void sendWebRTCSignal(String callId, String fromUserId, String toUserId, String type, String data) {
-        WebRTCSignal signal = new WebRTCSignal();
-        signal.callId = callId;
-        signal.fromUserId = fromUserId;
-        signal.toUserId = toUserId;
-        signal.type = type;
+    /**
+     * Cambios del roster de una llamada grupal desde sinceVersion. Si el historial ya no
+     * cubre esa versión, incluye una instantánea de los participantes.
+     */
+    public RosterDelta getGroupCallRosterDelta(String callId, long sinceVersion) {
+        VoiceCall call = voiceCalls.get(callId);
+        if (call == null) {
+            throw new IllegalArgumentException("Llamada no encontrada");
+        }
         
-        // Dependiendo del tipo, guardar en sdp o candidate
-        if ("offer".equals(type) || "answer".equals(type)) {
-            signal.sdp = data;
-            signal.candidate = "";
-        } else if ("ice-candidate".equals(type)) {
-            signal.sdp = "";
-            signal.candidate = data;
+        if (call.callType != ChatType.GROUP) {
+            throw new IllegalArgumentException("No es una llamada grupal");
         }
         
-        // Agregar señal a la cola del destinatario
-        webrtcSignals.computeIfAbsent(toUserId, k -> new ConcurrentLinkedQueue<>()).add(signal);
+        GroupCallRoster roster = groupCallRosters.get(callId);
+        if (roster == null) {
+            // Llamada terminada: instantánea vacía
+            RosterDelta ended = new RosterDelta();
+            ended.callId = callId;
+            ended.full = true;
+            ended.participants = new String[0];
+            ended.events = new RosterEvent[0];
+            ended.status = call.status;
+            return ended;
+        }
+        
+        RosterDelta delta = roster.delta(callId, sinceVersion, System.currentTimeMillis(),
+            rosterSnapshotIntervalMs);
+        delta.status = call.status;
+        return delta;
+    }
+    
+    // ========== Métodos para señalización WebRTC ==========
+    
+    public void sendWebRTCSignal(String callId, String fromUserId, String toUserId, String type, String data) {
+        storeSignal(mailboxOf(toUserId), callId, fromUserId, toUserId, type, data, System.currentTimeMillis());
         
         System.out.println("🔄 Señal WebRTC enviada: " + type + " de " + fromUserId + " a " + toUserId);
     }
     
+    /**
+     * Envía varias señales en una sola invocación (p. ej. el goteo de candidatos ICE).
+     */
+    public void sendWebRTCSignals(String callId, String fromUserId, String toUserId, Signal[] signals) {
+        SignalMailbox mailbox = mailboxOf(toUserId);
+        long now = System.currentTimeMillis();
+        for (Signal signal : signals) {
+            storeSignal(mailbox, callId, fromUserId, toUserId, signal.type, signal.data, now);
+        }
+        
+        System.out.println("🔄 " + signals.length + " señales WebRTC enviadas de " + fromUserId + " a " + toUserId);
+    }
+    
+    // La secuencia se asigna y se registra en el journal con el lock del buzón, para que los
+    // seguidores apliquen las señales y confirmaciones de un destinatario en el mismo orden
+    private void storeSignal(SignalMailbox mailbox, String callId, String fromUserId, String toUserId,
+                             String type, String data, long now) {
+        synchronized (mailbox) {
+            long seq = mailbox.append(callId, fromUserId, type, data, now, signalCoalesceWindowMs, maxSignalsPerEntry);
+            journal(OP_SIGNAL, toUserId, String.valueOf(seq), callId, fromUserId, type, data);
+        }
+        footprint.onSignalsChanged(toUserId, 1, data.length());
+    }
+    
     public List<WebRTCSignal> getWebRTCSignals(String userId) {
-        Queue<WebRTCSignal> signals = webrtcSignals.get(userId);
-        if (signals == null || signals.isEmpty()) {
+        SignalMailbox mailbox = webrtcSignals.get(userId);
+        if (mailbox == null) {
             return new ArrayList<>();
         }
         
-        // Retornar copia de las señales pendientes
-        return new ArrayList<>(signals);
+        // Una señal por elemento (los candidatos agrupados se expanden)
+        return mailbox.fetchSignals(userId);
+    }
+    
+    /**
+     * Señales pendientes agrupadas por entrada, para confirmarlas en lote.
+     */
+    public List<SignalBatch> getWebRTCSignalBatches(String userId) {
+        SignalMailbox mailbox = webrtcSignals.get(userId);
+        if (mailbox == null) {
+            return new ArrayList<>();
+        }
+        return mailbox.fetchBatches();
     }
     
     public void acknowledgeWebRTCSignal(String callId, String userId, int signalIndex) {
-        Queue<WebRTCSignal> signals = webrtcSignals.get(userId);
-        if (signals == null) return;
-        
-        // Convertir a lista para acceso por índice
-        List<WebRTCSignal> signalList = new ArrayList<>(signals);
-        if (signalIndex >= 0 && signalIndex < signalList.size()) {
-            WebRTCSignal signalToRemove = signalList.get(signalIndex);
-            signals.remove(signalToRemove);
+        SignalMailbox mailbox = webrtcSignals.get(userId);
+        if (mailbox == null) return;
+        
+        long[] removed;
+        synchronized (mailbox) {
+            removed = mailbox.removeAt(signalIndex);
+            if (removed != null) {
+                journal(OP_ACK_SIGNAL, userId, String.valueOf(removed[0]), String.valueOf(removed[1]));
+            }
+        }
+        if (removed != null) {
+            footprint.onSignalsChanged(userId, -1, -removed[2]);
             System.out.println("✓ Señal WebRTC confirmada por " + userId);
         }
     }
+    
+    /**
+     * Confirma todas las entradas con secuencia hasta upToSeq.
+     */
+    public void acknowledgeWebRTCSignals(String userId, long upToSeq) {
+        SignalMailbox mailbox = webrtcSignals.get(userId);
+        if (mailbox == null) return;
+        
+        long[] removed;
+        synchronized (mailbox) {
+            removed = mailbox.acknowledgeUpTo(upToSeq);
+            if (removed[0] > 0) {
+                journal(OP_ACK_SIGNALS, userId, String.valueOf(upToSeq));
+            }
+        }
+        if (removed[0] > 0) {
+            footprint.onSignalsChanged(userId, -removed[0], -removed[1]);
+        }
+    }
 }
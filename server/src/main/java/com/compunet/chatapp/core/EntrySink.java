@@ -0,0 +1,13 @@
+package com.compunet.chatapp.core;
+
+import java.io.IOException;
+
+/**
+ * Destino de las entradas (operación y argumentos, en el formato del journal)
+ * que ChatCore entrega al exportar su estado.
+ */
+@FunctionalInterface
+public interface EntrySink {
+    
+    void accept(String op, String[] args) throws IOException;
+}
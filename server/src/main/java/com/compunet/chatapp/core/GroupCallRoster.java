@@ -0,0 +1,147 @@
+package com.compunet.chatapp.core;
+
+import compunet.RosterDelta;
+import compunet.RosterEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Participantes de una llamada grupal con versión y historial de cambios.
+ * Unirse o salir es O(1) (no se reconstruye el arreglo de participantes) y cada cambio
+ * incrementa la versión y se guarda en un anillo de tamaño fijo, reservado con el primer
+ * cambio (ChatCore descarta el roster cuando la llamada termina). Los clientes piden los
+ * cambios desde la última versión que conocen; solo si esa versión ya salió del anillo
+ * reciben una instantánea completa, que se reconstruye como máximo una vez por intervalo.
+ */
+class GroupCallRoster {
+    
+    private static final String[] EMPTY = new String[0];
+    
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    private final int historySize;
+    private RosterEvent[] history; // null hasta el primer cambio
+    private long version;
+    
+    // Instantánea reutilizada entre clientes (y para VoiceCall.participants)
+    private String[] snapshot = EMPTY;
+    private long snapshotVersion;
+    private long snapshotAt;
+    
+    GroupCallRoster(int historySize) {
+        if (historySize <= 0) {
+            throw new IllegalArgumentException("El historial del roster debe ser positivo");
+        }
+        this.historySize = historySize;
+    }
+    
+    /**
+     * Agrega al participante. Retorna la nueva versión, o -1 si ya estaba.
+     */
+    synchronized long join(String userId) {
+        if (!members.add(userId)) {
+            return -1;
+        }
+        return record(++version, userId, true);
+    }
+    
+    /**
+     * Quita al participante. Retorna la nueva versión, o -1 si no estaba.
+     */
+    synchronized long leave(String userId) {
+        if (!members.remove(userId)) {
+            return -1;
+        }
+        return record(++version, userId, false);
+    }
+    
+    /**
+     * Aplica un cambio replicado con la versión asignada por el primario.
+     */
+    synchronized void applyEvent(long eventVersion, String userId, boolean joined) {
+        if (joined) {
+            members.add(userId);
+        } else {
+            members.remove(userId);
+        }
+        record(eventVersion, userId, joined);
+        version = Math.max(version, eventVersion);
+    }
+    
+    private long record(long eventVersion, String userId, boolean joined) {
+        if (history == null) {
+            history = new RosterEvent[historySize];
+        }
+        history[(int) (eventVersion % history.length)] = new RosterEvent(eventVersion, userId, joined);
+        return eventVersion;
+    }
+    
+    boolean contains(String userId) {
+        return members.contains(userId);
+    }
+    
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+    
+    // El anillo cubre los cambios posteriores a fromVersion
+    private boolean historyCovers(long fromVersion) {
+        return fromVersion >= version - historySize;
+    }
+    
+    private List<RosterEvent> eventsAfter(long fromVersion) {
+        List<RosterEvent> events = new ArrayList<>((int) (version - fromVersion));
+        for (long v = fromVersion + 1; v <= version; v++) {
+            RosterEvent event = history[(int) (v % history.length)];
+            if (event != null && event.version == v) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+    
+    /**
+     * Instantánea de los participantes; se reconstruye solo si cambió la versión y
+     * pasó el intervalo mínimo desde la anterior.
+     */
+    synchronized String[] participants(long now, long minSnapshotIntervalMs) {
+        refreshSnapshot(now, minSnapshotIntervalMs);
+        return snapshot;
+    }
+    
+    private void refreshSnapshot(long now, long minSnapshotIntervalMs) {
+        boolean stale = snapshotVersion != version;
+        boolean tooOld = !historyCovers(snapshotVersion);
+        if (tooOld || (stale && now - snapshotAt >= minSnapshotIntervalMs)) {
+            snapshot = members.toArray(EMPTY);
+            snapshotVersion = version;
+            snapshotAt = now;
+        }
+    }
+    
+    /**
+     * Cambios desde sinceVersion, o instantánea más cambios si el anillo ya no los tiene.
+     */
+    synchronized RosterDelta delta(String callId, long sinceVersion, long now, long minSnapshotIntervalMs) {
+        RosterDelta delta = new RosterDelta();
+        delta.callId = callId;
+        delta.version = version;
+        
+        // Una versión posterior a la actual viene de otro roster (p. ej. antes de una promoción):
+        // el cliente no puede aplicar cambios sobre ella y recibe la instantánea
+        if (sinceVersion > 0 && sinceVersion <= version && historyCovers(sinceVersion)) {
+            delta.full = false;
+            delta.participants = EMPTY;
+            delta.events = eventsAfter(sinceVersion).toArray(new RosterEvent[0]);
+            return delta;
+        }
+        
+        refreshSnapshot(now, minSnapshotIntervalMs);
+        delta.full = true;
+        delta.snapshotVersion = snapshotVersion;
+        delta.participants = snapshot;
+        delta.events = eventsAfter(snapshotVersion).toArray(new RosterEvent[0]);
+        return delta;
+    }
+}
@@ -0,0 +1,55 @@
+package com.compunet.chatapp.core;
+
+import com.compunet.chatapp.util.LongObjectHashMap;
+import compunet.Message;
+
+/**
+ * Índice global ID de mensaje -> (conversación, posición, mensaje).
+ * Dividido en franjas con su propio lock para que los envíos concurrentes no
+ * compitan por un único mapa; cada franja es un mapa long -> objeto sin boxing.
+ */
+class MessageIdIndex {
+    
+    // Ubicación de un mensaje; chatKey es la misma instancia que usa la conversación
+    static final class Location {
+        final String chatKey;
+        final long seq;
+        final Message message;
+        
+        Location(String chatKey, long seq, Message message) {
+            this.chatKey = chatKey;
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+    
+    private static final int STRIPES = 64;
+    
+    @SuppressWarnings("unchecked")
+    private final LongObjectHashMap<Location>[] stripes = new LongObjectHashMap[STRIPES];
+    
+    MessageIdIndex() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LongObjectHashMap<>(1024);
+        }
+    }
+    
+    // Los 12 bits bajos (secuencia) y el milisegundo reparten bien los IDs consecutivos
+    private LongObjectHashMap<Location> stripeOf(long id) {
+        return stripes[(int) ((id ^ (id >>> 22)) & (STRIPES - 1))];
+    }
+    
+    void put(long id, Location location) {
+        LongObjectHashMap<Location> stripe = stripeOf(id);
+        synchronized (stripe) {
+            stripe.put(id, location);
+        }
+    }
+    
+    Location get(long id) {
+        LongObjectHashMap<Location> stripe = stripeOf(id);
+        synchronized (stripe) {
+            return stripe.get(id);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.compunet.chatapp.core;
+
+import compunet.Message;
+import java.util.Collection;
+
+/**
+ * Observador de los mensajes que ChatCore agrega a una conversación (y de los demás
+ * cambios que alteran lo que un usuario ve de ella).
+ * Se invoca en el hilo que hizo el cambio, después de aplicarlo, por lo que debe ser rápido.
+ */
+public interface MessageListener {
+    
+    // chatKey: clave normalizada de la conversación directa o groupId
+    void onMessageAppended(String chatKey, Message message);
+    
+    // Contenido del mensaje cambiado por una edición o eliminación (message ya tiene el nuevo)
+    default void onMessageChanged(String chatKey, Message message, String oldContent) {
+    }
+    
+    // Marca de lectura de userId en la conversación movida (markRead o su réplica)
+    default void onReadMarkMoved(String userId, String chatKey) {
+    }
+    
+    // Usuarios agregados al grupo, al crearlo o después
+    default void onMembersAdded(String groupId, Collection<String> userIds) {
+    }
+}
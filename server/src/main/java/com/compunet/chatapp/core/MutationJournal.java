@@ -0,0 +1,11 @@
+package com.compunet.chatapp.core;
+
+/**
+ * Registro de las mutaciones aplicadas sobre ChatCore.
+ * Cada entrada lleva el estado resultante (IDs y timestamps ya asignados),
+ * de modo que otra instancia pueda reproducirla con ChatCore.applyReplicated.
+ */
+public interface MutationJournal {
+    
+    void record(String op, String... args);
+}
@@ -0,0 +1,179 @@
+package com.compunet.chatapp.core;
+
+import compunet.SignalBatch;
+import compunet.WebRTCSignal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Señales WebRTC pendientes de un destinatario.
+ * Cada entrada guarda un solo campo de datos por señal (en lugar del par sdp/candidate
+ * con uno siempre vacío) y el destinatario queda implícito en el buzón. Los candidatos ICE
+ * de una misma llamada y remitente que llegan dentro de la ventana de agrupación se
+ * acumulan en la misma entrada mientras el destinatario no la haya leído.
+ */
+class SignalMailbox {
+    
+    static final String OFFER = "offer";
+    static final String ANSWER = "answer";
+    static final String CANDIDATE = "ice-candidate";
+    
+    // Una o varias señales del mismo tipo, llamada y remitente
+    static final class Entry {
+        final long seq;
+        final String callId;
+        final String fromUserId;
+        final String type;
+        final List<String> data = new ArrayList<>(1);
+        final long createdAt;
+        boolean delivered; // ya leída: no se le agregan más candidatos
+        
+        Entry(long seq, String callId, String fromUserId, String type, long createdAt) {
+            this.seq = seq;
+            this.callId = callId;
+            this.fromUserId = fromUserId;
+            this.type = type;
+            this.createdAt = createdAt;
+        }
+    }
+    
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long lastSeq;
+    
+    // Reutiliza las constantes para no guardar una copia del tipo por señal
+    static String canonicalType(String type) {
+        switch (type) {
+            case OFFER: return OFFER;
+            case ANSWER: return ANSWER;
+            case CANDIDATE: return CANDIDATE;
+            default: return type;
+        }
+    }
+    
+    /**
+     * Agrega una señal y retorna la secuencia de la entrada que la contiene.
+     */
+    synchronized long append(String callId, String fromUserId, String type, String data,
+                             long now, long coalesceWindowMs, int maxPerEntry) {
+        Entry tail = entries.peekLast();
+        if (CANDIDATE.equals(type) && tail != null && !tail.delivered && tail.type == CANDIDATE
+                && tail.callId.equals(callId) && tail.fromUserId.equals(fromUserId)
+                && now - tail.createdAt <= coalesceWindowMs && tail.data.size() < maxPerEntry) {
+            tail.data.add(data);
+            return tail.seq;
+        }
+        
+        Entry entry = new Entry(++lastSeq, callId, fromUserId, canonicalType(type), now);
+        entry.data.add(data);
+        entries.addLast(entry);
+        return entry.seq;
+    }
+    
+    /**
+     * Aplica una señal replicada en la entrada indicada (la crea si no existe).
+     */
+    synchronized void applyAppend(long seq, String callId, String fromUserId, String type, String data) {
+        Entry tail = entries.peekLast();
+        if (tail == null || tail.seq != seq) {
+            tail = new Entry(seq, callId, fromUserId, canonicalType(type), System.currentTimeMillis());
+            entries.addLast(tail);
+            lastSeq = Math.max(lastSeq, seq);
+        }
+        tail.data.add(data);
+    }
+    
+    /**
+     * Entradas pendientes, para entrega en lote.
+     */
+    synchronized List<SignalBatch> fetchBatches() {
+        List<SignalBatch> batches = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            entry.delivered = true;
+            batches.add(new SignalBatch(entry.seq, entry.callId, entry.fromUserId, entry.type,
+                entry.data.toArray(new String[0])));
+        }
+        return batches;
+    }
+    
+    /**
+     * Vista de una señal por elemento (formato de getWebRTCSignals).
+     */
+    synchronized List<WebRTCSignal> fetchSignals(String toUserId) {
+        List<WebRTCSignal> signals = new ArrayList<>();
+        for (Entry entry : entries) {
+            entry.delivered = true;
+            boolean isSdp = OFFER.equals(entry.type) || ANSWER.equals(entry.type);
+            for (String data : entry.data) {
+                signals.add(new WebRTCSignal(entry.callId, entry.fromUserId, toUserId, entry.type,
+                    isSdp ? data : "", isSdp ? "" : data));
+            }
+        }
+        return signals;
+    }
+    
+    /**
+     * Elimina las entradas con secuencia hasta upToSeq.
+     * Retorna {señales eliminadas, bytes de datos eliminados}.
+     */
+    synchronized long[] acknowledgeUpTo(long upToSeq) {
+        long[] removed = new long[2];
+        while (!entries.isEmpty() && entries.peekFirst().seq <= upToSeq) {
+            Entry entry = entries.pollFirst();
+            removed[0] += entry.data.size();
+            removed[1] += dataBytes(entry.data);
+        }
+        return removed;
+    }
+    
+    private static long dataBytes(List<String> data) {
+        long bytes = 0;
+        for (String item : data) {
+            bytes += item.length();
+        }
+        return bytes;
+    }
+    
+    /**
+     * Elimina la señal en la posición indicada de la vista de fetchSignals.
+     * Retorna {seq, índice dentro de la entrada, bytes eliminados} o null si la posición no existe.
+     */
+    synchronized long[] removeAt(int signalIndex) {
+        if (signalIndex < 0) {
+            return null;
+        }
+        
+        int offset = 0;
+        for (Entry entry : entries) {
+            if (signalIndex < offset + entry.data.size()) {
+                int item = signalIndex - offset;
+                long bytes = removeItem(entry.seq, item);
+                return new long[]{entry.seq, item, bytes};
+            }
+            offset += entry.data.size();
+        }
+        return null;
+    }
+    
+    /**
+     * Elimina un elemento de una entrada (la entrada completa si queda vacía).
+     * Retorna los bytes de datos eliminados, o -1 si el elemento no existe.
+     */
+    synchronized long removeItem(long seq, int item) {
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.seq == seq) {
+                long bytes = -1;
+                if (item >= 0 && item < entry.data.size()) {
+                    bytes = entry.data.remove(item).length();
+                }
+                if (entry.data.isEmpty()) {
+                    it.remove();
+                }
+                return bytes;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,120 @@
+package com.compunet.chatapp.core;
+
+import com.compunet.chatapp.util.IntLongHashMap;
+import compunet.Message;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contadores de no leídos mantenidos de forma incremental.
+ * Cada conversación tiene una secuencia (posición del último mensaje) y cada usuario
+ * una marca de lectura por conversación, guardada en un mapa primitivo ordinal -> secuencia.
+ * Un mensaje nuevo solo incrementa la secuencia de su conversación (O(1), sin importar
+ * el número de miembros) y no leídos = secuencia - marca de lectura.
+ */
+class UnreadTracker {
+    
+    // Estado por conversación (clave normalizada o groupId)
+    static final class ChatCounter {
+        final int ordinal;
+        long lastSeq; // protegido por la cola de mensajes de la conversación
+        volatile long publishedSeq;
+        volatile Message lastMessage;
+        
+        ChatCounter(int ordinal) {
+            this.ordinal = ordinal;
+        }
+    }
+    
+    private final Map<String, ChatCounter> chats = new ConcurrentHashMap<>();
+    private final AtomicInteger chatOrdinals = new AtomicInteger();
+    
+    // Usuario -> ordinal, y por ordinal de usuario: ordinal de chat -> secuencia leída
+    private final Map<String, Integer> userOrdinals = new ConcurrentHashMap<>();
+    private volatile IntLongHashMap[] readMarks = new IntLongHashMap[64];
+    private int userCount; // protegido por this
+    
+    private ChatCounter chat(String chatKey) {
+        return chats.computeIfAbsent(chatKey, k -> new ChatCounter(chatOrdinals.getAndIncrement()));
+    }
+    
+    private IntLongHashMap marksOf(String userId) {
+        Integer ordinal = userOrdinals.get(userId);
+        if (ordinal != null) {
+            IntLongHashMap[] marks = readMarks;
+            if (ordinal < marks.length && marks[ordinal] != null) {
+                return marks[ordinal];
+            }
+        }
+        
+        synchronized (this) {
+            ordinal = userOrdinals.get(userId);
+            if (ordinal == null) {
+                ordinal = userCount++;
+                IntLongHashMap[] marks = readMarks;
+                if (ordinal == marks.length) {
+                    marks = Arrays.copyOf(marks, marks.length * 2);
+                }
+                marks[ordinal] = new IntLongHashMap();
+                readMarks = marks;
+                userOrdinals.put(userId, ordinal);
+            }
+            return readMarks[ordinal];
+        }
+    }
+    
+    /**
+     * Registra un mensaje agregado a la conversación y retorna su secuencia.
+     * Debe llamarse mientras se tiene el lock de la cola de la conversación,
+     * para que la secuencia coincida con la posición del mensaje.
+     */
+    long onAppend(String chatKey, Message message) {
+        ChatCounter chat = chat(chatKey);
+        long seq = ++chat.lastSeq;
+        chat.lastMessage = message;
+        chat.publishedSeq = seq;
+        
+        // El remitente ya leyó su propio mensaje
+        markRead(message.senderId, chatKey, seq);
+        return seq;
+    }
+    
+    /**
+     * Avanza la marca de lectura (nunca retrocede ni pasa del último mensaje).
+     * Retorna la marca resultante.
+     */
+    long markRead(String userId, String chatKey, long upToSeq) {
+        ChatCounter chat = chat(chatKey);
+        long target = Math.min(upToSeq, chat.publishedSeq);
+        IntLongHashMap marks = marksOf(userId);
+        synchronized (marks) {
+            return marks.putMax(chat.ordinal, target);
+        }
+    }
+    
+    long lastSeq(String chatKey) {
+        ChatCounter chat = chats.get(chatKey);
+        return chat != null ? chat.publishedSeq : 0;
+    }
+    
+    Message lastMessage(String chatKey) {
+        ChatCounter chat = chats.get(chatKey);
+        return chat != null ? chat.lastMessage : null;
+    }
+    
+    int unreadCount(String userId, String chatKey) {
+        ChatCounter chat = chats.get(chatKey);
+        if (chat == null) {
+            return 0;
+        }
+        
+        long read;
+        IntLongHashMap marks = marksOf(userId);
+        synchronized (marks) {
+            read = marks.get(chat.ordinal, 0);
+        }
+        return (int) Math.max(0, chat.publishedSeq - read);
+    }
+}
@@ -0,0 +1,91 @@
+package com.compunet.chatapp.dispatch;
+
+import compunet.LaneStats;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool de hilos fijo con cola acotada y métricas, usado por los carriles de despacho
+ * y por las particiones del motor particionado (un solo hilo).
+ */
+class BoundedExecutor {
+    
+    private final String name;
+    private final String description; // para el mensaje de rechazo, ej. "carril bulk"
+    private final int queueLimit;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    
+    BoundedExecutor(String name, String description, int threads, int queueLimit) {
+        if (threads <= 0 || queueLimit <= 0) {
+            throw new IllegalArgumentException("Hilos y longitud de cola de " + name + " deben ser positivos");
+        }
+        
+        this.name = name;
+        this.description = description;
+        this.queueLimit = queueLimit;
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueLimit), r -> {
+                Thread t = new Thread(r, "dispatch-" + name + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+    
+    /**
+     * Ejecuta la tarea en el pool. Si la cola está llena la invocación se
+     * rechaza de inmediato (futuro completado con error).
+     */
+    <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long enqueuedAt = System.nanoTime();
+        
+        try {
+            executor.execute(() -> {
+                queueWaitNanos.addAndGet(System.nanoTime() - enqueuedAt);
+                dispatched.incrementAndGet();
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+            maxQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new RuntimeException("Servidor ocupado: " + description + " saturado"));
+        }
+        return future;
+    }
+    
+    void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    LaneStats getStats() {
+        long count = dispatched.get();
+        
+        LaneStats stats = new LaneStats();
+        stats.lane = name;
+        stats.threads = executor.getMaximumPoolSize();
+        stats.activeThreads = executor.getActiveCount();
+        stats.queueDepth = executor.getQueue().size();
+        stats.queueLimit = queueLimit;
+        stats.maxQueueDepth = maxQueueDepth.get();
+        stats.completed = executor.getCompletedTaskCount();
+        stats.rejected = rejected.get();
+        stats.avgQueueWaitMs = count > 0 ? queueWaitNanos.get() / (count * 1_000_000.0) : 0;
+        return stats;
+    }
+}
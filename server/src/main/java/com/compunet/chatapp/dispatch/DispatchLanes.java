@@ -0,0 +1,124 @@
+package com.compunet.chatapp.dispatch;
+
+import compunet.LaneStats;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Properties;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carriles de despacho. Los servants (AMD) liberan el hilo de Ice de inmediato y
+ * ejecutan cada operación en el pool de su carril, con cola acotada: una avalancha
+ * de historiales pesados llena solo la cola del carril bulk y no retrasa el
+ * establecimiento de llamadas ni la señalización.
+ *
+ * Si hay un motor particionado (Engine.Mode=partitioned), las mutaciones con clave
+ * de partición se ejecutan en la partición dueña de la clave en lugar del carril.
+ *
+ * Configuración (por carril: signalling, messaging, bulk):
+ *   Dispatch.Lane.signalling.Threads=4
+ *   Dispatch.Lane.signalling.QueueLimit=1000
+ */
+public class DispatchLanes {
+    
+    /**
+     * Operación sin valor de retorno que puede lanzar excepciones.
+     */
+    @FunctionalInterface
+    public interface Action {
+        void run() throws Exception;
+    }
+    
+    private final Map<Lane, BoundedExecutor> lanes = new EnumMap<>(Lane.class);
+    private final PartitionedEngine engine;
+    
+    private DispatchLanes(Properties props, PartitionedEngine engine) {
+        for (Lane lane : Lane.values()) {
+            String prefix = "Dispatch.Lane." + lane.getConfigName();
+            int threads = props.getPropertyAsIntWithDefault(prefix + ".Threads", lane.getDefaultThreads());
+            int queueLimit = props.getPropertyAsIntWithDefault(prefix + ".QueueLimit", lane.getDefaultQueueLimit());
+            if (threads <= 0 || queueLimit <= 0) {
+                throw new IllegalArgumentException(prefix + ".Threads y .QueueLimit deben ser positivos");
+            }
+            lanes.put(lane, new BoundedExecutor(lane.getConfigName(), "carril " + lane.getConfigName(),
+                threads, queueLimit));
+        }
+        this.engine = engine;
+    }
+    
+    public static DispatchLanes fromProperties(Communicator communicator) {
+        return new DispatchLanes(communicator.getProperties(), PartitionedEngine.fromProperties(communicator));
+    }
+    
+    public static DispatchLanes fromProperties(Properties props) {
+        return new DispatchLanes(props, null);
+    }
+    
+    public boolean isPartitioned() {
+        return engine != null;
+    }
+    
+    public void shutdown() {
+        for (BoundedExecutor executor : lanes.values()) {
+            executor.shutdown();
+        }
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+    
+    // ========== Despacho ==========
+    
+    /**
+     * Ejecuta la tarea en el carril indicado. Si la cola del carril está llena
+     * la invocación se rechaza de inmediato (futuro completado con error).
+     */
+    public <T> CompletableFuture<T> submit(Lane lane, Callable<T> task) {
+        return lanes.get(lane).submit(task);
+    }
+    
+    public CompletableFuture<Void> run(Lane lane, Action action) {
+        return submit(lane, () -> {
+            action.run();
+            return null;
+        });
+    }
+    
+    /**
+     * Ejecuta una mutación sobre la clave indicada (conversación, grupo, llamada o usuario).
+     * Con motor particionado se ejecuta en la partición dueña de la clave; si no, en el carril.
+     * La clave debe ser de este proceso: las de otro nodo se reenvían sin pasar por aquí.
+     */
+    public <T> CompletableFuture<T> submit(Lane lane, String partitionKey, Callable<T> task) {
+        if (engine == null) {
+            return submit(lane, task);
+        }
+        return engine.submit(partitionKey, task);
+    }
+    
+    public CompletableFuture<Void> run(Lane lane, String partitionKey, Action action) {
+        return submit(lane, partitionKey, () -> {
+            action.run();
+            return null;
+        });
+    }
+    
+    // ========== Métricas ==========
+    
+    public LaneStats[] getStats() {
+        List<LaneStats> stats = new ArrayList<>();
+        for (BoundedExecutor executor : lanes.values()) {
+            stats.add(executor.getStats());
+        }
+        if (engine != null) {
+            for (LaneStats partitionStats : engine.getStats()) {
+                stats.add(partitionStats);
+            }
+        }
+        return stats.toArray(new LaneStats[0]);
+    }
+}
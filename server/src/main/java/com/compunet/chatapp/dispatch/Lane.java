@@ -0,0 +1,35 @@
+package com.compunet.chatapp.dispatch;
+
+/**
+ * Clases de operación, cada una atendida por su propio pool de hilos y cola acotada.
+ */
+public enum Lane {
+    // Señalización WebRTC, control de llamadas y presencia: baratas y sensibles a la latencia
+    SIGNALLING("signalling", 4, 1000),
+    // Mensajes de texto, usuarios y grupos
+    MESSAGING("messaging", 8, 2000),
+    // Historiales, audios, listados globales y búsqueda: pesadas
+    BULK("bulk", 4, 200);
+    
+    private final String configName;
+    private final int defaultThreads;
+    private final int defaultQueueLimit;
+    
+    Lane(String configName, int defaultThreads, int defaultQueueLimit) {
+        this.configName = configName;
+        this.defaultThreads = defaultThreads;
+        this.defaultQueueLimit = defaultQueueLimit;
+    }
+    
+    public String getConfigName() {
+        return configName;
+    }
+    
+    int getDefaultThreads() {
+        return defaultThreads;
+    }
+    
+    int getDefaultQueueLimit() {
+        return defaultQueueLimit;
+    }
+}
@@ -0,0 +1,89 @@
+package com.compunet.chatapp.dispatch;
+
+import compunet.LaneStats;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Motor de ejecución particionado con un solo escritor por partición.
+ * Cada clave (conversación, grupo, llamada o buzón de usuario) pertenece a una
+ * partición atendida por un único hilo (event loop), de modo que todas las mutaciones
+ * de una misma clave se ejecutan en orden. Las particiones no son dueñas de los datos:
+ * el estado sigue en los mapas concurrentes y monitores de ChatCore y las lecturas no pasan
+ * por aquí, así que se reduce la contención entre escritores de una clave, no los locks.
+ * Solo reciben tareas las claves de este proceso: en modo de varios procesos los servants
+ * reenvían al dueño remoto y resuelven los usuarios de otros nodos antes de elegir
+ * partición, así que una tarea de partición no invoca a otros nodos.
+ *
+ * Configuración:
+ *   Engine.Mode=partitioned          (por defecto: shared, ejecución en los carriles)
+ *   Engine.Partitions=8              (por defecto: número de procesadores)
+ *   Engine.QueueLimit=4096           (tareas pendientes por partición)
+ */
+public class PartitionedEngine {
+    
+    private final BoundedExecutor[] partitions;
+    
+    public PartitionedEngine(int partitionCount, int queueLimit) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Engine.Partitions debe ser positivo");
+        }
+        
+        partitions = new BoundedExecutor[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new BoundedExecutor("partition-" + i, "partición " + i, 1, queueLimit);
+        }
+    }
+    
+    /**
+     * Crea el motor desde Engine.Mode. Retorna null en el modo compartido (por defecto).
+     */
+    public static PartitionedEngine fromProperties(Communicator communicator) {
+        Properties props = communicator.getProperties();
+        String mode = props.getPropertyWithDefault("Engine.Mode", "shared");
+        switch (mode.toLowerCase()) {
+            case "shared":
+                return null;
+            case "partitioned":
+                return new PartitionedEngine(
+                    props.getPropertyAsIntWithDefault("Engine.Partitions", Runtime.getRuntime().availableProcessors()),
+                    props.getPropertyAsIntWithDefault("Engine.QueueLimit", 4096));
+            default:
+                throw new IllegalArgumentException("Engine.Mode inválido: " + mode);
+        }
+    }
+    
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+    
+    public int partitionOf(String key) {
+        // Mezcla los bits altos del hash para repartir claves con prefijos comunes
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, partitions.length);
+    }
+    
+    /**
+     * Ejecuta la tarea en la partición dueña de la clave.
+     */
+    public <T> CompletableFuture<T> submit(String key, Callable<T> task) {
+        return partitions[partitionOf(key)].submit(task);
+    }
+    
+    public void shutdown() {
+        for (BoundedExecutor partition : partitions) {
+            partition.shutdown();
+        }
+    }
+    
+    public LaneStats[] getStats() {
+        LaneStats[] stats = new LaneStats[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            stats[i] = partitions[i].getStats();
+        }
+        return stats;
+    }
+}
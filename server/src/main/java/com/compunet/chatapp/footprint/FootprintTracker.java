@@ -0,0 +1,208 @@
+package com.compunet.chatapp.footprint;
+
+import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.core.MessageListener;
+import compunet.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contabilidad incremental de la memoria que ocupan los datos de ChatCore.
+ * Cada mensaje agregado y cada señal agregada o eliminada actualiza contadores por
+ * conversación, grupo, usuario remitente y destinatario de señales, sin recorrer los
+ * historiales. Los bytes son una estimación (longitud de los strings más un costo fijo
+ * por objeto), suficiente para encontrar a los responsables sin un volcado del heap.
+ *
+ * Al superar la marca blanda se emite una alerta con los mayores consumidores;
+ * por encima de la marca dura se rechazan los audios nuevos.
+ */
+public class FootprintTracker implements MessageListener {
+    
+    // Costo fijo estimado de un Message (objeto, strings y nodo de la cola)
+    private static final long MESSAGE_OVERHEAD_BYTES = 160;
+    
+    // Costo fijo estimado de una señal pendiente
+    private static final long SIGNAL_OVERHEAD_BYTES = 48;
+    
+    // Contadores de una conversación, grupo, usuario o buzón de señales
+    private static final class Usage {
+        final AtomicLong contentBytes = new AtomicLong();
+        final AtomicLong audioBytes = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong estimatedBytes = new AtomicLong();
+    }
+    
+    private final Map<FootprintKind, Map<String, Usage>> usages = new EnumMap<>(FootprintKind.class);
+    
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong totalMessages = new AtomicLong();
+    private final AtomicLong totalAudioBytes = new AtomicLong();
+    private final AtomicLong totalSignals = new AtomicLong();
+    
+    // Marcas de memoria (0 = desactivada)
+    private volatile long softLimitBytes;
+    private volatile long hardLimitBytes;
+    private final AtomicBoolean aboveSoftLimit = new AtomicBoolean();
+    
+    public FootprintTracker() {
+        for (FootprintKind kind : FootprintKind.values()) {
+            usages.put(kind, new ConcurrentHashMap<>());
+        }
+    }
+    
+    public void setWatermarks(long softLimitBytes, long hardLimitBytes) {
+        if (softLimitBytes < 0 || hardLimitBytes < 0 || (hardLimitBytes > 0 && softLimitBytes > hardLimitBytes)) {
+            throw new IllegalArgumentException("Marcas de memoria inválidas");
+        }
+        this.softLimitBytes = softLimitBytes;
+        this.hardLimitBytes = hardLimitBytes;
+    }
+    
+    private Usage usageOf(FootprintKind kind, String key) {
+        return usages.get(kind).computeIfAbsent(key, k -> new Usage());
+    }
+    
+    // ========== Actualización incremental ==========
+    
+    @Override
+    public void onMessageAppended(String chatKey, Message message) {
+        long contentBytes = message.content.length();
+        long estimated = MESSAGE_OVERHEAD_BYTES + contentBytes + message.id.length() + message.senderId.length()
+            + message.senderName.length() + message.recipientId.length();
+        boolean isAudio = message.messageType == MessageType.AUDIO;
+        
+        FootprintKind chatKind = ChatCore.isGroupChatId(chatKey) ? FootprintKind.GROUP : FootprintKind.DIRECT;
+        add(usageOf(chatKind, chatKey), contentBytes, isAudio, 1, estimated);
+        add(usageOf(FootprintKind.USER, message.senderId), contentBytes, isAudio, 1, estimated);
+        
+        totalMessages.incrementAndGet();
+        if (isAudio) {
+            totalAudioBytes.addAndGet(contentBytes);
+        }
+        addTotal(estimated);
+    }
+    
+    // Edición o eliminación: solo cambia el tamaño del contenido, no la cantidad de mensajes
+    @Override
+    public void onMessageChanged(String chatKey, Message message, String oldContent) {
+        long delta = message.content.length() - oldContent.length();
+        if (delta == 0) {
+            return;
+        }
+        boolean isAudio = message.messageType == MessageType.AUDIO;
+        
+        FootprintKind chatKind = ChatCore.isGroupChatId(chatKey) ? FootprintKind.GROUP : FootprintKind.DIRECT;
+        add(usageOf(chatKind, chatKey), delta, isAudio, 0, delta);
+        add(usageOf(FootprintKind.USER, message.senderId), delta, isAudio, 0, delta);
+        
+        if (isAudio) {
+            totalAudioBytes.addAndGet(delta);
+        }
+        addTotal(delta);
+    }
+    
+    /**
+     * Registra señales agregadas (count > 0) o eliminadas (count < 0) del buzón del usuario.
+     * dataBytes lleva el mismo signo que count.
+     */
+    public void onSignalsChanged(String userId, long count, long dataBytes) {
+        long estimated = dataBytes + count * SIGNAL_OVERHEAD_BYTES;
+        add(usageOf(FootprintKind.SIGNALS, userId), dataBytes, false, count, estimated);
+        totalSignals.addAndGet(count);
+        addTotal(estimated);
+    }
+    
+    private static void add(Usage usage, long contentBytes, boolean isAudio, long count, long estimated) {
+        usage.contentBytes.addAndGet(contentBytes);
+        if (isAudio) {
+            usage.audioBytes.addAndGet(contentBytes);
+        }
+        usage.count.addAndGet(count);
+        usage.estimatedBytes.addAndGet(estimated);
+    }
+    
+    private void addTotal(long estimated) {
+        long total = totalBytes.addAndGet(estimated);
+        long soft = softLimitBytes;
+        if (soft <= 0) {
+            return;
+        }
+        
+        if (total > soft && aboveSoftLimit.compareAndSet(false, true)) {
+            System.err.println("⚠ Memoria estimada de ChatCore (" + total + " bytes) supera la marca blanda de " +
+                soft + " bytes. Mayores conversaciones: " + describe(top(FootprintKind.DIRECT, 3)) +
+                "; grupos: " + describe(top(FootprintKind.GROUP, 3)));
+        } else if (total < soft - soft / 10 && aboveSoftLimit.compareAndSet(true, false)) {
+            // Histéresis del 10% para no alternar alertas alrededor de la marca
+            System.out.println("✓ Memoria estimada de ChatCore de nuevo bajo la marca blanda (" + total + " bytes)");
+        }
+    }
+    
+    private static String describe(List<FootprintEntry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (FootprintEntry entry : entries) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.key).append('=').append(entry.estimatedBytes);
+        }
+        return sb.length() > 0 ? sb.toString() : "-";
+    }
+    
+    // ========== Consultas ==========
+    
+    public boolean isAboveHardLimit() {
+        long hard = hardLimitBytes;
+        return hard > 0 && totalBytes.get() > hard;
+    }
+    
+    /**
+     * Los k mayores consumidores del tipo indicado, de mayor a menor.
+     */
+    public List<FootprintEntry> top(FootprintKind kind, int k) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        
+        // Montículo de mínimos con los k mayores vistos hasta ahora
+        PriorityQueue<FootprintEntry> heap = new PriorityQueue<>(k + 1,
+            Comparator.comparingLong(entry -> entry.estimatedBytes));
+        for (Map.Entry<String, Usage> entry : usages.get(kind).entrySet()) {
+            Usage usage = entry.getValue();
+            long estimated = usage.estimatedBytes.get();
+            if (heap.size() == k && estimated <= heap.peek().estimatedBytes) {
+                continue;
+            }
+            heap.add(new FootprintEntry(entry.getKey(), usage.contentBytes.get(), usage.audioBytes.get(),
+                usage.count.get(), estimated));
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+        
+        List<FootprintEntry> result = new ArrayList<>(heap);
+        result.sort((a, b) -> Long.compare(b.estimatedBytes, a.estimatedBytes));
+        return result;
+    }
+    
+    public FootprintSummary getSummary() {
+        Runtime runtime = Runtime.getRuntime();
+        
+        FootprintSummary summary = new FootprintSummary();
+        summary.estimatedBytes = totalBytes.get();
+        summary.softLimitBytes = softLimitBytes;
+        summary.hardLimitBytes = hardLimitBytes;
+        summary.aboveSoftLimit = aboveSoftLimit.get();
+        summary.aboveHardLimit = isAboveHardLimit();
+        summary.messages = totalMessages.get();
+        summary.audioBytes = totalAudioBytes.get();
+        summary.pendingSignals = totalSignals.get();
+        summary.directConversations = usages.get(FootprintKind.DIRECT).size();
+        summary.groups = usages.get(FootprintKind.GROUP).size();
+        summary.heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+        summary.heapMaxBytes = runtime.maxMemory();
+        return summary;
+    }
+}
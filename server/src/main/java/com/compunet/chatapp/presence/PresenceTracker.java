@@ -0,0 +1,308 @@
+package com.compunet.chatapp.presence;
+
+import compunet.*;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Connection;
+import com.zeroc.Ice.Properties;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Presencia (en línea / desconectado) derivada del ciclo de vida de las conexiones Ice.
+ * Un usuario está en línea mientras tenga al menos una conexión asociada con attach();
+ * el callback de cierre (incluido el cierre por inactividad de ACM) lo desconecta y los
+ * heartbeats de ACM actualizan su última actividad.
+ *
+ * Los cambios no se difunden uno a uno: se marcan como pendientes y un flush periódico
+ * publica solo el estado final de cada usuario en la ventana (una conexión y desconexión
+ * rápida no genera ningún aviso). Cada suscriptor acumula a lo sumo una entrada por
+ * contacto, que retira en lote con poll(). Así un inicio de sesión masivo cuesta un
+ * lote por suscriptor y no un mensaje por cada par de usuarios.
+ *
+ * Configuración:
+ *   Presence.FlushIntervalMs=250
+ *   Presence.MaxWatchedPerUser=1000
+ */
+public class PresenceTracker {
+    
+    // Estado de presencia de un usuario
+    private static final class UserPresence {
+        int connections; // conexiones asociadas, protegido por this
+        long lastSeen;
+        PresenceStatus published = PresenceStatus.OFFLINE;
+        long version;
+    }
+    
+    private final Map<String, UserPresence> presences = new ConcurrentHashMap<>();
+    
+    // Conexión -> usuarios asociados a ella
+    private final Map<Connection, Set<String>> connectionUsers = new ConcurrentHashMap<>();
+    
+    // Usuarios con cambios pendientes de publicar
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    
+    // Contacto observado -> suscriptores, y suscriptor -> contactos observados
+    private final Map<String, Set<String>> watchers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> watching = new ConcurrentHashMap<>();
+    
+    // Suscriptor -> cambios por entregar (una entrada por contacto, la más reciente)
+    private final Map<String, Map<String, PresenceInfo>> inboxes = new ConcurrentHashMap<>();
+    
+    private final long flushIntervalMs;
+    private final int maxWatchedPerUser;
+    private final ScheduledExecutorService scheduler;
+    
+    public PresenceTracker(long flushIntervalMs, int maxWatchedPerUser) {
+        if (flushIntervalMs <= 0 || maxWatchedPerUser <= 0) {
+            throw new IllegalArgumentException("Configuración de presencia inválida");
+        }
+        
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxWatchedPerUser = maxWatchedPerUser;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    public static PresenceTracker fromProperties(Communicator communicator) {
+        Properties props = communicator.getProperties();
+        return new PresenceTracker(
+            props.getPropertyAsIntWithDefault("Presence.FlushIntervalMs", 250),
+            props.getPropertyAsIntWithDefault("Presence.MaxWatchedPerUser", 1000));
+    }
+    
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+    
+    private UserPresence presenceOf(String userId) {
+        return presences.computeIfAbsent(userId, k -> new UserPresence());
+    }
+    
+    // ========== Ciclo de vida de las conexiones ==========
+    
+    /**
+     * Asocia la conexión al usuario. El usuario queda en línea hasta que
+     * se cierren todas sus conexiones.
+     */
+    public void attach(String userId, Connection connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("La presencia requiere una conexión remota");
+        }
+        
+        boolean[] isNewConnection = new boolean[1];
+        Set<String> users = connectionUsers.computeIfAbsent(connection, c -> {
+            isNewConnection[0] = true;
+            return ConcurrentHashMap.newKeySet();
+        });
+        
+        if (users.add(userId)) {
+            UserPresence presence = presenceOf(userId);
+            synchronized (presence) {
+                presence.connections++;
+                presence.lastSeen = System.currentTimeMillis();
+            }
+            dirty.add(userId);
+        }
+        
+        // Los callbacks se instalan una sola vez por conexión
+        if (isNewConnection[0]) {
+            try {
+                connection.setHeartbeatCallback(this::onHeartbeat);
+                connection.setCloseCallback(this::onClose);
+            } catch (Exception e) {
+                // La conexión ya estaba cerrada
+                onClose(connection);
+            }
+        }
+    }
+    
+    private void onHeartbeat(Connection connection) {
+        Set<String> users = connectionUsers.get(connection);
+        if (users == null) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        for (String userId : users) {
+            UserPresence presence = presences.get(userId);
+            if (presence != null) {
+                synchronized (presence) {
+                    presence.lastSeen = now;
+                }
+            }
+        }
+    }
+    
+    private void onClose(Connection connection) {
+        Set<String> users = connectionUsers.remove(connection);
+        if (users == null) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        for (String userId : users) {
+            UserPresence presence = presences.get(userId);
+            if (presence != null) {
+                synchronized (presence) {
+                    presence.connections = Math.max(0, presence.connections - 1);
+                    presence.lastSeen = now;
+                }
+                dirty.add(userId);
+            }
+        }
+    }
+    
+    // ========== Consultas y suscripciones ==========
+    
+    public PresenceInfo getPresence(String userId) {
+        UserPresence presence = presences.get(userId);
+        if (presence == null) {
+            return new PresenceInfo(userId, PresenceStatus.OFFLINE, 0, 0);
+        }
+        
+        synchronized (presence) {
+            PresenceStatus status = presence.connections > 0 ? PresenceStatus.ONLINE : PresenceStatus.OFFLINE;
+            return new PresenceInfo(userId, status, presence.lastSeen, presence.version);
+        }
+    }
+    
+    public List<PresenceInfo> getPresence(Collection<String> userIds) {
+        List<PresenceInfo> result = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            result.add(getPresence(userId));
+        }
+        return result;
+    }
+    
+    /**
+     * Suscribe al usuario a los cambios de presencia de sus contactos y retorna
+     * el estado actual de todos ellos. Las suscripciones se descartan al desconectarse.
+     */
+    public List<PresenceInfo> subscribe(String subscriberId, Collection<String> contactIds) {
+        Set<String> watched = watching.computeIfAbsent(subscriberId, k -> ConcurrentHashMap.newKeySet());
+        inboxes.computeIfAbsent(subscriberId, k -> new LinkedHashMap<>());
+        
+        List<String> added = new ArrayList<>();
+        synchronized (watched) {
+            for (String contactId : contactIds) {
+                if (contactId.equals(subscriberId)) {
+                    continue;
+                }
+                if (watched.size() >= maxWatchedPerUser) {
+                    System.err.println("Límite de contactos observados alcanzado para " + subscriberId);
+                    break;
+                }
+                if (watched.add(contactId)) {
+                    added.add(contactId);
+                }
+            }
+        }
+        
+        for (String contactId : added) {
+            watchers.computeIfAbsent(contactId, k -> ConcurrentHashMap.newKeySet()).add(subscriberId);
+        }
+        return getPresence(new ArrayList<>(watched));
+    }
+    
+    /**
+     * Retira en un solo lote los cambios acumulados para el suscriptor.
+     */
+    public List<PresenceInfo> poll(String subscriberId) {
+        Map<String, PresenceInfo> inbox = inboxes.get(subscriberId);
+        if (inbox == null) {
+            return new ArrayList<>();
+        }
+        
+        synchronized (inbox) {
+            List<PresenceInfo> batch = new ArrayList<>(inbox.values());
+            inbox.clear();
+            return batch;
+        }
+    }
+    
+    private void unsubscribeAll(String subscriberId) {
+        inboxes.remove(subscriberId);
+        Set<String> watched = watching.remove(subscriberId);
+        if (watched == null) {
+            return;
+        }
+        
+        for (String contactId : watched) {
+            Set<String> subscribers = watchers.get(contactId);
+            if (subscribers != null) {
+                subscribers.remove(subscriberId);
+            }
+        }
+    }
+    
+    // ========== Publicación agrupada ==========
+    
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            System.err.println("Error publicando cambios de presencia: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Publica el estado final de los usuarios con cambios desde el último flush.
+     */
+    void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        
+        List<PresenceInfo> changes = new ArrayList<>();
+        for (Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+            String userId = it.next();
+            it.remove();
+            
+            UserPresence presence = presences.get(userId);
+            if (presence == null) {
+                continue;
+            }
+            
+            synchronized (presence) {
+                PresenceStatus status = presence.connections > 0 ? PresenceStatus.ONLINE : PresenceStatus.OFFLINE;
+                if (status == presence.published) {
+                    continue; // se conectó y desconectó dentro de la ventana
+                }
+                presence.published = status;
+                presence.version++;
+                changes.add(new PresenceInfo(userId, status, presence.lastSeen, presence.version));
+            }
+        }
+        
+        for (PresenceInfo change : changes) {
+            if (change.status == PresenceStatus.OFFLINE) {
+                unsubscribeAll(change.userId);
+            }
+            
+            Set<String> subscribers = watchers.get(change.userId);
+            if (subscribers == null) {
+                continue;
+            }
+            
+            for (String subscriberId : subscribers) {
+                Map<String, PresenceInfo> inbox = inboxes.get(subscriberId);
+                if (inbox == null) {
+                    continue; // suscriptor desconectado
+                }
+                synchronized (inbox) {
+                    inbox.put(change.userId, change);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.compunet.chatapp.presence;
+
+import compunet.*;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Properties;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Indicadores efímeros "escribiendo…" y "grabando audio…".
+ * No pasan por ChatCore, el journal ni los carriles: viven en arreglos de tamaño fijo
+ * creados al inicio, así que su memoria no crece con la cantidad de usuarios y un
+ * indicador puede perderse por colisión (es aceptable: el siguiente lo repone).
+ *
+ * Las notificaciones repetidas de un mismo remitente, chat y estado se descartan hasta
+ * la mitad del tiempo de vida del indicador; solo las demás se difunden, en un hilo propio
+ * con cola pequeña, a las casillas de los demás participantes. Cada destinatario lee su
+ * casilla con getTypingIndicators. Un indicador expira si no se renueva.
+ *
+ * Configuración:
+ *   Typing.TtlMs=6000
+ *   Typing.Slots=4096             (casillas de destinatarios y de remitentes)
+ *   Typing.EntriesPerSlot=8
+ *   Typing.MaxRecipients=256      (destinatarios por notificación en grupos grandes)
+ */
+public class TypingIndicators {
+    
+    // Indicador de senderId en chatId visto por recipientId; se reutiliza en el lugar
+    private static final class Entry {
+        String recipientId;
+        String senderId;
+        String chatId;
+        TypingState state;
+        long expiresAt;
+    }
+    
+    private static final int FANOUT_QUEUE_LIMIT = 256;
+    
+    // Casillas por destinatario, con varias entradas cada una (protegidas por el arreglo)
+    private final Entry[][] inboxes;
+    
+    // Último estado difundido por remitente y chat (protegido por cada entrada)
+    private final Entry[] lastSent;
+    
+    private final long ttlMs;
+    private final int maxRecipients;
+    private final ThreadPoolExecutor fanout;
+    
+    public TypingIndicators(long ttlMs, int slots, int entriesPerSlot, int maxRecipients) {
+        if (ttlMs <= 0 || slots <= 0 || entriesPerSlot <= 0 || maxRecipients <= 0) {
+            throw new IllegalArgumentException("Configuración de indicadores de escritura inválida");
+        }
+        
+        this.ttlMs = ttlMs;
+        this.maxRecipients = maxRecipients;
+        this.inboxes = new Entry[slots][entriesPerSlot];
+        this.lastSent = new Entry[slots];
+        for (int i = 0; i < slots; i++) {
+            for (int j = 0; j < entriesPerSlot; j++) {
+                inboxes[i][j] = new Entry();
+            }
+            lastSent[i] = new Entry();
+        }
+        
+        // Un hilo y cola pequeña: si se llena, los indicadores se descartan
+        this.fanout = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(FANOUT_QUEUE_LIMIT), r -> {
+                Thread t = new Thread(r, "typing-fanout");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+    
+    public static TypingIndicators fromProperties(Communicator communicator) {
+        Properties props = communicator.getProperties();
+        return new TypingIndicators(
+            props.getPropertyAsIntWithDefault("Typing.TtlMs", 6000),
+            props.getPropertyAsIntWithDefault("Typing.Slots", 4096),
+            props.getPropertyAsIntWithDefault("Typing.EntriesPerSlot", 8),
+            props.getPropertyAsIntWithDefault("Typing.MaxRecipients", 256));
+    }
+    
+    private static int index(int hash, int length) {
+        return Math.floorMod(hash ^ (hash >>> 16), length);
+    }
+    
+    // ========== Notificación ==========
+    
+    /**
+     * Registra el estado de senderId en chatId (userId del otro participante o groupId).
+     * recipients se evalúa solo si la notificación no se descarta por repetida.
+     */
+    public void notify(String senderId, String chatId, TypingState state, boolean groupChat,
+                       Supplier<Collection<String>> recipients) {
+        long now = System.currentTimeMillis();
+        if (!claimFanOut(senderId, chatId, state, now)) {
+            return;
+        }
+        
+        try {
+            fanout.execute(() -> deliver(senderId, chatId, state, groupChat, recipients.get()));
+        } catch (RejectedExecutionException e) {
+            // Servidor cerrándose: el indicador se pierde
+        }
+    }
+    
+    // false si el mismo estado ya se difundió hace menos de la mitad del tiempo de vida
+    private boolean claimFanOut(String senderId, String chatId, TypingState state, long now) {
+        Entry entry = lastSent[index(31 * senderId.hashCode() + chatId.hashCode(), lastSent.length)];
+        synchronized (entry) {
+            if (entry.state == state && now < entry.expiresAt
+                    && senderId.equals(entry.senderId) && chatId.equals(entry.chatId)) {
+                return false;
+            }
+            entry.senderId = senderId;
+            entry.chatId = chatId;
+            entry.state = state;
+            entry.expiresAt = now + ttlMs / 2;
+            return true;
+        }
+    }
+    
+    private void deliver(String senderId, String chatId, TypingState state, boolean groupChat,
+                         Collection<String> recipients) {
+        long now = System.currentTimeMillis();
+        int delivered = 0;
+        for (String recipientId : recipients) {
+            if (recipientId.equals(senderId)) {
+                continue;
+            }
+            if (delivered++ >= maxRecipients) {
+                break;
+            }
+            // En un chat directo el destinatario lo ve en su chat con el remitente
+            store(recipientId, senderId, groupChat ? chatId : senderId, state, now);
+        }
+    }
+    
+    private void store(String recipientId, String senderId, String chatId, TypingState state, long now) {
+        Entry[] inbox = inboxes[index(recipientId.hashCode(), inboxes.length)];
+        synchronized (inbox) {
+            Entry target = null;
+            Entry soonest = null;
+            for (Entry entry : inbox) {
+                if (recipientId.equals(entry.recipientId) && senderId.equals(entry.senderId)
+                        && chatId.equals(entry.chatId)) {
+                    target = entry;
+                    break;
+                }
+                if (soonest == null || entry.expiresAt < soonest.expiresAt) {
+                    soonest = entry;
+                }
+            }
+            if (target == null) {
+                // Un IDLE sin indicador previo no tiene nada que borrar: no desplaza el de otro remitente
+                if (state == TypingState.IDLE) {
+                    return;
+                }
+                // Si no está, reemplaza la entrada que vence primero (vencidas y vacías incluidas)
+                target = soonest;
+            }
+            
+            target.recipientId = recipientId;
+            target.senderId = senderId;
+            target.chatId = chatId;
+            target.state = state;
+            target.expiresAt = state == TypingState.IDLE ? 0 : now + ttlMs;
+        }
+    }
+    
+    // ========== Consulta ==========
+    
+    /**
+     * Indicadores vigentes para el usuario.
+     */
+    public List<TypingIndicator> getIndicators(String userId) {
+        long now = System.currentTimeMillis();
+        List<TypingIndicator> indicators = new ArrayList<>();
+        Entry[] inbox = inboxes[index(userId.hashCode(), inboxes.length)];
+        synchronized (inbox) {
+            for (Entry entry : inbox) {
+                if (entry.expiresAt > now && userId.equals(entry.recipientId)) {
+                    indicators.add(new TypingIndicator(entry.senderId, entry.chatId, entry.state,
+                        entry.expiresAt - now));
+                }
+            }
+        }
+        return indicators;
+    }
+}
@@ -0,0 +1,80 @@
+package com.compunet.chatapp.replication;
+
+import compunet.ReplicaServicePrx;
+import compunet.ReplicationEntry;
+import compunet.StaleTermException;
+import java.util.function.LongConsumer;
+
+/**
+ * Envía de forma asíncrona el log del primario a un seguidor.
+ * Cada ejecución manda un lote (o un latido vacío) con la época del primario y guarda la
+ * secuencia confirmada. Si el seguidor ya conoce una época posterior, avisa a onStaleTerm.
+ */
+class LogShipper implements Runnable {
+    
+    private final String followerName;
+    private final ReplicaServicePrx follower;
+    private final ReplicationLog log;
+    private final long term;
+    private final int batchSize;
+    private final LongConsumer onStaleTerm;
+    
+    // Última secuencia confirmada por el seguidor (-1 mientras no se conozca)
+    private volatile long ackedSeq = -1;
+    private volatile boolean reachable = true;
+    private boolean resyncReported;
+    
+    LogShipper(String followerName, ReplicaServicePrx follower, ReplicationLog log, long term, int batchSize,
+               LongConsumer onStaleTerm) {
+        this.followerName = followerName;
+        this.follower = follower;
+        this.log = log;
+        this.term = term;
+        this.batchSize = batchSize;
+        this.onStaleTerm = onStaleTerm;
+    }
+    
+    @Override
+    public void run() {
+        try {
+            long head = log.lastSeq();
+            ReplicationEntry[] batch = ackedSeq < 0 ? new ReplicationEntry[0] : log.entriesAfter(ackedSeq, batchSize);
+            
+            ackedSeq = follower.applyEntries(term, log.baseSeq(), head, batch);
+            resyncReported = false;
+            if (!reachable) {
+                reachable = true;
+                System.out.println("✓ Seguidor " + followerName + " reconectado (seq " + ackedSeq + ")");
+            }
+        } catch (StaleTermException e) {
+            System.err.println("Seguidor " + followerName + " ya sigue la época " + e.currentTerm
+                + " (esta es " + term + ")");
+            onStaleTerm.accept(e.currentTerm);
+        } catch (IllegalStateException e) {
+            // El seguidor quedó más atrás que el log: no puede alcanzarlo con entradas sueltas.
+            // Se le avisa para que deje de atender lecturas hasta que se reinicie desde cero
+            // con un primario que aún tenga todo su log (o se reconstruya con una importación)
+            if (!resyncReported) {
+                try {
+                    follower.markDivergent(log.firstSeq());
+                    resyncReported = true;
+                    System.err.println("Seguidor " + followerName + " requiere resincronización completa: "
+                        + e.getMessage() + " (marcado como divergente)");
+                } catch (Exception notify) {
+                    System.err.println("Seguidor " + followerName + " requiere resincronización completa y no "
+                        + "se pudo marcar como divergente: " + notify.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            if (reachable) {
+                reachable = false;
+                System.err.println("Seguidor " + followerName + " no disponible: " + e.getMessage());
+            }
+        }
+    }
+    
+    long lagEntries() {
+        long acked = ackedSeq;
+        return acked < 0 ? log.lastSeq() : Math.max(0, log.lastSeq() - acked);
+    }
+}
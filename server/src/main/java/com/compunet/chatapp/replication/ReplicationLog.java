@@ -0,0 +1,70 @@
+package com.compunet.chatapp.replication;
+
+import com.compunet.chatapp.core.MutationJournal;
+import compunet.ReplicationEntry;
+
+/**
+ * Log de mutaciones del primario, acotado en memoria (buffer circular).
+ * Los seguidores que se queden más atrás que la capacidad del log
+ * necesitan una resincronización completa.
+ */
+public class ReplicationLog implements MutationJournal {
+    
+    private final ReplicationEntry[] ring;
+    private final long baseSeq; // última secuencia anterior al inicio de este log
+    private long lastSeq;
+    
+    public ReplicationLog(int capacity, long baseSeq) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacidad del log debe ser positiva");
+        }
+        this.ring = new ReplicationEntry[capacity];
+        this.baseSeq = baseSeq;
+        this.lastSeq = baseSeq;
+    }
+    
+    @Override
+    public synchronized void record(String op, String... args) {
+        long seq = ++lastSeq;
+        ring[slot(seq)] = new ReplicationEntry(seq, op, args);
+    }
+    
+    // Última secuencia anterior a este log (la aplicada al ser promovido, o 0)
+    public long baseSeq() {
+        return baseSeq;
+    }
+    
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+    
+    // Primera secuencia que todavía está en memoria
+    public synchronized long firstSeq() {
+        return Math.max(baseSeq + 1, lastSeq - ring.length + 1);
+    }
+    
+    /**
+     * Retorna hasta max entradas posteriores a afterSeq.
+     * Lanza IllegalStateException si esas entradas ya se descartaron.
+     */
+    public synchronized ReplicationEntry[] entriesAfter(long afterSeq, int max) {
+        if (afterSeq + 1 < firstSeq()) {
+            throw new IllegalStateException("Entradas desde " + (afterSeq + 1) + " ya no están en el log");
+        }
+        
+        int count = (int) Math.min(max, lastSeq - afterSeq);
+        if (count <= 0) {
+            return new ReplicationEntry[0];
+        }
+        
+        ReplicationEntry[] entries = new ReplicationEntry[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = ring[slot(afterSeq + 1 + i)];
+        }
+        return entries;
+    }
+    
+    private int slot(long seq) {
+        return (int) (seq % ring.length);
+    }
+}
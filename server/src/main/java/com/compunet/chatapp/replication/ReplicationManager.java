@@ -0,0 +1,306 @@
+package com.compunet.chatapp.replication;
+
+import com.compunet.chatapp.core.ChatCore;
+import compunet.*;
+import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.Properties;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordina la replicación asíncrona primario/seguidor de ChatCore.
+ * El primario registra cada mutación en un ReplicationLog y lo envía por Ice a los seguidores.
+ * Los seguidores aplican las entradas en orden y atienden lecturas mientras su
+ * desactualización no supere Replication.MaxStalenessMs.
+ *
+ * Cada primario tiene una época (term) que crece al arrancar como primario y en cada
+ * promoción, y viaja en cada lote junto con la secuencia donde comienza su log. Un seguidor
+ * rechaza lotes de épocas anteriores (el primario reemplazado deja de aceptar escrituras y de
+ * enviar) y se marca divergente si ya aplicó entradas posteriores a ese comienzo: el nuevo
+ * primario reutilizaría esas secuencias con otro contenido.
+ *
+ * Configuración:
+ *   Replication.Role=primary | follower
+ *   Replication.Name=f1                      (nombre propio, para excluirse al ser promovido)
+ *   Replication.Followers=f1,f2
+ *   Replication.Follower.f1.Endpoints=tcp -h localhost -p 10022  (AdminAdapter del seguidor)
+ */
+public class ReplicationManager {
+    
+    private final ChatCore chatCore;
+    private final Communicator communicator;
+    private final ScheduledExecutorService scheduler;
+    
+    private final String name;
+    private final long maxStalenessMs;
+    private final long shipIntervalMs;
+    private final int batchSize;
+    private final int logCapacity;
+    
+    private volatile ReplicaRole role;
+    private volatile ReplicationLog log; // solo en el primario
+    private final List<LogShipper> shippers = new ArrayList<>();
+    private final List<ScheduledFuture<?>> shipping = new ArrayList<>(); // protegido por shippers
+    
+    // Época propia (primario) o la del primario que se sigue (seguidor); protegida por this
+    private long term;
+    
+    // Estado del seguidor
+    private long appliedSeq; // protegido por this
+    private volatile long primarySeq;
+    private volatile long lastCaughtUpAt;
+    private volatile boolean divergent; // el primario descartó entradas que no se aplicaron
+    
+    private ReplicationManager(ChatCore chatCore, Communicator communicator, ReplicaRole role) {
+        Properties props = communicator.getProperties();
+        this.chatCore = chatCore;
+        this.communicator = communicator;
+        this.role = role;
+        this.name = props.getProperty("Replication.Name");
+        this.maxStalenessMs = props.getPropertyAsIntWithDefault("Replication.MaxStalenessMs", 5000);
+        this.shipIntervalMs = props.getPropertyAsIntWithDefault("Replication.ShipIntervalMs", 50);
+        this.batchSize = props.getPropertyAsIntWithDefault("Replication.BatchSize", 500);
+        this.logCapacity = props.getPropertyAsIntWithDefault("Replication.LogCapacity", 100000);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-shipper");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Crea el coordinador desde Replication.Role.
+     * Retorna null si la replicación no está configurada.
+     */
+    public static ReplicationManager fromProperties(Communicator communicator, ChatCore chatCore) {
+        String role = communicator.getProperties().getProperty("Replication.Role");
+        if (role.isEmpty()) {
+            return null;
+        }
+        
+        switch (role.toLowerCase()) {
+            case "primary":
+                return new ReplicationManager(chatCore, communicator, ReplicaRole.PRIMARY);
+            case "follower":
+                return new ReplicationManager(chatCore, communicator, ReplicaRole.FOLLOWER);
+            default:
+                throw new IllegalArgumentException("Replication.Role inválido: " + role);
+        }
+    }
+    
+    public synchronized void start() {
+        if (role == ReplicaRole.PRIMARY) {
+            // Sin estado persistente: el reloj hace que un primario reiniciado tenga una época nueva
+            term = System.currentTimeMillis();
+            startShipping(0);
+        }
+        System.out.println("Replicación activa, rol: " + role + (role == ReplicaRole.PRIMARY ? ", época " + term : ""));
+    }
+    
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+    
+    public ReplicaRole getRole() {
+        return role;
+    }
+    
+    // Comienza a registrar mutaciones a partir de baseSeq y a enviarlas a los seguidores (requiere this)
+    private void startShipping(long baseSeq) {
+        ReplicationLog newLog = new ReplicationLog(logCapacity, baseSeq);
+        log = newLog;
+        chatCore.setJournal(newLog);
+        
+        Properties props = communicator.getProperties();
+        for (String follower : props.getPropertyAsList("Replication.Followers")) {
+            if (follower.equals(name)) {
+                continue;
+            }
+            String endpoints = props.getProperty("Replication.Follower." + follower + ".Endpoints");
+            if (endpoints.isEmpty()) {
+                throw new IllegalArgumentException("Falta Replication.Follower." + follower + ".Endpoints");
+            }
+            
+            ReplicaServicePrx proxy = ReplicaServicePrx.uncheckedCast(
+                communicator.stringToProxy("replicaService:" + endpoints));
+            LogShipper shipper = new LogShipper(follower, proxy, newLog, term, batchSize, this::stepDown);
+            synchronized (shippers) {
+                shippers.add(shipper);
+                shipping.add(scheduler.scheduleWithFixedDelay(shipper, 0, shipIntervalMs, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+    
+    private void stopShipping() {
+        synchronized (shippers) {
+            for (ScheduledFuture<?> task : shipping) {
+                task.cancel(false);
+            }
+            shipping.clear();
+            shippers.clear();
+        }
+    }
+    
+    /**
+     * Un seguidor ya sigue una época posterior: otro proceso fue promovido. Este deja de
+     * aceptar escrituras y de enviar su log; si el nuevo primario le envía lotes, se marca
+     * divergente cuando tenga entradas que el nuevo primario no tiene.
+     */
+    synchronized void stepDown(long newTerm) {
+        if (role != ReplicaRole.PRIMARY || newTerm <= term) {
+            return;
+        }
+        role = ReplicaRole.FOLLOWER;
+        stopShipping();
+        appliedSeq = log.lastSeq();
+        log = null;
+        chatCore.setJournal(null);
+        System.err.println("⚠ Primario reemplazado por la época " + newTerm + ": pasa a seguidor en seq " + appliedSeq);
+    }
+    
+    // ========== Lado seguidor ==========
+    
+    /**
+     * Aplica en orden las entradas recibidas del primario de la época term, cuyo log continúa
+     * después de baseSeq. Si hay un hueco se detiene y retorna la última secuencia aplicada
+     * para que el primario reenvíe desde ahí. Una réplica divergente no aplica nada más.
+     */
+    public synchronized long applyEntries(long term, long baseSeq, long primarySeq, ReplicationEntry[] entries)
+            throws StaleTermException {
+        if (term < this.term || (term == this.term && role == ReplicaRole.PRIMARY)) {
+            throw new StaleTermException(this.term);
+        }
+        if (term > this.term) {
+            stepDown(term);
+            followTerm(term, baseSeq);
+        }
+        if (divergent) {
+            return appliedSeq;
+        }
+        
+        for (ReplicationEntry entry : entries) {
+            if (entry.seq <= appliedSeq) {
+                continue;
+            }
+            if (entry.seq != appliedSeq + 1) {
+                break;
+            }
+            chatCore.applyReplicated(entry.op, entry.args);
+            appliedSeq = entry.seq;
+        }
+        
+        this.primarySeq = Math.max(this.primarySeq, primarySeq);
+        if (appliedSeq >= this.primarySeq) {
+            lastCaughtUpAt = System.currentTimeMillis();
+        }
+        return appliedSeq;
+    }
+    
+    // Primer lote de un primario nuevo: si ya se aplicaron entradas posteriores a su base,
+    // el nuevo primario reutilizará esas secuencias con otras mutaciones (requiere this)
+    private void followTerm(long newTerm, long baseSeq) {
+        term = newTerm;
+        if (appliedSeq > baseSeq && !divergent) {
+            divergent = true;
+            System.err.println("⚠ Réplica divergente: aplicada hasta seq " + appliedSeq + ", el primario de la época "
+                + newTerm + " continúa desde " + baseSeq + ". Requiere resincronización completa");
+        } else {
+            System.out.println("Siguiendo al primario de la época " + newTerm + " desde seq " + baseSeq);
+        }
+    }
+    
+    /**
+     * El primario ya no tiene las entradas desde missingFromSeq: este seguidor nunca lo
+     * alcanzará con el log, así que deja de atender lecturas y no puede ser promovido.
+     */
+    public synchronized void markDivergent(long missingFromSeq) {
+        if (role == ReplicaRole.PRIMARY) {
+            throw new IllegalStateException("Este proceso es primario");
+        }
+        if (!divergent && missingFromSeq > appliedSeq + 1) {
+            divergent = true;
+            System.err.println("⚠ Réplica divergente: aplicada hasta seq " + appliedSeq + ", el primario conserva desde "
+                + missingFromSeq + ". Requiere resincronización completa");
+        }
+    }
+    
+    /**
+     * Promueve este seguidor a primario en una época nueva. El nuevo log continúa la numeración
+     * desde la última entrada aplicada para que los demás seguidores sigan sin huecos; los que
+     * aplicaron más que este se marcan divergentes al recibir el primer lote.
+     */
+    public synchronized void promote() {
+        if (role == ReplicaRole.PRIMARY) {
+            return;
+        }
+        if (divergent) {
+            throw new IllegalStateException("Réplica divergente: no se puede promover sin resincronizar");
+        }
+        role = ReplicaRole.PRIMARY;
+        term = Math.max(term + 1, System.currentTimeMillis());
+        startShipping(appliedSeq);
+        System.out.println("⚠ Réplica promovida a primario en seq " + appliedSeq + ", época " + term);
+    }
+    
+    // ========== Control de acceso ==========
+    
+    public void checkWritable() {
+        if (role == ReplicaRole.FOLLOWER) {
+            throw new IllegalStateException("Réplica seguidora: las escrituras se atienden en el primario");
+        }
+    }
+    
+    public void checkReadable() {
+        if (role == ReplicaRole.FOLLOWER) {
+            if (divergent) {
+                throw new IllegalStateException("Réplica divergente: requiere resincronización completa");
+            }
+            long staleness = stalenessMs();
+            if (staleness > maxStalenessMs) {
+                throw new IllegalStateException("Réplica desactualizada (" + staleness + " ms)");
+            }
+        }
+    }
+    
+    private long stalenessMs() {
+        long caughtUp = lastCaughtUpAt;
+        return caughtUp == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - caughtUp;
+    }
+    
+    // ========== Métricas ==========
+    
+    public ReplicationStatus getStatus() {
+        ReplicationStatus status = new ReplicationStatus();
+        status.role = role;
+        status.divergent = divergent;
+        synchronized (this) {
+            status.term = term;
+        }
+        
+        ReplicationLog currentLog = log;
+        if (role == ReplicaRole.PRIMARY && currentLog != null) {
+            status.appliedSeq = currentLog.lastSeq();
+            status.primarySeq = status.appliedSeq;
+            long lag = 0;
+            synchronized (shippers) {
+                for (LogShipper shipper : shippers) {
+                    lag = Math.max(lag, shipper.lagEntries());
+                }
+            }
+            status.lagEntries = lag;
+            status.stalenessMs = 0;
+        } else {
+            synchronized (this) {
+                status.appliedSeq = appliedSeq;
+            }
+            status.primarySeq = primarySeq;
+            status.lagEntries = Math.max(0, status.primarySeq - status.appliedSeq);
+            status.stalenessMs = stalenessMs();
+        }
+        return status;
+    }
+}
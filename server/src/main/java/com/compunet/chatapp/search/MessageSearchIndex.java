@@ -0,0 +1,204 @@
+package com.compunet.chatapp.search;
+
+import com.compunet.chatapp.core.MessageListener;
+import compunet.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Índice invertido en memoria para la búsqueda de texto completo.
+ * Se actualiza de forma incremental con cada mensaje de texto: el mensaje recibe
+ * un número de documento creciente y se agrega a la lista de cada uno de sus términos.
+ * Las búsquedas recorren la lista del término menos frecuente desde el documento
+ * más reciente y verifican el resto de términos y los permisos de lectura.
+ *
+ * Un mensaje editado se indexa de nuevo como otro documento con su contenido nuevo;
+ * los documentos anteriores quedan en las listas y se descartan al buscar. Los mensajes
+ * eliminados se descartan igual.
+ */
+public class MessageSearchIndex implements MessageListener {
+    
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 100;
+    
+    // Término -> documentos que lo contienen
+    private final Map<String, PostingList> postings = new ConcurrentHashMap<>();
+    
+    // Documentos y conversación a la que pertenecen (protegidos por this)
+    private Message[] docs = new Message[1024];
+    private int[] docChat = new int[1024];
+    private int docCount;
+    
+    // Conversaciones: clave -> ordinal (protegidos por this)
+    private final Map<String, Integer> chatOrdinals = new HashMap<>();
+    private final List<String> chatKeys = new ArrayList<>();
+    
+    // Solo mensajes editados: ID -> documento vigente (-1 si el contenido nuevo no tiene términos)
+    private final Map<String, Integer> latestDoc = new ConcurrentHashMap<>();
+    
+    public static int pageSize(int limit) {
+        return limit <= 0 ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+    }
+    
+    @Override
+    public void onMessageAppended(String chatKey, Message message) {
+        if (message.messageType != MessageType.TEXT) {
+            return;
+        }
+        
+        List<String> terms = Tokenizer.tokenize(message.content);
+        if (terms.isEmpty()) {
+            return;
+        }
+        addDocument(chatKey, message, terms);
+    }
+    
+    @Override
+    public void onMessageChanged(String chatKey, Message message, String oldContent) {
+        if (message.messageType != MessageType.TEXT || message.deleted) {
+            return;
+        }
+        
+        List<String> terms = Tokenizer.tokenize(message.content);
+        latestDoc.put(message.id, terms.isEmpty() ? -1 : addDocument(chatKey, message, terms));
+    }
+    
+    private int addDocument(String chatKey, Message message, List<String> terms) {
+        // Se asigna el documento y se publica en las listas bajo el mismo lock
+        // para que cada lista reciba los documentos en orden creciente
+        synchronized (this) {
+            int doc = docCount;
+            if (doc == docs.length) {
+                docs = Arrays.copyOf(docs, doc * 2);
+                docChat = Arrays.copyOf(docChat, doc * 2);
+            }
+            docs[doc] = message;
+            docChat[doc] = chatOrdinal(chatKey);
+            docCount = doc + 1;
+            
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new PostingList()).add(doc);
+            }
+            return doc;
+        }
+    }
+    
+    // false si el documento quedó obsoleto por una edición o eliminación del mensaje
+    private boolean isCurrent(int doc, Message message) {
+        if (message.deleted) {
+            return false;
+        }
+        Integer latest = latestDoc.get(message.id);
+        return latest == null || latest == doc;
+    }
+    
+    private int chatOrdinal(String chatKey) {
+        Integer ordinal = chatOrdinals.get(chatKey);
+        if (ordinal == null) {
+            ordinal = chatKeys.size();
+            chatKeys.add(chatKey);
+            chatOrdinals.put(chatKey, ordinal);
+        }
+        return ordinal;
+    }
+    
+    public synchronized int getDocumentCount() {
+        return docCount;
+    }
+    
+    /**
+     * Busca los mensajes que contienen todos los términos de la consulta, del más reciente al más antiguo.
+     *
+     * @param cursor "" para la primera página, o el nextCursor de la página anterior
+     * @param canRead indica si el usuario puede leer la conversación (clave de chat)
+     */
+    public SearchResult search(String query, int limit, String cursor, Predicate<String> canRead) {
+        int pageSize = pageSize(limit);
+        int upper = parseCursor(cursor);
+        
+        SearchResult result = new SearchResult(new Message[0], new String[0], "");
+        List<String> terms = Tokenizer.tokenize(query);
+        if (terms.isEmpty()) {
+            return result;
+        }
+        
+        List<PostingList> lists = new ArrayList<>();
+        for (String term : terms) {
+            PostingList list = postings.get(term);
+            if (list == null) {
+                return result;
+            }
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(PostingList::size));
+        PostingList driver = lists.get(0);
+        
+        List<Message> found = new ArrayList<>();
+        List<String> cursors = new ArrayList<>();
+        Map<Integer, Boolean> visibleChats = new HashMap<>();
+        boolean exhausted = true;
+        
+        outer:
+        for (int block = driver.blockBefore(upper); block >= 0; block--) {
+            int[] blockDocs = driver.decodeBlock(block);
+            for (int i = blockDocs.length - 1; i >= 0; i--) {
+                int doc = blockDocs[i];
+                if (doc >= upper) {
+                    continue;
+                }
+                if (found.size() == pageSize) {
+                    exhausted = false;
+                    break outer;
+                }
+                
+                if (!containsAll(lists, doc)) {
+                    continue;
+                }
+                
+                Message message;
+                int chat;
+                String chatKey;
+                synchronized (this) {
+                    message = docs[doc];
+                    chat = docChat[doc];
+                    chatKey = chatKeys.get(chat);
+                }
+                
+                if (!isCurrent(doc, message)) {
+                    continue;
+                }
+                
+                if (visibleChats.computeIfAbsent(chat, c -> canRead.test(chatKey))) {
+                    found.add(message);
+                    cursors.add(String.valueOf(doc));
+                }
+            }
+        }
+        
+        result.messages = found.toArray(new Message[0]);
+        result.cursors = cursors.toArray(new String[0]);
+        result.nextCursor = exhausted || cursors.isEmpty() ? "" : cursors.get(cursors.size() - 1);
+        return result;
+    }
+    
+    private static boolean containsAll(List<PostingList> lists, int doc) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(doc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int parseCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Integer.parseInt(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cursor de búsqueda inválido: " + cursor);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.compunet.chatapp.search;
+
+import java.util.Arrays;
+
+/**
+ * Lista de documentos de un término, comprimida por bloques.
+ * Cada bloque guarda su primer documento en claro y el resto como deltas
+ * en varint, lo que permite recorrer la lista de atrás hacia adelante
+ * (más reciente primero) y buscar un documento decodificando un solo bloque.
+ */
+final class PostingList {
+    
+    static final int BLOCK_SIZE = 128;
+    
+    private int[] blockFirstDoc = new int[2];
+    private int[] blockOffset = new int[2];
+    private int[] blockLength = new int[2];
+    private int blockCount;
+    
+    private byte[] data = new byte[16];
+    private int size;
+    
+    private int lastDoc = -1;
+    private int total;
+    
+    /**
+     * Agrega un documento. Los documentos llegan en orden creciente.
+     */
+    synchronized void add(int doc) {
+        if (doc <= lastDoc) {
+            return;
+        }
+        
+        if (blockCount == 0 || blockLength[blockCount - 1] == BLOCK_SIZE) {
+            if (blockCount == blockFirstDoc.length) {
+                int capacity = blockCount * 2;
+                blockFirstDoc = Arrays.copyOf(blockFirstDoc, capacity);
+                blockOffset = Arrays.copyOf(blockOffset, capacity);
+                blockLength = Arrays.copyOf(blockLength, capacity);
+            }
+            blockFirstDoc[blockCount] = doc;
+            blockOffset[blockCount] = size;
+            blockLength[blockCount] = 1;
+            blockCount++;
+        } else {
+            writeVarint(doc - lastDoc);
+            blockLength[blockCount - 1]++;
+        }
+        
+        lastDoc = doc;
+        total++;
+    }
+    
+    synchronized int size() {
+        return total;
+    }
+    
+    synchronized int blockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * Decodifica el bloque indicado en orden creciente.
+     */
+    synchronized int[] decodeBlock(int block) {
+        int[] docs = new int[blockLength[block]];
+        int doc = blockFirstDoc[block];
+        docs[0] = doc;
+        
+        int pos = blockOffset[block];
+        for (int i = 1; i < docs.length; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            doc += delta;
+            docs[i] = doc;
+        }
+        return docs;
+    }
+    
+    /**
+     * Índice del último bloque cuyo primer documento es menor que doc (-1 si no hay).
+     */
+    synchronized int blockBefore(int doc) {
+        int idx = Arrays.binarySearch(blockFirstDoc, 0, blockCount, doc);
+        return idx >= 0 ? idx - 1 : -idx - 2;
+    }
+    
+    boolean contains(int doc) {
+        int block;
+        synchronized (this) {
+            int idx = Arrays.binarySearch(blockFirstDoc, 0, blockCount, doc);
+            if (idx >= 0) {
+                return true;
+            }
+            block = -idx - 2;
+        }
+        return block >= 0 && Arrays.binarySearch(decodeBlock(block), doc) >= 0;
+    }
+    
+    private void writeVarint(int value) {
+        if (size + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[size++] = (byte) value;
+    }
+}
@@ -0,0 +1,59 @@
+package com.compunet.chatapp.search;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Tokenizador para texto en español e inglés.
+ * Pasa a minúsculas, elimina tildes y diéresis (canción -> cancion, ñ -> n),
+ * separa por caracteres no alfanuméricos y descarta palabras vacías.
+ */
+final class Tokenizer {
+    
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    
+    private static final Set<String> STOPWORDS = new HashSet<>(Arrays.asList(
+        // Español
+        "de", "la", "que", "el", "en", "y", "a", "los", "se", "del", "las", "un", "por", "con",
+        "no", "una", "su", "para", "es", "al", "lo", "como", "mas", "pero", "sus", "le", "ya",
+        "o", "este", "si", "porque", "esta", "entre", "cuando", "muy", "sin", "sobre", "tambien",
+        "me", "hay", "donde", "quien", "desde", "todo", "nos", "durante", "uno", "ni", "contra",
+        "ese", "eso", "mi", "te", "tu", "yo",
+        // Inglés
+        "the", "and", "of", "to", "in", "is", "it", "that", "for", "on", "was", "with", "as",
+        "at", "be", "by", "this", "are", "or", "an", "from", "but", "not", "have", "has", "had",
+        "i", "you", "he", "she", "we", "they", "my", "your", "so", "do", "if"));
+    
+    private Tokenizer() {
+    }
+    
+    /**
+     * Retorna los términos distintos del texto, en orden de aparición.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        String folded = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+            .replaceAll("")
+            .toLowerCase(Locale.ROOT);
+        
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean wordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = folded.substring(start, i);
+                if (!STOPWORDS.contains(term)) {
+                    terms.add(term);
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+}
@@ -0,0 +1,84 @@
+package com.compunet.chatapp.servants;
+
+import com.compunet.chatapp.cache.ResponseCache;
+import com.compunet.chatapp.dispatch.DispatchLanes;
+import com.compunet.chatapp.footprint.FootprintTracker;
+import com.compunet.chatapp.replication.ReplicationManager;
+import com.compunet.chatapp.transfer.HistoryTransfer;
+import compunet.*;
+import com.zeroc.Ice.Current;
+
+/**
+ * Implementación del servant AdminService.
+ * Se despacha en el pool de Ice (no en los carriles) para responder aunque estos estén saturados.
+ * Se publica solo en el adaptador de administración (AdminAdapter), no en el de los clientes.
+ */
+public class AdminServiceI implements AdminService {
+    
+    // Máximo de entradas por consulta de mayores consumidores
+    private static final int MAX_TOP_K = 100;
+    
+    private final DispatchLanes lanes;
+    private final FootprintTracker footprint;
+    private final HistoryTransfer transfer;
+    private final ResponseCache responseCache; // null sin caché de respuestas
+    private final ReplicationManager replication; // null si no hay réplicas
+    
+    public AdminServiceI(DispatchLanes lanes, FootprintTracker footprint, HistoryTransfer transfer,
+                         ResponseCache responseCache, ReplicationManager replication) {
+        this.lanes = lanes;
+        this.replication = replication;
+        this.footprint = footprint;
+        this.transfer = transfer;
+        this.responseCache = responseCache;
+    }
+    
+    @Override
+    public LaneStats[] getLaneStats(Current current) {
+        return lanes.getStats();
+    }
+    
+    @Override
+    public FootprintSummary getFootprintSummary(Current current) {
+        return footprint.getSummary();
+    }
+    
+    @Override
+    public FootprintEntry[] getTopFootprint(FootprintKind kind, int k, Current current) {
+        return footprint.top(kind, Math.min(k, MAX_TOP_K)).toArray(new FootprintEntry[0]);
+    }
+    
+    @Override
+    public TransferReport startExport(String directory, boolean resume, Current current) {
+        try {
+            return transfer.startExport(directory, resume);
+        } catch (Exception e) {
+            System.err.println("Error iniciando exportación: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+    
+    @Override
+    public TransferReport startImport(String directory, Current current) {
+        try {
+            // La importación escribe en ChatCore: en una seguidora va al primario
+            if (replication != null) {
+                replication.checkWritable();
+            }
+            return transfer.startImport(directory);
+        } catch (Exception e) {
+            System.err.println("Error iniciando importación: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+    
+    @Override
+    public TransferReport getTransferReport(Current current) {
+        return transfer.getReport();
+    }
+    
+    @Override
+    public ResponseCacheStats getResponseCacheStats(Current current) {
+        return responseCache != null ? responseCache.getStats() : new ResponseCacheStats();
+    }
+}
@@ -0,0 +1,243 @@
+package com.compunet.chatapp.servants;
+
+import com.compunet.chatapp.admission.AdmissionController;
+import com.compunet.chatapp.cluster.ShardRouter;
+import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.dispatch.DispatchLanes;
+import com.compunet.chatapp.dispatch.Lane;
+import com.compunet.chatapp.replication.ReplicationManager;
+import compunet.*;
+import com.zeroc.Ice.Current;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * Implementación del servant ChannelService.
+ * Delega toda la lógica en ChatCore; las operaciones de un canal se ejecutan en su partición
+ * y, en modo particionado, en el proceso dueño del canal. Las consultas por usuario
+ * (canales y novedades) reúnen los resultados de todos los nodos.
+ */
+public class ChannelServiceI implements ChannelService {
+    
+    private final ChatCore chatCore;
+    private final ShardRouter router; // null en modo de un solo proceso
+    private final ReplicationManager replication; // null si no hay réplicas
+    private final AdmissionController admission; // null sin control de admisión
+    private final DispatchLanes lanes;
+    
+    public ChannelServiceI(ChatCore chatCore, ShardRouter router, ReplicationManager replication,
+                           AdmissionController admission, DispatchLanes lanes) {
+        this.chatCore = chatCore;
+        this.router = router;
+        this.replication = replication;
+        this.admission = admission;
+        this.lanes = lanes;
+    }
+    
+    // En una réplica seguidora las escrituras se rechazan (van al primario)
+    private void requireWritable() {
+        if (replication != null) {
+            replication.checkWritable();
+        }
+    }
+    
+    // Las lecturas en una seguidora solo se atienden si su retraso está acotado
+    private void requireReadable() {
+        if (replication != null) {
+            replication.checkReadable();
+        }
+    }
+    
+    // Proxy del dueño de la clave si la invocación debe reenviarse, null si se atiende aquí
+    private ChannelServicePrx remoteOwner(String shardKey, Current current) {
+        if (router == null || router.isForwarded(current)) {
+            return null;
+        }
+        return router.remoteChannelService(shardKey);
+    }
+    
+    // El control de admisión se aplica solo en el nodo que recibe la invocación del cliente
+    private AdmissionController.Permit admitMessage(String userId, String payload, Current current)
+            throws RateLimitedException {
+        if (admission == null || (router != null && router.isForwarded(current))) {
+            return AdmissionController.Permit.NONE;
+        }
+        return admission.admitMessage(userId, current.con, payload);
+    }
+    
+    // Las consultas por usuario se reparten entre todos los nodos solo en la invocación original
+    private boolean gatherFromCluster(Current current) {
+        return router != null && !router.isForwarded(current);
+    }
+    
+    // Usuarios de otros nodos resueltos sin bloquear antes de entrar al carril o la partición:
+    // ChatCore solo consulta la caché y nunca espera a otro nodo
+    private CompletableFuture<Void> usersResolved(String... userIds) {
+        return router != null ? router.resolveUsers(userIds) : CompletableFuture.completedFuture(null);
+    }
+    
+    @Override
+    public CompletionStage<String> createChannelAsync(String ownerId, String name, Current current) {
+        requireWritable();
+        return usersResolved(ownerId).thenCompose(resolved -> lanes.submit(Lane.MESSAGING, ShardRouter.userKey(ownerId), () -> {
+            try {
+                return chatCore.createChannel(ownerId, name);
+            } catch (Exception e) {
+                System.err.println("Error creando canal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
+    }
+    
+    @Override
+    public CompletionStage<Void> addChannelOwnerAsync(String channelId, String ownerId, String newOwnerId,
+                                                      Current current) {
+        requireWritable();
+        ChannelServicePrx owner = remoteOwner(ShardRouter.idKey(channelId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.addChannelOwnerAsync(channelId, ownerId, newOwnerId, router.forwardContext()),
+                "Error agregando owner al canal");
+        }
+        return usersResolved(newOwnerId).thenCompose(resolved -> lanes.run(Lane.MESSAGING, ShardRouter.idKey(channelId), () -> {
+            try {
+                chatCore.addChannelOwner(channelId, ownerId, newOwnerId);
+            } catch (Exception e) {
+                System.err.println("Error agregando owner al canal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
+    }
+    
+    @Override
+    public CompletionStage<Void> subscribeChannelAsync(String channelId, String userId, Current current) {
+        requireWritable();
+        ChannelServicePrx owner = remoteOwner(ShardRouter.idKey(channelId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.subscribeChannelAsync(channelId, userId, router.forwardContext()),
+                "Error suscribiendo al canal");
+        }
+        return usersResolved(userId).thenCompose(resolved -> lanes.run(Lane.MESSAGING, ShardRouter.idKey(channelId), () -> {
+            try {
+                chatCore.subscribeChannel(channelId, userId);
+            } catch (Exception e) {
+                System.err.println("Error suscribiendo al canal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
+    }
+    
+    @Override
+    public CompletionStage<Void> unsubscribeChannelAsync(String channelId, String userId, Current current) {
+        requireWritable();
+        ChannelServicePrx owner = remoteOwner(ShardRouter.idKey(channelId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.unsubscribeChannelAsync(channelId, userId, router.forwardContext()),
+                "Error cancelando la suscripción al canal");
+        }
+        return lanes.run(Lane.MESSAGING, ShardRouter.idKey(channelId), () -> {
+            try {
+                chatCore.unsubscribeChannel(channelId, userId);
+            } catch (Exception e) {
+                System.err.println("Error cancelando la suscripción al canal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    @Override
+    public CompletionStage<Long> publishToChannelAsync(String channelId, String authorId, String content,
+                                                       Current current) throws RateLimitedException {
+        requireWritable();
+        AdmissionController.Permit permit = admitMessage(authorId, content, current);
+        ChannelServicePrx owner = remoteOwner(ShardRouter.idKey(channelId), current);
+        CompletableFuture<Long> published = owner != null
+            ? ShardRouter.relay(owner.publishToChannelAsync(channelId, authorId, content, router.forwardContext()),
+                "Error publicando en canal")
+            : usersResolved(authorId).thenCompose(resolved -> lanes.submit(Lane.MESSAGING, ShardRouter.idKey(channelId), () -> {
+                try {
+                    return chatCore.publishToChannel(channelId, authorId, content);
+                } catch (Exception e) {
+                    System.err.println("Error publicando en canal: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            }));
+        return published.whenComplete((result, error) -> permit.release());
+    }
+    
+    @Override
+    public CompletionStage<ChannelPage> getChannelPostsAsync(String channelId, String userId, long afterSeq,
+                                                             int limit, Current current) {
+        requireReadable();
+        ChannelServicePrx owner = remoteOwner(ShardRouter.idKey(channelId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getChannelPostsAsync(channelId, userId, afterSeq, limit, router.forwardContext()),
+                "Error obteniendo publicaciones del canal");
+        }
+        return lanes.submit(Lane.MESSAGING, () -> {
+            try {
+                return chatCore.getChannelPosts(channelId, userId, afterSeq, limit);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo publicaciones del canal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    @Override
+    public CompletionStage<Void> markChannelReadAsync(String channelId, String userId, long upToSeq,
+                                                      Current current) {
+        requireWritable();
+        ChannelServicePrx owner = remoteOwner(ShardRouter.idKey(channelId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.markChannelReadAsync(channelId, userId, upToSeq, router.forwardContext()),
+                "Error marcando el canal como leído");
+        }
+        return lanes.run(Lane.MESSAGING, ShardRouter.idKey(channelId), () -> {
+            try {
+                chatCore.markChannelRead(channelId, userId, upToSeq);
+            } catch (Exception e) {
+                System.err.println("Error marcando el canal como leído: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    // Resultados de los demás nodos, o ninguno si la invocación no debe repartirse
+    private <T> CompletableFuture<List<T>> gatherOthers(Current current,
+                                                        Function<ChannelServicePrx, CompletableFuture<T[]>> call) {
+        if (!gatherFromCluster(current)) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        return router.gatherChannel(call);
+    }
+    
+    @Override
+    public CompletionStage<ChannelInfo[]> getUserChannelsAsync(String userId, Current current) {
+        requireReadable();
+        CompletableFuture<ChannelInfo[]> channels = lanes.submit(Lane.MESSAGING, () -> chatCore.getUserChannels(userId))
+            .thenCombine(gatherOthers(current, prx -> prx.getUserChannelsAsync(userId, router.forwardContext())),
+                (local, remote) -> {
+                    local.addAll(remote);
+                    local.sort((a, b) -> Long.compare(b.lastSeq - b.readSeq, a.lastSeq - a.readSeq));
+                    return local.toArray(new ChannelInfo[0]);
+                });
+        return ShardRouter.relay(channels, "Error obteniendo canales", new ChannelInfo[0]);
+    }
+    
+    @Override
+    public CompletionStage<ChannelPage[]> pollChannelsAsync(String userId, int limitPerChannel, Current current) {
+        requireReadable();
+        CompletableFuture<ChannelPage[]> pages = lanes.submit(Lane.MESSAGING,
+                () -> chatCore.pollChannels(userId, limitPerChannel))
+            .thenCombine(gatherOthers(current, prx -> prx.pollChannelsAsync(userId, limitPerChannel,
+                    router.forwardContext())),
+                (local, remote) -> {
+                    local.addAll(remote);
+                    return local.toArray(new ChannelPage[0]);
+                });
+        return ShardRouter.relay(pages, "Error consultando novedades de canales", new ChannelPage[0]);
+    }
+}
@@ -1,207 +1,911 @@
 package com.compunet.chatapp.servants;
 
+import com.compunet.chatapp.admission.AdmissionController;
+import com.compunet.chatapp.cache.ResponseCache;
+import com.compunet.chatapp.cluster.ShardRouter;
 import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.dispatch.DispatchLanes;
+import com.compunet.chatapp.dispatch.Lane;
+import com.compunet.chatapp.presence.PresenceTracker;
+import com.compunet.chatapp.presence.TypingIndicators;
+import com.compunet.chatapp.replication.ReplicationManager;
+import com.compunet.chatapp.search.MessageSearchIndex;
 import compunet.*;
 import com.zeroc.Ice.Current;
-import java.util.List;
+import com.zeroc.Ice.InputStream;
+import com.zeroc.Ice.OutputStream;
+import com.zeroc.Ice.UserException;
+import com.zeroc.IceInternal.Incoming;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
 /**
  * Implementación del servant ChatService.
- * Delega toda la lógica en ChatCore.
+ * Delega toda la lógica en ChatCore; cada operación se ejecuta en el carril de su clase.
+ * En modo particionado reenvía al proceso dueño las invocaciones que no le pertenecen.
+ * El historial de un chat directo se responde, si hay caché de respuestas, con el cuerpo
+ * ya codificado de la versión vigente.
  */
 public class ChatServiceI implements ChatService {
     
+    // Espera sugerida al rechazar audios por memoria
+    private static final long AUDIO_REJECT_RETRY_MS = 10000;
+    
     private final ChatCore chatCore;
+    private final ShardRouter router; // null en modo de un solo proceso
+    private final ReplicationManager replication; // null si no hay réplicas
+    private final PresenceTracker presence; // null si no se rastrea la presencia
+    private final AdmissionController admission; // null sin control de admisión
+    private final DispatchLanes lanes;
+    private final TypingIndicators typing; // null sin indicadores de escritura
+    private final ResponseCache responseCache; // null sin caché de respuestas
     
-    public ChatServiceI(ChatCore chatCore) {
+    public ChatServiceI(ChatCore chatCore, ShardRouter router, ReplicationManager replication,
+                        PresenceTracker presence, AdmissionController admission, DispatchLanes lanes,
+                        TypingIndicators typing, ResponseCache responseCache) {
         this.chatCore = chatCore;
+        this.responseCache = responseCache;
+        this.typing = typing;
+        this.lanes = lanes;
+        this.router = router;
+        this.replication = replication;
+        this.presence = presence;
+        this.admission = admission;
+    }
+    
+    // En una réplica seguidora las escrituras se rechazan (van al primario)
+    private void requireWritable() {
+        if (replication != null) {
+            replication.checkWritable();
+        }
+    }
+    
+    // Las lecturas en una seguidora solo se atienden si su retraso está acotado
+    private void requireReadable() {
+        if (replication != null) {
+            replication.checkReadable();
+        }
+    }
+    
+    // Proxy del dueño de la clave si la invocación debe reenviarse, null si se atiende aquí
+    private ChatServicePrx remoteOwner(String shardKey, Current current) {
+        if (router == null || router.isForwarded(current)) {
+            return null;
+        }
+        return router.remoteChatService(shardKey);
+    }
+    
+    // El control de admisión se aplica solo en el nodo que recibe la invocación del cliente
+    private AdmissionController.Permit admitMessage(String userId, String payload, Current current)
+            throws RateLimitedException {
+        if (admission == null || (router != null && router.isForwarded(current))) {
+            return AdmissionController.Permit.NONE;
+        }
+        return admission.admitMessage(userId, current.con, payload);
+    }
+    
+    private AdmissionController.Permit admitSignals(String userId, int count, long payloadBytes, Current current)
+            throws RateLimitedException {
+        if (admission == null || (router != null && router.isForwarded(current))) {
+            return AdmissionController.Permit.NONE;
+        }
+        return admission.admitSignals(userId, current.con, count, payloadBytes);
+    }
+    
+    // Por encima de la marca dura de memoria no se aceptan audios nuevos
+    private void requireAudioCapacity() throws RateLimitedException {
+        if (chatCore.getFootprint().isAboveHardLimit()) {
+            throw new RateLimitedException("Memoria del servidor por encima del límite: no se aceptan audios",
+                AUDIO_REJECT_RETRY_MS);
+        }
+    }
+    
+    // Las consultas globales se reparten entre todos los nodos solo en la invocación original
+    private boolean gatherFromCluster(Current current) {
+        return router != null && !router.isForwarded(current);
+    }
+    
+    // Usuarios de otros nodos resueltos sin bloquear antes de entrar al carril o la partición:
+    // ChatCore solo consulta la caché y nunca espera a otro nodo
+    private CompletableFuture<Void> usersResolved(String... userIds) {
+        return router != null ? router.resolveUsers(userIds) : CompletableFuture.completedFuture(null);
+    }
+    
+    // Resultados de los demás nodos, o ninguno si la invocación no debe repartirse
+    private <T> CompletableFuture<List<T>> gatherOthers(Current current,
+                                                        Function<ChatServicePrx, CompletableFuture<T[]>> call) {
+        if (!gatherFromCluster(current)) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        return router.gatherChat(call);
     }
     
     @Override
-    public boolean registerUser(String userId, String userName, Current current) {
-        try {
-            return chatCore.registerUser(userId, userName);
-        } catch (Exception e) {
-            System.err.println("Error registrando usuario: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<Boolean> registerUserAsync(String userId, String userName, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.registerUserAsync(userId, userName, router.forwardContext()),
+                "Error registrando usuario");
         }
+        return lanes.submit(Lane.MESSAGING, ShardRouter.userKey(userId), () -> {
+            try {
+                return chatCore.registerUser(userId, userName);
+            } catch (Exception e) {
+                System.err.println("Error registrando usuario: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
     @Override
-    public boolean userExists(String userId, Current current) {
-        try {
-            return chatCore.userExists(userId);
-        } catch (Exception e) {
-            System.err.println("Error verificando usuario: " + e.getMessage());
-            return false;
+    public CompletionStage<Boolean> userExistsAsync(String userId, Current current) {
+        requireReadable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.userExistsAsync(userId, router.forwardContext()),
+                "Error verificando usuario", false);
         }
+        return lanes.submit(Lane.MESSAGING, () -> {
+            try {
+                return chatCore.userExists(userId);
+            } catch (Exception e) {
+                System.err.println("Error verificando usuario: " + e.getMessage());
+                return false;
+            }
+        });
     }
     
     @Override
-    public User findUserByName(String userName, Current current) {
-        try {
-            return chatCore.findUserByName(userName);
-        } catch (Exception e) {
-            System.err.println("Error buscando usuario por nombre: " + e.getMessage());
-            return null;
+    public CompletionStage<User> findUserByNameAsync(String userName, Current current) {
+        requireReadable();
+        CompletableFuture<User> found = lanes.submit(Lane.MESSAGING, () -> chatCore.findUserByName(userName))
+            .thenCompose(user -> user != null ? CompletableFuture.completedFuture(user)
+                : gatherOthers(current, prx -> prx.findUserByNameAsync(userName, router.forwardContext())
+                    .thenApply(remote -> remote != null ? new User[]{remote} : new User[0]))
+                    .thenApply(remote -> remote.isEmpty() ? null : remote.get(0)));
+        return ShardRouter.relay(found, "Error buscando usuario por nombre", null);
+    }
+    
+    @Override
+    public CompletionStage<User> findUserByIdAsync(String userId, Current current) {
+        requireReadable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.findUserByIdAsync(userId, router.forwardContext()),
+                "Error buscando usuario por ID", null);
         }
+        return lanes.submit(Lane.MESSAGING, () -> {
+            try {
+                return chatCore.findUserById(userId);
+            } catch (Exception e) {
+                System.err.println("Error buscando usuario por ID: " + e.getMessage());
+                return null;
+            }
+        });
     }
     
     @Override
-    public User findUserById(String userId, Current current) {
-        try {
-            return chatCore.findUserById(userId);
-        } catch (Exception e) {
-            System.err.println("Error buscando usuario por ID: " + e.getMessage());
-            return null;
+    public CompletionStage<Void> sendDirectMessageAsync(String fromUserId, String toUserId, String content, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        AdmissionController.Permit permit = admitMessage(fromUserId, content, current);
+        String conversationKey = ShardRouter.conversationKey(fromUserId, toUserId);
+        ChatServicePrx owner = remoteOwner(conversationKey, current);
+        CompletableFuture<Void> sent = owner != null
+            ? ShardRouter.relay(owner.sendDirectMessageAsync(fromUserId, toUserId, content, router.forwardContext()),
+                "Error enviando mensaje directo")
+            : usersResolved(fromUserId, toUserId).thenCompose(resolved -> lanes.run(Lane.MESSAGING, conversationKey, () -> {
+                try {
+                    chatCore.sendDirectMessage(fromUserId, toUserId, content);
+                } catch (Exception e) {
+                    System.err.println("Error enviando mensaje directo: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            }));
+        return sent.whenComplete((result, error) -> permit.release());
+    }
+    
+    @Override
+    public CompletionStage<Void> sendDirectAudioAsync(String fromUserId, String toUserId, String audioBase64, int duration, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        requireAudioCapacity();
+        AdmissionController.Permit permit = admitMessage(fromUserId, audioBase64, current);
+        String conversationKey = ShardRouter.conversationKey(fromUserId, toUserId);
+        ChatServicePrx owner = remoteOwner(conversationKey, current);
+        CompletableFuture<Void> sent = owner != null
+            ? ShardRouter.relay(owner.sendDirectAudioAsync(fromUserId, toUserId, audioBase64, duration, router.forwardContext()),
+                "Error enviando audio directo")
+            : usersResolved(fromUserId, toUserId).thenCompose(resolved -> lanes.run(Lane.BULK, conversationKey, () -> {
+                try {
+                    chatCore.sendDirectAudio(fromUserId, toUserId, audioBase64, duration);
+                } catch (Exception e) {
+                    System.err.println("Error enviando audio directo: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            }));
+        return sent.whenComplete((result, error) -> permit.release());
+    }
+    
+    // ChatCore nombra con el ID a los contactos de otros nodos que no están en caché: se
+    // resuelven todos juntos y en paralelo, fuera del carril
+    private CompletableFuture<List<ChatSummary>> withRemoteNames(List<ChatSummary> chats) {
+        if (router == null) {
+            return CompletableFuture.completedFuture(chats);
+        }
+        List<String> unnamed = new ArrayList<>();
+        for (ChatSummary chat : chats) {
+            if (chat.chatName.equals(chat.chatId)) {
+                unnamed.add(chat.chatId);
+            }
         }
+        if (unnamed.isEmpty()) {
+            return CompletableFuture.completedFuture(chats);
+        }
+        return router.resolveUsers(unnamed).thenApply(resolved -> {
+            for (ChatSummary chat : chats) {
+                User user = router.cachedRemoteUser(chat.chatId);
+                if (user != null) {
+                    chat.chatName = user.name;
+                }
+            }
+            return chats;
+        });
+    }
+    
+    @Override
+    public CompletionStage<ChatSummary[]> getUserDirectChatsAsync(String userId, Current current) {
+        requireReadable();
+        CompletableFuture<ChatSummary[]> chats = lanes.submit(Lane.MESSAGING, () -> chatCore.getUserDirectChats(userId))
+            .thenCompose(this::withRemoteNames)
+            .thenCombine(gatherOthers(current, prx -> prx.getUserDirectChatsAsync(userId, router.forwardContext())),
+                (local, remote) -> {
+                    local.addAll(remote);
+                    local.sort((a, b) -> Long.compare(b.lastMessageTime, a.lastMessageTime));
+                    return local.toArray(new ChatSummary[0]);
+                });
+        return ShardRouter.relay(chats, "Error obteniendo chats directos", new ChatSummary[0]);
     }
     
     @Override
-    public void sendDirectMessage(String fromUserId, String toUserId, String content, Current current) {
-        try {
-            chatCore.sendDirectMessage(fromUserId, toUserId, content);
-        } catch (Exception e) {
-            System.err.println("Error enviando mensaje directo: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<Message[]> getDirectChatMessagesAsync(String userId, String otherUserId, Current current) {
+        requireReadable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.conversationKey(userId, otherUserId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getDirectChatMessagesAsync(userId, otherUserId, router.forwardContext()),
+                "Error obteniendo mensajes directos", new Message[0]);
         }
+        return lanes.submit(Lane.BULK, () -> {
+            try {
+                List<Message> messages = chatCore.getDirectChatMessages(userId, otherUserId);
+                return messages.toArray(new Message[0]);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo mensajes directos: " + e.getMessage());
+                return new Message[0];
+            }
+        });
+    }
+    
+    @Override
+    public CompletionStage<User[]> getAllUsersAsync(Current current) {
+        requireReadable();
+        CompletableFuture<User[]> users = lanes.submit(Lane.BULK, () -> chatCore.getAllUsers())
+            .thenCombine(gatherOthers(current, prx -> prx.getAllUsersAsync(router.forwardContext())),
+                (local, remote) -> {
+                    local.addAll(remote);
+                    return local.toArray(new User[0]);
+                });
+        return ShardRouter.relay(users, "Error obteniendo usuarios", new User[0]);
     }
     
+    // ========== Respuestas precodificadas ==========
+    
+    /**
+     * Con caché de respuestas, getDirectChatMessages se despacha aquí: se leen los parámetros
+     * como lo haría el código generado y la respuesta se arma con el cuerpo codificado de la
+     * caché. Las conversaciones de otro nodo siguen por la operación normal.
+     */
     @Override
-    public void sendDirectAudio(String fromUserId, String toUserId, String audioBase64, int duration, Current current) {
-        try {
-            chatCore.sendDirectAudio(fromUserId, toUserId, audioBase64, duration);
-        } catch (Exception e) {
-            System.err.println("Error enviando audio directo: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<OutputStream> _iceDispatch(Incoming in, Current current) throws UserException {
+        if (responseCache != null && ResponseCache.OP_DIRECT_MESSAGES.equals(current.operation)) {
+            return dispatchDirectChatMessages(in, current);
         }
+        return ChatService.super._iceDispatch(in, current);
     }
     
+    private CompletionStage<OutputStream> dispatchDirectChatMessages(Incoming in, Current current) {
+        com.zeroc.Ice.Object._iceCheckMode(null, current.mode);
+        InputStream istr = in.startReadParams();
+        String userId = istr.readString();
+        String otherUserId = istr.readString();
+        in.endReadParams();
+        
+        if (remoteOwner(ShardRouter.conversationKey(userId, otherUserId), current) != null) {
+            return in.setResultFuture(getDirectChatMessagesAsync(userId, otherUserId, current), MessageSeqHelper::write);
+        }
+        
+        requireReadable();
+        // La versión se lee antes que los mensajes: si cambia mientras se codifica, la entrada queda vieja
+        String conversationKey = ChatCore.getConversationKey(userId, otherUserId);
+        long version = responseCache.conversationVersion(conversationKey);
+        return in.setResultFuture(responseCache.load(ResponseCache.OP_DIRECT_MESSAGES, conversationKey,
+            current.encoding, version, () -> lanes.submit(Lane.BULK, () -> {
+                try {
+                    Message[] messages = chatCore.getDirectChatMessages(userId, otherUserId).toArray(new Message[0]);
+                    return ResponseCache.encode(current, os -> MessageSeqHelper.write(os, messages));
+                } catch (Exception e) {
+                    System.err.println("Error obteniendo mensajes directos: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            })), OutputStream::writeBlob);
+    }
+    
+    // ========== Métodos de llamadas de voz directas ==========
+    
     @Override
-    public ChatSummary[] getUserDirectChats(String userId, Current current) {
-        try {
-            List<ChatSummary> chats = chatCore.getUserDirectChats(userId);
-            return chats.toArray(new ChatSummary[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo chats directos: " + e.getMessage());
-            return new ChatSummary[0];
+    public CompletionStage<String> startDirectCallAsync(String callerId, String recipientId, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.conversationKey(callerId, recipientId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.startDirectCallAsync(callerId, recipientId, router.forwardContext()),
+                "Error iniciando llamada");
         }
+        return usersResolved(callerId, recipientId).thenCompose(resolved -> lanes.submit(Lane.SIGNALLING, ShardRouter.conversationKey(callerId, recipientId), () -> {
+            try {
+                return chatCore.startDirectCall(callerId, recipientId);
+            } catch (Exception e) {
+                System.err.println("Error iniciando llamada: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
     }
     
     @Override
-    public Message[] getDirectChatMessages(String userId, String otherUserId, Current current) {
-        try {
-            List<Message> messages = chatCore.getDirectChatMessages(userId, otherUserId);
-            return messages.toArray(new Message[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo mensajes directos: " + e.getMessage());
-            return new Message[0];
+    public CompletionStage<Void> answerDirectCallAsync(String callId, String userId, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.answerDirectCallAsync(callId, userId, router.forwardContext()),
+                "Error contestando llamada");
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.idKey(callId), () -> {
+            try {
+                chatCore.answerDirectCall(callId, userId);
+            } catch (Exception e) {
+                System.err.println("Error contestando llamada: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
     @Override
-    public User[] getAllUsers(Current current) {
-        try {
-            List<User> users = chatCore.getAllUsers();
-            return users.toArray(new User[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo usuarios: " + e.getMessage());
-            return new User[0];
+    public CompletionStage<Void> rejectDirectCallAsync(String callId, String userId, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.rejectDirectCallAsync(callId, userId, router.forwardContext()),
+                "Error rechazando llamada");
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.idKey(callId), () -> {
+            try {
+                chatCore.rejectDirectCall(callId, userId);
+            } catch (Exception e) {
+                System.err.println("Error rechazando llamada: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
-    // ========== Métodos de llamadas de voz directas ==========
+    @Override
+    public CompletionStage<Void> endDirectCallAsync(String callId, String userId, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.endDirectCallAsync(callId, userId, router.forwardContext()),
+                "Error terminando llamada");
+        }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.idKey(callId), () -> {
+            try {
+                chatCore.endDirectCall(callId, userId);
+            } catch (Exception e) {
+                System.err.println("Error terminando llamada: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    @Override
+    public CompletionStage<VoiceCall> getCallStatusAsync(String callId, Current current) {
+        requireReadable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getCallStatusAsync(callId, router.forwardContext()),
+                "Error obteniendo estado de llamada", null);
+        }
+        return lanes.submit(Lane.SIGNALLING, () -> {
+            try {
+                return chatCore.getCallStatus(callId);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo estado de llamada: " + e.getMessage());
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public CompletionStage<VoiceCall[]> getActiveCallsForUserAsync(String userId, Current current) {
+        requireReadable();
+        CompletableFuture<VoiceCall[]> calls = lanes.submit(Lane.SIGNALLING,
+                () -> new ArrayList<>(chatCore.getActiveCallsForUser(userId)))
+            .thenCombine(gatherOthers(current, prx -> prx.getActiveCallsForUserAsync(userId, router.forwardContext())),
+                (local, remote) -> {
+                    local.addAll(remote);
+                    return local.toArray(new VoiceCall[0]);
+                });
+        return ShardRouter.relay(calls, "Error obteniendo llamadas activas", new VoiceCall[0]);
+    }
+    
+    // ========== Métodos de señalización WebRTC ==========
+    
+    @Override
+    public CompletionStage<Void> sendWebRTCSignalAsync(String callId, String fromUserId, String toUserId, String type, String data, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        AdmissionController.Permit permit = admitSignals(fromUserId, 1, AdmissionController.utf8Length(data), current);
+        // Las señales se guardan en el nodo dueño del destinatario
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(toUserId), current);
+        CompletableFuture<Void> sent = owner != null
+            ? ShardRouter.relay(owner.sendWebRTCSignalAsync(callId, fromUserId, toUserId, type, data, router.forwardContext()),
+                "Error enviando señal WebRTC")
+            : lanes.run(Lane.SIGNALLING, ShardRouter.userKey(toUserId), () -> {
+                try {
+                    chatCore.sendWebRTCSignal(callId, fromUserId, toUserId, type, data);
+                } catch (Exception e) {
+                    System.err.println("Error enviando señal WebRTC: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            });
+        return sent.whenComplete((result, error) -> permit.release());
+    }
     
     @Override
-    public String startDirectCall(String callerId, String recipientId, Current current) {
-        try {
-            return chatCore.startDirectCall(callerId, recipientId);
-        } catch (Exception e) {
-            System.err.println("Error iniciando llamada: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<WebRTCSignal[]> getWebRTCSignalsAsync(String userId, Current current) {
+        requireReadable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getWebRTCSignalsAsync(userId, router.forwardContext()),
+                "Error obteniendo señales WebRTC", new WebRTCSignal[0]);
         }
+        return lanes.submit(Lane.SIGNALLING, () -> {
+            try {
+                List<WebRTCSignal> signals = chatCore.getWebRTCSignals(userId);
+                return signals.toArray(new WebRTCSignal[0]);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo señales WebRTC: " + e.getMessage());
+                return new WebRTCSignal[0];
+            }
+        });
     }
     
     @Override
-    public void answerDirectCall(String callId, String userId, Current current) {
-        try {
-            chatCore.answerDirectCall(callId, userId);
-        } catch (Exception e) {
-            System.err.println("Error contestando llamada: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<Void> acknowledgeWebRTCSignalAsync(String callId, String userId, int signalIndex, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.acknowledgeWebRTCSignalAsync(callId, userId, signalIndex, router.forwardContext()),
+                "Error confirmando señal WebRTC", null);
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.userKey(userId), () -> {
+            try {
+                chatCore.acknowledgeWebRTCSignal(callId, userId, signalIndex);
+            } catch (Exception e) {
+                System.err.println("Error confirmando señal WebRTC: " + e.getMessage());
+            }
+        });
     }
     
     @Override
-    public void rejectDirectCall(String callId, String userId, Current current) {
-        try {
-            chatCore.rejectDirectCall(callId, userId);
-        } catch (Exception e) {
-            System.err.println("Error rechazando llamada: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<Void> sendWebRTCSignalsAsync(String callId, String fromUserId, String toUserId, Signal[] signals, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        long payloadBytes = 0;
+        for (Signal signal : signals) {
+            payloadBytes += AdmissionController.utf8Length(signal.data);
         }
+        AdmissionController.Permit permit = admitSignals(fromUserId, signals.length, payloadBytes, current);
+        // Las señales se guardan en el nodo dueño del destinatario
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(toUserId), current);
+        CompletableFuture<Void> sent = owner != null
+            ? ShardRouter.relay(owner.sendWebRTCSignalsAsync(callId, fromUserId, toUserId, signals, router.forwardContext()),
+                "Error enviando señales WebRTC")
+            : lanes.run(Lane.SIGNALLING, ShardRouter.userKey(toUserId), () -> {
+                try {
+                    chatCore.sendWebRTCSignals(callId, fromUserId, toUserId, signals);
+                } catch (Exception e) {
+                    System.err.println("Error enviando señales WebRTC: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            });
+        return sent.whenComplete((result, error) -> permit.release());
     }
     
     @Override
-    public void endDirectCall(String callId, String userId, Current current) {
-        try {
-            chatCore.endDirectCall(callId, userId);
-        } catch (Exception e) {
-            System.err.println("Error terminando llamada: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<SignalBatch[]> getWebRTCSignalBatchesAsync(String userId, Current current) {
+        requireReadable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getWebRTCSignalBatchesAsync(userId, router.forwardContext()),
+                "Error obteniendo señales WebRTC", new SignalBatch[0]);
         }
+        return lanes.submit(Lane.SIGNALLING, () -> {
+            try {
+                return chatCore.getWebRTCSignalBatches(userId).toArray(new SignalBatch[0]);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo señales WebRTC: " + e.getMessage());
+                return new SignalBatch[0];
+            }
+        });
     }
     
     @Override
-    public VoiceCall getCallStatus(String callId, Current current) {
-        try {
-            return chatCore.getCallStatus(callId);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo estado de llamada: " + e.getMessage());
-            return null;
+    public CompletionStage<Void> acknowledgeWebRTCSignalsAsync(String userId, long upToSeq, Current current) {
+        requireWritable();
+        ChatServicePrx owner = remoteOwner(ShardRouter.userKey(userId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.acknowledgeWebRTCSignalsAsync(userId, upToSeq, router.forwardContext()),
+                "Error confirmando señales WebRTC", null);
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.userKey(userId), () -> {
+            try {
+                chatCore.acknowledgeWebRTCSignals(userId, upToSeq);
+            } catch (Exception e) {
+                System.err.println("Error confirmando señales WebRTC: " + e.getMessage());
+            }
+        });
     }
     
+    // ========== Búsqueda ==========
+    
     @Override
-    public VoiceCall[] getActiveCallsForUser(String userId, Current current) {
-        try {
-            List<VoiceCall> calls = chatCore.getActiveCallsForUser(userId);
-            return calls.toArray(new VoiceCall[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo llamadas activas: " + e.getMessage());
-            return new VoiceCall[0];
+    public CompletionStage<SearchResult> searchMessagesAsync(String userId, String query, int limit, String cursor, Current current) {
+        requireReadable();
+        if (gatherFromCluster(current)) {
+            return ShardRouter.relay(searchCluster(userId, query, limit, cursor), "Error buscando mensajes");
         }
+        return usersResolved(userId).thenCompose(resolved -> lanes.submit(Lane.BULK, () -> {
+            try {
+                return chatCore.searchMessages(userId, query, limit, cursor);
+            } catch (Exception e) {
+                System.err.println("Error buscando mensajes: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
     }
     
-    // ========== Métodos de señalización WebRTC ==========
+    // ========== Mensajes por ID ==========
+    
+    // El mensaje vive en el nodo dueño de su conversación. No se deduce del ID: Ids.NodeId
+    // puede no coincidir con Cluster.Nodes y los mensajes importados o anteriores conservan
+    // el ID de su origen. Se busca primero aquí y, si no está, en los demás nodos.
+    private CompletableFuture<LocatedMessage> locateInCluster(String userId, String messageId, Current current) {
+        return gatherOthers(current, prx -> prx.getMessageByIdAsync(userId, messageId, router.forwardContext())
+                .handle((found, error) -> error == null && found != null
+                    ? new LocatedMessage[]{found}
+                    : new LocatedMessage[0]))
+            .thenApply(found -> {
+                if (found.isEmpty()) {
+                    throw new IllegalArgumentException("Mensaje no encontrado");
+                }
+                return found.get(0);
+            });
+    }
     
     @Override
-    public void sendWebRTCSignal(String callId, String fromUserId, String toUserId, String type, String data, Current current) {
-        try {
-            chatCore.sendWebRTCSignal(callId, fromUserId, toUserId, type, data);
-        } catch (Exception e) {
-            System.err.println("Error enviando señal WebRTC: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<LocatedMessage> getMessageByIdAsync(String userId, String messageId, Current current) {
+        requireReadable();
+        if (chatCore.chatKeyOf(messageId) == null && gatherFromCluster(current)) {
+            return ShardRouter.relay(locateInCluster(userId, messageId, current), "Error obteniendo mensaje");
+        }
+        return lanes.submit(Lane.MESSAGING, () -> {
+            try {
+                return chatCore.getMessageById(userId, messageId);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo mensaje: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Edición o eliminación de un mensaje por ID: si la conversación es local corre en su
+     * partición (la misma de los mensajes nuevos); si no, se ubica el mensaje en el cluster
+     * y se reenvía al dueño de su conversación.
+     */
+    private CompletableFuture<Void> changeMessage(String userId, String messageId, Current current,
+                                                  Function<ChatServicePrx, CompletableFuture<Void>> forward,
+                                                  DispatchLanes.Action change, String errorPrefix) {
+        DispatchLanes.Action logged = () -> {
+            try {
+                change.run();
+            } catch (Exception e) {
+                System.err.println(errorPrefix + ": " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        };
+        String chatKey = chatCore.chatKeyOf(messageId);
+        if (chatKey != null) {
+            return lanes.run(Lane.MESSAGING, ShardRouter.chatKey(chatKey), logged);
         }
+        if (!gatherFromCluster(current)) {
+            // ChatCore informa que no existe
+            return lanes.run(Lane.MESSAGING, logged);
+        }
+        CompletableFuture<Void> changed = locateInCluster(userId, messageId, current)
+            .thenCompose(found -> {
+                String shardKey = ShardRouter.messageKey(found.message);
+                ChatServicePrx owner = router.remoteChatService(shardKey);
+                return owner != null ? forward.apply(owner) : lanes.run(Lane.MESSAGING, shardKey, logged);
+            });
+        return ShardRouter.relay(changed, errorPrefix);
+    }
+    
+    @Override
+    public CompletionStage<Void> editMessageAsync(String userId, String messageId, String content, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        AdmissionController.Permit permit = admitMessage(userId, content, current);
+        CompletableFuture<Void> edited = changeMessage(userId, messageId, current,
+            owner -> owner.editMessageAsync(userId, messageId, content, router.forwardContext()),
+            () -> chatCore.editMessage(userId, messageId, content), "Error editando mensaje");
+        return edited.whenComplete((result, error) -> permit.release());
     }
     
     @Override
-    public WebRTCSignal[] getWebRTCSignals(String userId, Current current) {
-        try {
-            List<WebRTCSignal> signals = chatCore.getWebRTCSignals(userId);
-            return signals.toArray(new WebRTCSignal[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo señales WebRTC: " + e.getMessage());
-            return new WebRTCSignal[0];
+    public CompletionStage<Void> deleteMessageAsync(String userId, String messageId, Current current) {
+        requireWritable();
+        return changeMessage(userId, messageId, current,
+            owner -> owner.deleteMessageAsync(userId, messageId, router.forwardContext()),
+            () -> chatCore.deleteMessage(userId, messageId), "Error eliminando mensaje");
+    }
+    
+    @Override
+    public CompletionStage<Void> markReadAsync(String userId, String chatId, long upToSeq, Current current) {
+        requireWritable();
+        // Las marcas de lectura viven en el nodo (y la partición) dueño de la conversación o del grupo
+        String shardKey = ChatCore.isGroupChatId(chatId)
+            ? ShardRouter.idKey(chatId)
+            : ShardRouter.conversationKey(userId, chatId);
+        ChatServicePrx owner = remoteOwner(shardKey, current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.markReadAsync(userId, chatId, upToSeq, router.forwardContext()),
+                "Error marcando mensajes como leídos");
+        }
+        return lanes.run(Lane.MESSAGING, shardKey, () -> {
+            try {
+                chatCore.markRead(userId, chatId, upToSeq);
+            } catch (Exception e) {
+                System.err.println("Error marcando mensajes como leídos: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    // Marca de nodo sin más resultados dentro del cursor compuesto
+    private static final String CURSOR_END = "end";
+    
+    /**
+     * Búsqueda repartida entre todos los nodos. El cursor compuesto guarda
+     * la posición de cada nodo: "node0=123;node1=end".
+     */
+    private CompletableFuture<SearchResult> searchCluster(String userId, String query, int limit, String cursor) {
+        Map<String, String> nodeCursors = new HashMap<>();
+        if (cursor != null && !cursor.isEmpty()) {
+            for (String part : cursor.split(";")) {
+                int eq = part.indexOf('=');
+                if (eq > 0) {
+                    nodeCursors.put(part.substring(0, eq), part.substring(eq + 1));
+                }
+            }
+        }
+        
+        // Lanzar las búsquedas remotas en paralelo; la local corre en su carril
+        Map<String, CompletableFuture<SearchResult>> pending = new LinkedHashMap<>();
+        for (String node : router.getNodeIds()) {
+            String nodeCursor = nodeCursors.getOrDefault(node, "");
+            if (CURSOR_END.equals(nodeCursor)) {
+                continue;
+            }
+            ChatServicePrx proxy = router.chatServiceOfNode(node);
+            pending.put(node, proxy == null
+                ? usersResolved(userId).thenCompose(resolved ->
+                    lanes.submit(Lane.BULK, () -> chatCore.searchMessages(userId, query, limit, nodeCursor)))
+                : proxy.searchMessagesAsync(userId, query, limit, nodeCursor, router.forwardContext()));
+        }
+        
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> mergeSearch(nodeCursors, pending, limit));
+    }
+    
+    // Une los resultados parciales (ya completados) en una página ordenada por fecha
+    private SearchResult mergeSearch(Map<String, String> nodeCursors,
+                                     Map<String, CompletableFuture<SearchResult>> pending, int limit) {
+        Map<String, SearchResult> partials = new LinkedHashMap<>();
+        List<String[]> candidates = new ArrayList<>(); // {nodo, índice}
+        for (Map.Entry<String, CompletableFuture<SearchResult>> entry : pending.entrySet()) {
+            SearchResult partial = entry.getValue().join();
+            partials.put(entry.getKey(), partial);
+            for (int i = 0; i < partial.messages.length; i++) {
+                candidates.add(new String[]{entry.getKey(), String.valueOf(i)});
+            }
+        }
+        
+        candidates.sort((a, b) -> Long.compare(
+            partials.get(b[0]).messages[Integer.parseInt(b[1])].timestamp,
+            partials.get(a[0]).messages[Integer.parseInt(a[1])].timestamp));
+        
+        int pageSize = MessageSearchIndex.pageSize(limit);
+        List<Message> messages = new ArrayList<>();
+        List<String> cursors = new ArrayList<>();
+        Map<String, Integer> taken = new HashMap<>();
+        for (String[] candidate : candidates.subList(0, Math.min(pageSize, candidates.size()))) {
+            int index = Integer.parseInt(candidate[1]);
+            messages.add(partials.get(candidate[0]).messages[index]);
+            taken.merge(candidate[0], 1, Integer::sum);
+            
+            // Cursor que continúa justo después de este mensaje en cada nodo
+            Map<String, String> after = new HashMap<>(nodeCursors);
+            for (Map.Entry<String, Integer> t : taken.entrySet()) {
+                after.put(t.getKey(), nodeCursorAfter(partials.get(t.getKey()), t.getValue()));
+            }
+            cursors.add(joinCursor(after, partials.keySet()));
+        }
+        
+        Map<String, String> next = new HashMap<>(nodeCursors);
+        for (Map.Entry<String, SearchResult> partial : partials.entrySet()) {
+            int count = taken.getOrDefault(partial.getKey(), 0);
+            if (count > 0 || partial.getValue().messages.length == 0) {
+                next.put(partial.getKey(), nodeCursorAfter(partial.getValue(), count));
+            }
+        }
+        
+        SearchResult result = new SearchResult();
+        result.messages = messages.toArray(new Message[0]);
+        result.cursors = cursors.toArray(new String[0]);
+        result.nextCursor = joinCursor(next, partials.keySet());
+        return result;
+    }
+    
+    // Posición de un nodo después de consumir 'count' de sus resultados
+    private static String nodeCursorAfter(SearchResult partial, int count) {
+        if (count < partial.messages.length) {
+            return count == 0 ? "" : partial.cursors[count - 1];
         }
+        return partial.nextCursor.isEmpty() ? CURSOR_END : partial.nextCursor;
+    }
+    
+    // Cursor compuesto; vacío si todos los nodos consultados terminaron
+    private String joinCursor(Map<String, String> nodeCursors, Set<String> queried) {
+        StringBuilder sb = new StringBuilder();
+        boolean pendingResults = false;
+        for (String node : router.getNodeIds()) {
+            String nodeCursor = nodeCursors.getOrDefault(node, "");
+            if (!CURSOR_END.equals(nodeCursor) || !queried.contains(node)) {
+                pendingResults |= !CURSOR_END.equals(nodeCursor);
+            }
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(node).append('=').append(nodeCursor);
+        }
+        return pendingResults ? sb.toString() : "";
+    }
+    
+    // ========== Presencia ==========
+    // La presencia es estado de conexión: no se replica ni se reenvía al dueño del usuario
+    
+    private PresenceTracker requirePresence() {
+        if (presence == null) {
+            throw new RuntimeException("Presencia no disponible");
+        }
+        return presence;
+    }
+    
+    @Override
+    public CompletionStage<Void> attachPresenceAsync(String userId, Current current) {
+        PresenceTracker tracker = requirePresence();
+        return lanes.run(Lane.SIGNALLING, () -> {
+            try {
+                tracker.attach(userId, current.con);
+            } catch (Exception e) {
+                System.err.println("Error registrando presencia: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
     @Override
-    public void acknowledgeWebRTCSignal(String callId, String userId, int signalIndex, Current current) {
-        try {
-            chatCore.acknowledgeWebRTCSignal(callId, userId, signalIndex);
-        } catch (Exception e) {
-            System.err.println("Error confirmando señal WebRTC: " + e.getMessage());
+    public CompletionStage<PresenceInfo[]> getPresenceAsync(String[] userIds, Current current) {
+        PresenceTracker tracker = requirePresence();
+        CompletableFuture<PresenceInfo[]> merged = lanes.submit(Lane.SIGNALLING,
+                () -> tracker.getPresence(Arrays.asList(userIds)))
+            .thenCombine(gatherOthers(current, prx -> prx.getPresenceAsync(userIds, router.forwardContext())),
+                ChatServiceI::mergePresence);
+        return ShardRouter.relay(merged, "Error obteniendo presencia");
+    }
+    
+    // Un usuario puede estar conectado a cualquier nodo: gana el estado más reciente en línea
+    private static PresenceInfo[] mergePresence(List<PresenceInfo> local, List<PresenceInfo> remote) {
+        Map<String, PresenceInfo> merged = new LinkedHashMap<>();
+        for (PresenceInfo info : local) {
+            merged.put(info.userId, info);
+        }
+        for (PresenceInfo info : remote) {
+            PresenceInfo existing = merged.get(info.userId);
+            if (existing == null || isNewerPresence(info, existing)) {
+                merged.put(info.userId, info);
+            }
+        }
+        return merged.values().toArray(new PresenceInfo[0]);
+    }
+    
+    private static boolean isNewerPresence(PresenceInfo candidate, PresenceInfo existing) {
+        if (candidate.status != existing.status) {
+            return candidate.status == PresenceStatus.ONLINE;
         }
+        return candidate.lastSeen > existing.lastSeen;
+    }
+    
+    @Override
+    public CompletionStage<PresenceInfo[]> subscribePresenceAsync(String userId, String[] contactIds, Current current) {
+        PresenceTracker tracker = requirePresence();
+        return lanes.submit(Lane.MESSAGING, () -> {
+            try {
+                Collection<String> contacts = contactIds.length > 0
+                    ? Arrays.asList(contactIds)
+                    : chatCore.getContactIds(userId);
+                return tracker.subscribe(userId, contacts).toArray(new PresenceInfo[0]);
+            } catch (Exception e) {
+                System.err.println("Error suscribiendo a presencia: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
+    }
+    
+    @Override
+    public CompletionStage<PresenceInfo[]> pollPresenceUpdatesAsync(String userId, Current current) {
+        PresenceTracker tracker = requirePresence();
+        return lanes.submit(Lane.SIGNALLING, () -> {
+            try {
+                return tracker.poll(userId).toArray(new PresenceInfo[0]);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo cambios de presencia: " + e.getMessage());
+                return new PresenceInfo[0];
+            }
+        });
+    }
+    
+    // ========== Indicadores de escritura ==========
+    
+    // Se atienden en el hilo de Ice sin pasar por los carriles: son O(1) y se descartan
+    // antes que competir con los mensajes reales
+    
+    @Override
+    public CompletionStage<Void> notifyTypingAsync(String userId, String chatId, TypingState state, Current current) {
+        if (typing != null && state != null) {
+            typing.notify(userId, chatId, state, ChatCore.isGroupChatId(chatId),
+                () -> chatCore.getChatParticipants(userId, chatId));
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+    
+    @Override
+    public CompletionStage<TypingIndicator[]> getTypingIndicatorsAsync(String userId, Current current) {
+        TypingIndicator[] indicators = typing != null
+            ? typing.getIndicators(userId).toArray(new TypingIndicator[0])
+            : new TypingIndicator[0];
+        return CompletableFuture.completedFuture(indicators);
     }
 }
@@ -1,134 +1,391 @@
 package com.compunet.chatapp.servants;
 
+import com.compunet.chatapp.admission.AdmissionController;
+import com.compunet.chatapp.cache.ResponseCache;
+import com.compunet.chatapp.cluster.ShardRouter;
 import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.dispatch.DispatchLanes;
+import com.compunet.chatapp.dispatch.Lane;
+import com.compunet.chatapp.replication.ReplicationManager;
 import compunet.*;
 import com.zeroc.Ice.Current;
+import com.zeroc.Ice.InputStream;
+import com.zeroc.Ice.OutputStream;
+import com.zeroc.Ice.UserException;
+import com.zeroc.IceInternal.Incoming;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Implementación del servant GroupService.
- * Delega toda la lógica en ChatCore.
+ * Delega toda la lógica en ChatCore; cada operación se ejecuta en el carril de su clase.
+ * En modo particionado reenvía al proceso dueño las invocaciones que no le pertenecen.
+ * El historial de un grupo y la lista de grupos de un usuario se responden, si hay
+ * caché de respuestas, con el cuerpo ya codificado de la versión vigente.
  */
 public class GroupServiceI implements GroupService {
     
+    // Espera sugerida al rechazar audios por memoria
+    private static final long AUDIO_REJECT_RETRY_MS = 10000;
+    
     private final ChatCore chatCore;
+    private final ShardRouter router; // null en modo de un solo proceso
+    private final ReplicationManager replication; // null si no hay réplicas
+    private final AdmissionController admission; // null sin control de admisión
+    private final DispatchLanes lanes;
+    private final ResponseCache responseCache; // null sin caché de respuestas
     
-    public GroupServiceI(ChatCore chatCore) {
+    public GroupServiceI(ChatCore chatCore, ShardRouter router, ReplicationManager replication,
+                         AdmissionController admission, DispatchLanes lanes, ResponseCache responseCache) {
         this.chatCore = chatCore;
+        this.responseCache = responseCache;
+        this.lanes = lanes;
+        this.router = router;
+        this.replication = replication;
+        this.admission = admission;
     }
     
-    @Override
-    public String createGroup(String ownerId, String groupName, String[] memberIds, Current current) {
-        try {
-            return chatCore.createGroup(ownerId, groupName, memberIds);
-        } catch (Exception e) {
-            System.err.println("Error creando grupo: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    // En una réplica seguidora las escrituras se rechazan (van al primario)
+    private void requireWritable() {
+        if (replication != null) {
+            replication.checkWritable();
         }
     }
     
-    @Override
-    public void addUserToGroup(String groupId, String userId, Current current) {
-        try {
-            chatCore.addUserToGroup(groupId, userId);
-        } catch (Exception e) {
-            System.err.println("Error agregando usuario a grupo: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    // Las lecturas en una seguidora solo se atienden si su retraso está acotado
+    private void requireReadable() {
+        if (replication != null) {
+            replication.checkReadable();
         }
     }
     
-    @Override
-    public void sendGroupMessage(String fromUserId, String groupId, String content, Current current) {
-        try {
-            chatCore.sendGroupMessage(fromUserId, groupId, content);
-        } catch (Exception e) {
-            System.err.println("Error enviando mensaje a grupo: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    // Proxy del dueño de la clave si la invocación debe reenviarse, null si se atiende aquí
+    private GroupServicePrx remoteOwner(String shardKey, Current current) {
+        if (router == null || router.isForwarded(current)) {
+            return null;
+        }
+        return router.remoteGroupService(shardKey);
+    }
+    
+    // El control de admisión se aplica solo en el nodo que recibe la invocación del cliente
+    private AdmissionController.Permit admitMessage(String userId, String payload, Current current)
+            throws RateLimitedException {
+        if (admission == null || (router != null && router.isForwarded(current))) {
+            return AdmissionController.Permit.NONE;
+        }
+        return admission.admitMessage(userId, current.con, payload);
+    }
+    
+    // Por encima de la marca dura de memoria no se aceptan audios nuevos
+    private void requireAudioCapacity() throws RateLimitedException {
+        if (chatCore.getFootprint().isAboveHardLimit()) {
+            throw new RateLimitedException("Memoria del servidor por encima del límite: no se aceptan audios",
+                AUDIO_REJECT_RETRY_MS);
         }
     }
     
+    // Las consultas por usuario se reparten entre todos los nodos solo en la invocación original
+    private boolean gatherFromCluster(Current current) {
+        return router != null && !router.isForwarded(current);
+    }
+    
+    // Usuarios de otros nodos resueltos sin bloquear antes de entrar al carril o la partición:
+    // ChatCore solo consulta la caché y nunca espera a otro nodo
+    private CompletableFuture<Void> usersResolved(String... userIds) {
+        return router != null ? router.resolveUsers(userIds) : CompletableFuture.completedFuture(null);
+    }
+    
     @Override
-    public void sendGroupAudio(String fromUserId, String groupId, String audioBase64, int duration, Current current) {
-        try {
-            chatCore.sendGroupAudio(fromUserId, groupId, audioBase64, duration);
-        } catch (Exception e) {
-            System.err.println("Error enviando audio a grupo: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<String> createGroupAsync(String ownerId, String groupName, String[] memberIds, Current current) {
+        requireWritable();
+        return usersResolved(ownerId).thenCompose(resolved -> lanes.submit(Lane.MESSAGING, ShardRouter.userKey(ownerId), () -> {
+            try {
+                return chatCore.createGroup(ownerId, groupName, memberIds);
+            } catch (Exception e) {
+                System.err.println("Error creando grupo: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
+    }
+    
+    @Override
+    public CompletionStage<Void> addUserToGroupAsync(String groupId, String userId, Current current) {
+        requireWritable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(groupId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.addUserToGroupAsync(groupId, userId, router.forwardContext()),
+                "Error agregando usuario a grupo");
         }
+        return usersResolved(userId).thenCompose(resolved -> lanes.run(Lane.MESSAGING, ShardRouter.idKey(groupId), () -> {
+            try {
+                chatCore.addUserToGroup(groupId, userId);
+            } catch (Exception e) {
+                System.err.println("Error agregando usuario a grupo: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
     }
     
     @Override
-    public ChatSummary[] getUserGroupChats(String userId, Current current) {
-        try {
-            List<ChatSummary> chats = chatCore.getUserGroupChats(userId);
-            return chats.toArray(new ChatSummary[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo grupos: " + e.getMessage());
-            return new ChatSummary[0];
+    public CompletionStage<Void> sendGroupMessageAsync(String fromUserId, String groupId, String content, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        AdmissionController.Permit permit = admitMessage(fromUserId, content, current);
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(groupId), current);
+        CompletableFuture<Void> sent = owner != null
+            ? ShardRouter.relay(owner.sendGroupMessageAsync(fromUserId, groupId, content, router.forwardContext()),
+                "Error enviando mensaje a grupo")
+            : usersResolved(fromUserId).thenCompose(resolved -> lanes.run(Lane.MESSAGING, ShardRouter.idKey(groupId), () -> {
+                try {
+                    chatCore.sendGroupMessage(fromUserId, groupId, content);
+                } catch (Exception e) {
+                    System.err.println("Error enviando mensaje a grupo: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            }));
+        return sent.whenComplete((result, error) -> permit.release());
+    }
+    
+    @Override
+    public CompletionStage<Void> sendGroupAudioAsync(String fromUserId, String groupId, String audioBase64, int duration, Current current)
+            throws RateLimitedException {
+        requireWritable();
+        requireAudioCapacity();
+        AdmissionController.Permit permit = admitMessage(fromUserId, audioBase64, current);
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(groupId), current);
+        CompletableFuture<Void> sent = owner != null
+            ? ShardRouter.relay(owner.sendGroupAudioAsync(fromUserId, groupId, audioBase64, duration, router.forwardContext()),
+                "Error enviando audio a grupo")
+            : usersResolved(fromUserId).thenCompose(resolved -> lanes.run(Lane.BULK, ShardRouter.idKey(groupId), () -> {
+                try {
+                    chatCore.sendGroupAudio(fromUserId, groupId, audioBase64, duration);
+                } catch (Exception e) {
+                    System.err.println("Error enviando audio a grupo: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            }));
+        return sent.whenComplete((result, error) -> permit.release());
+    }
+    
+    @Override
+    public CompletionStage<ChatSummary[]> getUserGroupChatsAsync(String userId, Current current) {
+        requireReadable();
+        CompletableFuture<List<ChatSummary>> remote = gatherFromCluster(current)
+            ? router.gatherGroup(prx -> prx.getUserGroupChatsAsync(userId, router.forwardContext()))
+            : CompletableFuture.completedFuture(new ArrayList<>());
+        CompletableFuture<ChatSummary[]> chats = lanes.submit(Lane.MESSAGING, () -> chatCore.getUserGroupChats(userId))
+            .thenCombine(remote, (local, others) -> {
+                local.addAll(others);
+                local.sort((a, b) -> Long.compare(b.lastMessageTime, a.lastMessageTime));
+                return local.toArray(new ChatSummary[0]);
+            });
+        return ShardRouter.relay(chats, "Error obteniendo grupos", new ChatSummary[0]);
+    }
+    
+    @Override
+    public CompletionStage<Message[]> getGroupChatMessagesAsync(String userId, String groupId, Current current) {
+        requireReadable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(groupId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getGroupChatMessagesAsync(userId, groupId, router.forwardContext()),
+                "Error obteniendo mensajes de grupo", new Message[0]);
         }
+        return lanes.submit(Lane.BULK, () -> {
+            try {
+                List<Message> messages = chatCore.getGroupChatMessages(userId, groupId);
+                return messages.toArray(new Message[0]);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo mensajes de grupo: " + e.getMessage());
+                return new Message[0];
+            }
+        });
     }
     
+    // ========== Respuestas precodificadas ==========
+    
+    /**
+     * Con caché de respuestas, getGroupChatMessages y getUserGroupChats se despachan aquí:
+     * se leen los parámetros como lo haría el código generado y la respuesta se arma con el
+     * cuerpo codificado de la caché. Lo que no se puede cachear (grupos de otro nodo, listas
+     * reunidas de todo el clúster, usuarios sin acceso) sigue por la operación normal.
+     */
     @Override
-    public Message[] getGroupChatMessages(String userId, String groupId, Current current) {
-        try {
-            List<Message> messages = chatCore.getGroupChatMessages(userId, groupId);
-            return messages.toArray(new Message[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo mensajes de grupo: " + e.getMessage());
-            return new Message[0];
+    public CompletionStage<OutputStream> _iceDispatch(Incoming in, Current current) throws UserException {
+        if (responseCache != null) {
+            switch (current.operation) {
+                case ResponseCache.OP_GROUP_MESSAGES:
+                    return dispatchGroupChatMessages(in, current);
+                case ResponseCache.OP_USER_GROUP_CHATS:
+                    return dispatchUserGroupChats(in, current);
+                default:
+                    break;
+            }
+        }
+        return GroupService.super._iceDispatch(in, current);
+    }
+    
+    private CompletionStage<OutputStream> dispatchGroupChatMessages(Incoming in, Current current) {
+        com.zeroc.Ice.Object._iceCheckMode(null, current.mode);
+        InputStream istr = in.startReadParams();
+        String userId = istr.readString();
+        String groupId = istr.readString();
+        in.endReadParams();
+        
+        if (remoteOwner(ShardRouter.idKey(groupId), current) != null
+                || !chatCore.getGroupMembers(groupId).contains(userId)) {
+            return in.setResultFuture(getGroupChatMessagesAsync(userId, groupId, current), MessageSeqHelper::write);
+        }
+        
+        requireReadable();
+        // La versión se lee antes que los mensajes: si cambia mientras se codifica, la entrada queda vieja
+        long version = responseCache.conversationVersion(groupId);
+        return in.setResultFuture(responseCache.load(ResponseCache.OP_GROUP_MESSAGES, groupId, current.encoding,
+            version, () -> lanes.submit(Lane.BULK, () -> {
+                try {
+                    Message[] messages = chatCore.getGroupChatMessages(userId, groupId).toArray(new Message[0]);
+                    return ResponseCache.encode(current, os -> MessageSeqHelper.write(os, messages));
+                } catch (Exception e) {
+                    System.err.println("Error obteniendo mensajes de grupo: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            })), OutputStream::writeBlob);
+    }
+    
+    private CompletionStage<OutputStream> dispatchUserGroupChats(Incoming in, Current current) {
+        com.zeroc.Ice.Object._iceCheckMode(null, current.mode);
+        InputStream istr = in.startReadParams();
+        String userId = istr.readString();
+        in.endReadParams();
+        
+        if (gatherFromCluster(current)) {
+            return in.setResultFuture(getUserGroupChatsAsync(userId, current), ChatSummarySeqHelper::write);
         }
+        
+        requireReadable();
+        long version = responseCache.userVersion(userId);
+        return in.setResultFuture(responseCache.load(ResponseCache.OP_USER_GROUP_CHATS, userId, current.encoding,
+            version, () -> lanes.submit(Lane.MESSAGING, () -> {
+                try {
+                    ChatSummary[] chats = chatCore.getUserGroupChats(userId).toArray(new ChatSummary[0]);
+                    return ResponseCache.encode(current, os -> ChatSummarySeqHelper.write(os, chats));
+                } catch (Exception e) {
+                    System.err.println("Error obteniendo grupos: " + e.getMessage());
+                    throw new RuntimeException(e.getMessage());
+                }
+            })), OutputStream::writeBlob);
     }
     
     // ========== Métodos de llamadas de voz grupales ==========
     
     @Override
-    public String startGroupCall(String callerId, String groupId, Current current) {
-        try {
-            return chatCore.startGroupCall(callerId, groupId);
-        } catch (Exception e) {
-            System.err.println("Error iniciando llamada grupal: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<String> startGroupCallAsync(String callerId, String groupId, Current current) {
+        requireWritable();
+        // La llamada se crea en el dueño del grupo con un ID que también le pertenece
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(groupId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.startGroupCallAsync(callerId, groupId, router.forwardContext()),
+                "Error iniciando llamada grupal");
+        }
+        return usersResolved(callerId).thenCompose(resolved -> lanes.submit(Lane.SIGNALLING, ShardRouter.idKey(groupId), () -> {
+            try {
+                return chatCore.startGroupCall(callerId, groupId);
+            } catch (Exception e) {
+                System.err.println("Error iniciando llamada grupal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        }));
+    }
+    
+    @Override
+    public CompletionStage<Void> joinGroupCallAsync(String callId, String userId, Current current) {
+        requireWritable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.joinGroupCallAsync(callId, userId, router.forwardContext()),
+                "Error uniéndose a llamada grupal");
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.idKey(callId), () -> {
+            try {
+                chatCore.joinGroupCall(callId, userId);
+            } catch (Exception e) {
+                System.err.println("Error uniéndose a llamada grupal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
     @Override
-    public void joinGroupCall(String callId, String userId, Current current) {
-        try {
-            chatCore.joinGroupCall(callId, userId);
-        } catch (Exception e) {
-            System.err.println("Error uniéndose a llamada grupal: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<Void> leaveGroupCallAsync(String callId, String userId, Current current) {
+        requireWritable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.leaveGroupCallAsync(callId, userId, router.forwardContext()),
+                "Error saliendo de llamada grupal");
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.idKey(callId), () -> {
+            try {
+                chatCore.leaveGroupCall(callId, userId);
+            } catch (Exception e) {
+                System.err.println("Error saliendo de llamada grupal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
     @Override
-    public void leaveGroupCall(String callId, String userId, Current current) {
-        try {
-            chatCore.leaveGroupCall(callId, userId);
-        } catch (Exception e) {
-            System.err.println("Error saliendo de llamada grupal: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<Void> endGroupCallAsync(String callId, String userId, Current current) {
+        requireWritable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.endGroupCallAsync(callId, userId, router.forwardContext()),
+                "Error terminando llamada grupal");
         }
+        return lanes.run(Lane.SIGNALLING, ShardRouter.idKey(callId), () -> {
+            try {
+                chatCore.endGroupCall(callId, userId);
+            } catch (Exception e) {
+                System.err.println("Error terminando llamada grupal: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
     
     @Override
-    public void endGroupCall(String callId, String userId, Current current) {
-        try {
-            chatCore.endGroupCall(callId, userId);
-        } catch (Exception e) {
-            System.err.println("Error terminando llamada grupal: " + e.getMessage());
-            throw new RuntimeException(e.getMessage());
+    public CompletionStage<VoiceCall[]> getActiveGroupCallsAsync(String groupId, Current current) {
+        requireReadable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(groupId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getActiveGroupCallsAsync(groupId, router.forwardContext()),
+                "Error obteniendo llamadas grupales activas", new VoiceCall[0]);
         }
+        return lanes.submit(Lane.SIGNALLING, () -> {
+            try {
+                List<VoiceCall> calls = chatCore.getActiveGroupCalls(groupId);
+                return calls.toArray(new VoiceCall[0]);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo llamadas grupales activas: " + e.getMessage());
+                return new VoiceCall[0];
+            }
+        });
     }
     
     @Override
-    public VoiceCall[] getActiveGroupCalls(String groupId, Current current) {
-        try {
-            List<VoiceCall> calls = chatCore.getActiveGroupCalls(groupId);
-            return calls.toArray(new VoiceCall[0]);
-        } catch (Exception e) {
-            System.err.println("Error obteniendo llamadas grupales activas: " + e.getMessage());
-            return new VoiceCall[0];
+    public CompletionStage<RosterDelta> getGroupCallRosterDeltaAsync(String callId, long sinceVersion, Current current) {
+        requireReadable();
+        GroupServicePrx owner = remoteOwner(ShardRouter.idKey(callId), current);
+        if (owner != null) {
+            return ShardRouter.relay(owner.getGroupCallRosterDeltaAsync(callId, sinceVersion, router.forwardContext()),
+                "Error obteniendo cambios del roster");
         }
+        return lanes.submit(Lane.SIGNALLING, () -> {
+            try {
+                return chatCore.getGroupCallRosterDelta(callId, sinceVersion);
+            } catch (Exception e) {
+                System.err.println("Error obteniendo cambios del roster: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
+        });
     }
 }
@@ -0,0 +1,56 @@
+package com.compunet.chatapp.servants;
+
+import com.compunet.chatapp.replication.ReplicationManager;
+import compunet.*;
+import com.zeroc.Ice.Current;
+
+/**
+ * Implementación del servant ReplicaService.
+ * Delega en ReplicationManager la aplicación del log y la promoción.
+ */
+public class ReplicaServiceI implements ReplicaService {
+    
+    private final ReplicationManager replication;
+    
+    public ReplicaServiceI(ReplicationManager replication) {
+        this.replication = replication;
+    }
+    
+    @Override
+    public long applyEntries(long term, long baseSeq, long primarySeq, ReplicationEntry[] entries, Current current)
+            throws StaleTermException {
+        try {
+            return replication.applyEntries(term, baseSeq, primarySeq, entries);
+        } catch (StaleTermException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Error aplicando entradas replicadas: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+    
+    @Override
+    public ReplicationStatus getReplicationStatus(Current current) {
+        return replication.getStatus();
+    }
+    
+    @Override
+    public void promote(Current current) {
+        try {
+            replication.promote();
+        } catch (Exception e) {
+            System.err.println("Error promoviendo réplica: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+    
+    @Override
+    public void markDivergent(long missingFromSeq, Current current) {
+        try {
+            replication.markDivergent(missingFromSeq);
+        } catch (Exception e) {
+            System.err.println("Error marcando la réplica como divergente: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.compunet.chatapp.servants;
+
+import com.compunet.chatapp.cluster.ShardRouter;
+import compunet.*;
+import com.zeroc.Ice.Current;
+
+/**
+ * Implementación del servant ShardLocator.
+ * Expone la tabla de enrutamiento para que los clientes invoquen directamente al proceso dueño.
+ */
+public class ShardLocatorI implements ShardLocator {
+    
+    private final ShardRouter router;
+    
+    public ShardLocatorI(ShardRouter router) {
+        this.router = router;
+    }
+    
+    @Override
+    public ShardInfo[] getShardTable(Current current) {
+        return router.getShardTable();
+    }
+    
+    @Override
+    public ShardInfo locateUser(String userId, Current current) {
+        return router.locate(ShardRouter.userKey(userId));
+    }
+    
+    @Override
+    public ShardInfo locateConversation(String userA, String userB, Current current) {
+        return router.locate(ShardRouter.conversationKey(userA, userB));
+    }
+    
+    @Override
+    public ShardInfo locateGroup(String groupId, Current current) {
+        return router.locate(ShardRouter.idKey(groupId));
+    }
+    
+    @Override
+    public ShardInfo locateCall(String callId, Current current) {
+        return router.locate(ShardRouter.idKey(callId));
+    }
+}
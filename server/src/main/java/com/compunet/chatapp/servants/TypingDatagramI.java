@@ -0,0 +1,32 @@
+package com.compunet.chatapp.servants;
+
+import com.zeroc.Ice.Current;
+import com.zeroc.Ice.OperationNotExistException;
+import com.zeroc.Ice.OutputStream;
+import com.zeroc.Ice.UserException;
+import com.zeroc.IceInternal.Incoming;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Servant del adaptador de datagramas (TypingAdapter, udp).
+ * Atiende solo notifyTyping delegando en ChatServiceI; cualquier otra operación se rechaza,
+ * así que por UDP no se alcanza el resto de chatService ni los servicios internos.
+ */
+public class TypingDatagramI implements com.zeroc.Ice.Object {
+    
+    private static final String OP_NOTIFY_TYPING = "notifyTyping";
+    
+    private final ChatServiceI chatService;
+    
+    public TypingDatagramI(ChatServiceI chatService) {
+        this.chatService = chatService;
+    }
+    
+    @Override
+    public CompletionStage<OutputStream> _iceDispatch(Incoming in, Current current) throws UserException {
+        if (!OP_NOTIFY_TYPING.equals(current.operation)) {
+            throw new OperationNotExistException(current.id, current.facet, current.operation);
+        }
+        return chatService._iceDispatch(in, current);
+    }
+}
@@ -0,0 +1,454 @@
+package com.compunet.chatapp.transfer;
+
+import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.core.EntrySink;
+import compunet.TransferReport;
+import com.zeroc.Ice.Communicator;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exportación e importación del historial completo (usuarios, grupos y conversaciones)
+ * en archivos NDJSON, sin detener el servicio y con memoria acotada: los mensajes se
+ * escriben mientras se recorre cada conversación y se leen línea a línea.
+ *
+ * Directorio de exportación:
+ *   users.ndjson, groups.ndjson    entradas registerUser / createGroup
+ *   messages-<n>.ndjson            un archivo por hilo; cada conversación completa en uno solo
+ *   export.progress                conversaciones terminadas y posición del archivo tras cada una
+ *
+ * La exportación se reanuda desde export.progress (los archivos se recortan a la última
+ * conversación terminada). La importación es idempotente: omite usuarios y grupos existentes
+ * y los mensajes cuyo ID ya está en el destino.
+ *
+ * Los directorios se resuelven dentro de Transfer.BaseDir; se rechaza cualquier ruta que
+ * quede fuera (absoluta, con "..", o por un enlace simbólico).
+ *
+ * Configuración:
+ *   Transfer.Threads=4
+ *   Transfer.BaseDir=transfer
+ */
+public class HistoryTransfer {
+    
+    static final String USERS_FILE = "users.ndjson";
+    static final String GROUPS_FILE = "groups.ndjson";
+    static final String MESSAGES_PREFIX = "messages-";
+    static final String MESSAGES_SUFFIX = ".ndjson";
+    static final String PROGRESS_FILE = "export.progress";
+    
+    // Marcas de export.progress para los archivos de usuarios y grupos
+    private static final String USERS_DONE = "@users";
+    private static final String GROUPS_DONE = "@groups";
+    
+    private static final int BUFFER_BYTES = 1 << 16;
+    
+    // Estado y contadores de una transferencia
+    private static final class Job {
+        final String kind;
+        final String directory;
+        final boolean resumed;
+        final long startedAt = System.currentTimeMillis();
+        volatile long finishedAt;
+        volatile String error = "";
+        final AtomicLong users = new AtomicLong();
+        final AtomicLong groups = new AtomicLong();
+        final AtomicLong conversations = new AtomicLong();
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        
+        Job(String kind, String directory, boolean resumed) {
+            this.kind = kind;
+            this.directory = directory;
+            this.resumed = resumed;
+        }
+        
+        TransferReport toReport() {
+            long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            long elapsedMs = end - startedAt;
+            double seconds = Math.max(elapsedMs, 1) / 1000.0;
+            
+            TransferReport report = new TransferReport();
+            report.kind = kind;
+            report.directory = directory;
+            report.running = finishedAt == 0;
+            report.resumed = resumed;
+            report.users = users.get();
+            report.groups = groups.get();
+            report.conversations = conversations.get();
+            report.messages = messages.get();
+            report.skipped = skipped.get();
+            report.bytes = bytes.get();
+            report.elapsedMs = elapsedMs;
+            report.messagesPerSecond = messages.get() / seconds;
+            report.megabytesPerSecond = bytes.get() / (1024.0 * 1024.0) / seconds;
+            report.error = error;
+            return report;
+        }
+    }
+    
+    /**
+     * Escribe entradas NDJSON en un archivo y lleva la posición (en bytes) tras la última línea.
+     */
+    private static final class NdjsonWriter implements EntrySink, Closeable {
+        private final OutputStream out;
+        private final AtomicLong bytes;
+        private long position;
+        
+        NdjsonWriter(Path file, long startPosition, AtomicLong bytes) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(startPosition);
+            channel.position(startPosition);
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES);
+            this.position = startPosition;
+            this.bytes = bytes;
+        }
+        
+        @Override
+        public void accept(String op, String[] args) throws IOException {
+            byte[] line = NdjsonCodec.encode(op, args).getBytes(StandardCharsets.UTF_8);
+            out.write(line);
+            out.write('\n');
+            position += line.length + 1;
+            bytes.addAndGet(line.length + 1);
+        }
+        
+        long flush() throws IOException {
+            out.flush();
+            return position;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+    
+    private final ChatCore chatCore;
+    private final int threads;
+    private final Path baseDir;
+    private final AtomicReference<Job> current = new AtomicReference<>();
+    
+    public HistoryTransfer(ChatCore chatCore, int threads, Path baseDir) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Transfer.Threads debe ser positivo");
+        }
+        this.chatCore = chatCore;
+        this.threads = threads;
+        this.baseDir = baseDir.toAbsolutePath().normalize();
+    }
+    
+    public static HistoryTransfer fromProperties(ChatCore chatCore, Communicator communicator) {
+        return new HistoryTransfer(chatCore,
+            communicator.getProperties().getPropertyAsIntWithDefault("Transfer.Threads", 4),
+            Paths.get(communicator.getProperties().getPropertyWithDefault("Transfer.BaseDir", "transfer")));
+    }
+    
+    // ========== Directorios ==========
+    
+    // Directorio pedido (relativo a Transfer.BaseDir); se rechaza si queda fuera de la base
+    private Path resolve(String directory) {
+        Path dir = baseDir.resolve(directory).normalize();
+        if (!dir.startsWith(baseDir)) {
+            throw new IllegalArgumentException("Directorio fuera de Transfer.BaseDir: " + directory);
+        }
+        return dir;
+    }
+    
+    // Con el directorio ya existente, comprueba que los enlaces simbólicos no salgan de la base
+    private void checkRealPath(Path dir) throws IOException {
+        if (!dir.toRealPath().startsWith(baseDir.toRealPath())) {
+            throw new IllegalArgumentException("Directorio fuera de Transfer.BaseDir: " + dir);
+        }
+    }
+    
+    // ========== Control de trabajos ==========
+    
+    @FunctionalInterface
+    private interface JobBody {
+        void run(Job job) throws Exception;
+    }
+    
+    private TransferReport start(Job job, JobBody body) {
+        Job previous = current.get();
+        if (previous != null && previous.finishedAt == 0) {
+            throw new IllegalArgumentException("Ya hay una transferencia en curso (" + previous.kind + ")");
+        }
+        if (!current.compareAndSet(previous, job)) {
+            throw new IllegalArgumentException("Ya hay una transferencia en curso");
+        }
+        
+        Thread thread = new Thread(() -> {
+            try {
+                body.run(job);
+            } catch (Exception e) {
+                job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+                System.err.println("Error en " + job.kind + " de historial: " + job.error);
+            } finally {
+                job.finishedAt = System.currentTimeMillis();
+                TransferReport report = job.toReport();
+                System.out.println("📦 " + job.kind + " de historial terminada en " + report.elapsedMs + " ms: " +
+                    report.users + " usuarios, " + report.groups + " grupos, " + report.conversations +
+                    " conversaciones, " + report.messages + " mensajes (" + report.skipped + " omitidos), " +
+                    String.format("%.0f mensajes/s, %.1f MB/s", report.messagesPerSecond, report.megabytesPerSecond));
+            }
+        }, "history-" + job.kind);
+        thread.setDaemon(true);
+        thread.start();
+        return job.toReport();
+    }
+    
+    public TransferReport getReport() {
+        Job job = current.get();
+        if (job == null) {
+            TransferReport report = new TransferReport();
+            report.kind = "";
+            report.directory = "";
+            report.error = "";
+            return report;
+        }
+        return job.toReport();
+    }
+    
+    // ========== Exportación ==========
+    
+    /**
+     * Exporta en segundo plano al directorio indicado. Con resume continúa una
+     * exportación interrumpida en lugar de empezar de cero.
+     */
+    public TransferReport startExport(String directory, boolean resume) {
+        Path dir = resolve(directory);
+        return start(new Job("export", directory, resume), job -> export(job, dir, resume));
+    }
+    
+    private void export(Job job, Path dir, boolean resume) throws Exception {
+        Files.createDirectories(dir);
+        checkRealPath(dir);
+        Path progressPath = dir.resolve(PROGRESS_FILE);
+        
+        // Conversaciones ya exportadas y posición de cada archivo tras la última de ellas
+        Set<String> done = new HashSet<>();
+        Map<String, Long> offsets = new HashMap<>();
+        if (resume && Files.exists(progressPath)) {
+            for (String line : Files.readAllLines(progressPath, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length == 3) {
+                    done.add(parts[0]);
+                    offsets.merge(parts[1], Long.parseLong(parts[2]), Math::max);
+                }
+            }
+        } else {
+            Files.deleteIfExists(progressPath);
+        }
+        
+        // Recorta lo escrito después de la última conversación terminada (o todo, si no se reanuda)
+        for (Path file : messageFiles(dir)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(offsets.getOrDefault(file.getFileName().toString(), 0L));
+            }
+        }
+        
+        try (BufferedWriter progress = Files.newBufferedWriter(progressPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (!done.contains(USERS_DONE)) {
+                try (NdjsonWriter writer = new NdjsonWriter(dir.resolve(USERS_FILE), 0, job.bytes)) {
+                    chatCore.exportUsers((op, args) -> {
+                        writer.accept(op, args);
+                        job.users.incrementAndGet();
+                    });
+                    recordProgress(progress, USERS_DONE, USERS_FILE, writer.flush());
+                }
+            }
+            if (!done.contains(GROUPS_DONE)) {
+                try (NdjsonWriter writer = new NdjsonWriter(dir.resolve(GROUPS_FILE), 0, job.bytes)) {
+                    chatCore.exportGroups((op, args) -> {
+                        writer.accept(op, args);
+                        job.groups.incrementAndGet();
+                    });
+                    recordProgress(progress, GROUPS_DONE, GROUPS_FILE, writer.flush());
+                }
+            }
+            
+            Queue<String> pending = new ConcurrentLinkedQueue<>();
+            for (String chatKey : chatCore.getConversationKeys()) {
+                if (!done.contains(chatKey)) {
+                    pending.add(chatKey);
+                }
+            }
+            
+            // Cada hilo toma conversaciones de la cola y las escribe completas en su archivo
+            runInParallel(threads, worker -> {
+                String fileName = MESSAGES_PREFIX + worker + MESSAGES_SUFFIX;
+                Path file = dir.resolve(fileName);
+                long start = Files.exists(file) ? Files.size(file) : 0;
+                try (NdjsonWriter writer = new NdjsonWriter(file, start, job.bytes)) {
+                    String chatKey;
+                    while ((chatKey = pending.poll()) != null) {
+                        long count = chatCore.exportConversation(chatKey, writer);
+                        recordProgress(progress, chatKey, fileName, writer.flush());
+                        job.messages.addAndGet(count);
+                        job.conversations.incrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+    
+    private static void recordProgress(BufferedWriter progress, String key, String fileName, long position)
+            throws IOException {
+        synchronized (progress) {
+            progress.write(key + "\t" + fileName + "\t" + position);
+            progress.newLine();
+            progress.flush();
+        }
+    }
+    
+    private static List<Path> messageFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, MESSAGES_PREFIX + "*" + MESSAGES_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+    
+    // ========== Importación ==========
+    
+    /**
+     * Importa en segundo plano un directorio exportado.
+     */
+    public TransferReport startImport(String directory) {
+        Path dir = resolve(directory);
+        return start(new Job("import", directory, false), job -> importAll(job, dir));
+    }
+    
+    private void importAll(Job job, Path dir) throws Exception {
+        if (!Files.isDirectory(dir)) {
+            throw new IllegalArgumentException("Directorio de importación no encontrado: " + dir);
+        }
+        checkRealPath(dir);
+        
+        importFile(job, dir.resolve(USERS_FILE), job.users);
+        importFile(job, dir.resolve(GROUPS_FILE), job.groups);
+        
+        // Cada conversación está completa en un solo archivo: un hilo por archivo conserva su orden
+        List<Path> files = messageFiles(dir);
+        AtomicInteger next = new AtomicInteger();
+        runInParallel(Math.min(threads, Math.max(files.size(), 1)), worker -> {
+            int index;
+            while ((index = next.getAndIncrement()) < files.size()) {
+                importMessages(job, files.get(index));
+            }
+        });
+    }
+    
+    private void importFile(Job job, Path file, AtomicLong applied) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] entry = NdjsonCodec.decode(line);
+                if (chatCore.importEntry(entry[0], Arrays.copyOfRange(entry, 1, entry.length))) {
+                    applied.incrementAndGet();
+                } else {
+                    job.skipped.incrementAndGet();
+                }
+            }
+        }
+        job.bytes.addAndGet(Files.size(file));
+    }
+    
+    private void importMessages(Job job, Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String currentKey = null;
+            
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] entry = NdjsonCodec.decode(line);
+                if (!ChatCore.OP_MESSAGE.equals(entry[0]) || entry.length < 2) {
+                    throw new IllegalArgumentException("Entrada inesperada en " + file.getFileName() + ": " + entry[0]);
+                }
+                
+                String chatKey = entry[1];
+                if (!chatKey.equals(currentKey)) {
+                    currentKey = chatKey;
+                    job.conversations.incrementAndGet();
+                }
+                // Los mensajes ya presentes en el destino (mismo ID) se omiten
+                if (chatCore.importEntry(entry[0], Arrays.copyOfRange(entry, 1, entry.length))) {
+                    job.messages.incrementAndGet();
+                } else {
+                    job.skipped.incrementAndGet();
+                }
+            }
+        }
+        job.bytes.addAndGet(Files.size(file));
+    }
+    
+    // ========== Ejecución en paralelo ==========
+    
+    @FunctionalInterface
+    private interface Worker {
+        void run(int worker) throws Exception;
+    }
+    
+    // Ejecuta count hilos y propaga el primer error
+    private static void runInParallel(int count, Worker body) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(count, r -> {
+            Thread t = new Thread(r, "history-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int worker = i;
+                futures.add(pool.submit(() -> {
+                    body.run(worker);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.compunet.chatapp.transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Formato de una línea NDJSON de exportación: {"op":"message","args":["...", ...]}.
+ * Solo se necesitan strings, así que se codifica y decodifica a mano sin una
+ * librería JSON ni un árbol intermedio por línea.
+ */
+final class NdjsonCodec {
+    
+    private NdjsonCodec() {
+    }
+    
+    static String encode(String op, String[] args) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append("{\"op\":");
+        appendString(sb, op);
+        sb.append(",\"args\":[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendString(sb, args[i]);
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+    
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+    
+    /**
+     * Decodifica una línea. Retorna la operación seguida de sus argumentos.
+     */
+    static String[] decode(String line) {
+        Parser parser = new Parser(line);
+        parser.expect('{');
+        parser.expectKey("op");
+        String op = parser.readString();
+        parser.expect(',');
+        parser.expectKey("args");
+        parser.expect('[');
+        
+        List<String> values = new ArrayList<>();
+        values.add(op);
+        if (!parser.tryConsume(']')) {
+            do {
+                values.add(parser.readString());
+            } while (parser.tryConsume(','));
+            parser.expect(']');
+        }
+        parser.expect('}');
+        return values.toArray(new String[0]);
+    }
+    
+    private static final class Parser {
+        private final String line;
+        private int pos;
+        
+        Parser(String line) {
+            this.line = line;
+        }
+        
+        private void skipSpaces() {
+            while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+        }
+        
+        boolean tryConsume(char c) {
+            skipSpaces();
+            if (pos < line.length() && line.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+        
+        void expect(char c) {
+            if (!tryConsume(c)) {
+                throw new IllegalArgumentException("Línea NDJSON inválida: se esperaba '" + c + "' en " + pos);
+            }
+        }
+        
+        void expectKey(String key) {
+            if (!key.equals(readString())) {
+                throw new IllegalArgumentException("Línea NDJSON inválida: se esperaba \"" + key + "\"");
+            }
+            expect(':');
+        }
+        
+        String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < line.length()) {
+                char c = line.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= line.length()) {
+                    break;
+                }
+                char escaped = line.charAt(pos++);
+                switch (escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > line.length()) {
+                            throw new IllegalArgumentException("Línea NDJSON inválida: escape \\u incompleto");
+                        }
+                        sb.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(escaped); // \" \\ \/
+                }
+            }
+            throw new IllegalArgumentException("Línea NDJSON inválida: string sin cerrar");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.compunet.chatapp.util;
+
+import java.util.Arrays;
+
+/**
+ * Mapa int -> long con direccionamiento abierto (sondeo lineal), sin objetos por entrada.
+ * No es thread-safe: quien lo use debe sincronizar el acceso.
+ */
+public class IntLongHashMap {
+    
+    private static final int FREE = Integer.MIN_VALUE;
+    
+    private int[] keys;
+    private long[] values;
+    private int size;
+    
+    public IntLongHashMap() {
+        this(4);
+    }
+    
+    public IntLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, FREE);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public long get(int key, long defaultValue) {
+        int slot = find(key);
+        return keys[slot] == FREE ? defaultValue : values[slot];
+    }
+    
+    public boolean containsKey(int key) {
+        return keys[find(key)] != FREE;
+    }
+    
+    public void put(int key, long value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Clave reservada: " + key);
+        }
+        
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            size++;
+            values[slot] = value;
+            if (size * 4 > keys.length * 3) {
+                rehash(keys.length * 2);
+            }
+        } else {
+            values[slot] = value;
+        }
+    }
+    
+    /**
+     * Guarda el máximo entre el valor actual y el nuevo; retorna el valor resultante.
+     */
+    public long putMax(int key, long value) {
+        long current = get(key, Long.MIN_VALUE);
+        if (value > current) {
+            put(key, value);
+            return value;
+        }
+        return current;
+    }
+    
+    public long addTo(int key, long delta) {
+        long updated = get(key, 0) + delta;
+        put(key, updated);
+        return updated;
+    }
+    
+    public void remove(int key) {
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            return;
+        }
+        
+        keys[slot] = FREE;
+        size--;
+        
+        // Reubicar las entradas siguientes del mismo grupo de sondeo
+        int mask = keys.length - 1;
+        for (int i = (slot + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            int k = keys[i];
+            long v = values[i];
+            keys[i] = FREE;
+            size--;
+            put(k, v);
+        }
+    }
+    
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+    
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, FREE);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+    
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
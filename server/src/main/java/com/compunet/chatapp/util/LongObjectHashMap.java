@@ -0,0 +1,84 @@
+package com.compunet.chatapp.util;
+
+import java.util.Arrays;
+
+/**
+ * Mapa long -> objeto con direccionamiento abierto (sondeo lineal), sin boxing de las claves.
+ * No es thread-safe: quien lo use debe sincronizar el acceso. No admite eliminar entradas.
+ */
+public class LongObjectHashMap<V> {
+    
+    private static final long FREE = Long.MIN_VALUE;
+    
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    
+    public LongObjectHashMap() {
+        this(4);
+    }
+    
+    public LongObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, FREE);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = find(key);
+        return keys[slot] == FREE ? null : (V) values[slot];
+    }
+    
+    public void put(long key, V value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Clave reservada: " + key);
+        }
+        
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            size++;
+            values[slot] = value;
+            if (size * 4 > keys.length * 3) {
+                rehash(keys.length * 2);
+            }
+        } else {
+            values[slot] = value;
+        }
+    }
+    
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, FREE);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+    
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,74 @@
+package com.compunet.chatapp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IDs de mensaje de 64 bits ordenados por tiempo:
+ * 41 bits de milisegundos desde 2024-01-01, 10 bits de nodo y 12 bits de secuencia.
+ * Dos procesos con distinto nodo nunca generan el mismo ID, y el orden numérico sigue
+ * el orden de creación dentro de cada nodo. Si el reloj retrocede o se agotan las 4096
+ * secuencias de un milisegundo, el generador sigue desde el último valor (toma prestado
+ * el milisegundo siguiente) en lugar de esperar.
+ */
+public class MessageIdGenerator {
+    
+    public static final long EPOCH_MS = 1704067200000L; // 2024-01-01T00:00:00Z
+    
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    
+    // (milisegundos desde EPOCH_MS << SEQUENCE_BITS) | secuencia del último ID generado
+    private final AtomicLong state = new AtomicLong();
+    private volatile int nodeId;
+    
+    public void setNodeId(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Nodo de IDs fuera de rango (0-" + MAX_NODE_ID + "): " + nodeId);
+        }
+        this.nodeId = nodeId;
+    }
+    
+    public long next() {
+        long now = (System.currentTimeMillis() - EPOCH_MS) << SEQUENCE_BITS;
+        long current = state.updateAndGet(previous -> Math.max(previous + 1, now));
+        return compose(current >>> SEQUENCE_BITS, nodeId, current & SEQUENCE_MASK);
+    }
+    
+    /**
+     * Avanza el generador más allá de un ID ya usado por este nodo (réplicas, importación),
+     * para que una réplica promovida no repita IDs.
+     */
+    public void observe(long id) {
+        if (id > 0 && nodeOf(id) == nodeId) {
+            long observed = (timestampOf(id) << SEQUENCE_BITS) | (id & SEQUENCE_MASK);
+            state.accumulateAndGet(observed, Math::max);
+        }
+    }
+    
+    private static long compose(long timestamp, int node, long sequence) {
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | ((long) node << SEQUENCE_BITS) | sequence;
+    }
+    
+    public static int nodeOf(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+    }
+    
+    // Milisegundos desde EPOCH_MS
+    public static long timestampOf(long id) {
+        return id >>> (NODE_BITS + SEQUENCE_BITS);
+    }
+    
+    /**
+     * ID numérico de un mensaje, o -1 si no es un ID de este formato.
+     */
+    public static long parse(String id) {
+        try {
+            long value = Long.parseLong(id);
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.compunet.chatapp.core;
+
+import com.compunet.chatapp.stress.OutcomeTest;
+import com.compunet.chatapp.stress.OutcomeTest.Expect;
+import compunet.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pruebas al estilo jcstress de las estructuras internas de ChatCore (roster de llamadas,
+ * buzón de señales, marcas de lectura e índice de IDs). Están en el paquete core para
+ * acceder a las clases package-private sin volverlas públicas.
+ */
+public final class CoreOutcomeTests {
+    
+    private CoreOutcomeTests() {
+    }
+    
+    public static List<OutcomeTest<?>> all() {
+        return Arrays.asList(
+            new RosterJoinJoin(),
+            new RosterJoinLeave(),
+            new MailboxAppendAcknowledge(),
+            new MailboxCoalesceFetch(),
+            new MailboxIndexAcknowledge(),
+            new UnreadAppendMarkRead(),
+            new MessageIndexPutGet());
+    }
+    
+    // ========== Roster de llamadas grupales ==========
+    
+    // Dos usuarios distintos se unen a la vez: versiones distintas y ninguna unión perdida
+    static final class RosterJoinJoin extends OutcomeTest<RosterJoinJoin.State> {
+        
+        static final class State {
+            final GroupCallRoster roster = new GroupCallRoster(16);
+            long a;
+            long b;
+        }
+        
+        RosterJoinJoin() {
+            super("roster-join-join");
+            outcome("1,2,2", Expect.ACCEPTABLE, "a se unió primero");
+            outcome("2,1,2", Expect.ACCEPTABLE, "b se unió primero");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(s -> s.a = s.roster.join("a"), s -> s.b = s.roster.join("b"));
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            int members = (s.roster.contains("a") ? 1 : 0) + (s.roster.contains("b") ? 1 : 0);
+            return s.a + "," + s.b + "," + members;
+        }
+    }
+    
+    // El mismo usuario entra y sale a la vez: la salida antes de la unión no tiene efecto
+    static final class RosterJoinLeave extends OutcomeTest<RosterJoinLeave.State> {
+        
+        static final class State {
+            final GroupCallRoster roster = new GroupCallRoster(16);
+            long join;
+            long leave;
+        }
+        
+        RosterJoinLeave() {
+            super("roster-join-leave");
+            outcome("1,2,false", Expect.ACCEPTABLE, "unión y después salida");
+            outcome("1,-1,true", Expect.ACCEPTABLE, "salida (sin efecto) y después unión");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(s -> s.join = s.roster.join("u"), s -> s.leave = s.roster.leave("u"));
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            return s.join + "," + s.leave + "," + s.roster.contains("u");
+        }
+    }
+    
+    // ========== Buzón de señales ==========
+    
+    private static SignalMailbox mailboxWith(String... types) {
+        SignalMailbox mailbox = new SignalMailbox();
+        for (int i = 0; i < types.length; i++) {
+            mailbox.append("call", "caller", types[i], "s" + i, 0, 1000, 64);
+        }
+        return mailbox;
+    }
+    
+    // Una señal nueva mientras se confirma la entrada 1: la nueva nunca se confirma por error
+    static final class MailboxAppendAcknowledge extends OutcomeTest<MailboxAppendAcknowledge.State> {
+        
+        static final class State {
+            final SignalMailbox mailbox = mailboxWith(SignalMailbox.OFFER);
+            long seq;
+            long removed;
+        }
+        
+        MailboxAppendAcknowledge() {
+            super("mailbox-append-ack");
+            outcome("2,1,[2]", Expect.ACCEPTABLE, "la confirmación elimina solo la entrada 1");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(
+                s -> s.seq = s.mailbox.append("call", "caller", SignalMailbox.ANSWER, "nueva", 0, 1000, 64),
+                s -> s.removed = s.mailbox.acknowledgeUpTo(1)[0]);
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            StringBuilder remaining = new StringBuilder();
+            for (SignalBatch batch : s.mailbox.fetchBatches()) {
+                remaining.append(remaining.length() > 0 ? " " : "").append(batch.seq);
+            }
+            return s.seq + "," + s.removed + ",[" + remaining + "]";
+        }
+    }
+    
+    // Un candidato se agrupa con el anterior mientras se leen las entradas:
+    // no debe agregarse a una entrada ya entregada (se perdería)
+    static final class MailboxCoalesceFetch extends OutcomeTest<MailboxCoalesceFetch.State> {
+        
+        static final class State {
+            final SignalMailbox mailbox = mailboxWith(SignalMailbox.CANDIDATE);
+            int fetched;
+        }
+        
+        MailboxCoalesceFetch() {
+            super("mailbox-coalesce-fetch");
+            outcome("2,1", Expect.ACCEPTABLE, "el candidato se agrupó antes de la lectura");
+            outcome("1,2", Expect.ACCEPTABLE, "la lectura cerró la entrada y el candidato abrió otra");
+            outcome("1,1", Expect.FORBIDDEN, "candidato agregado a una entrada ya entregada");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(
+                s -> s.mailbox.append("call", "caller", SignalMailbox.CANDIDATE, "c1", 0, 1000, 64),
+                s -> s.fetched = s.mailbox.fetchBatches().get(0).data.length);
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            return s.fetched + "," + s.mailbox.fetchBatches().size();
+        }
+    }
+    
+    // Dos confirmaciones por índice sobre la misma vista (s0, s1, s2): el índice se desplaza
+    static final class MailboxIndexAcknowledge extends OutcomeTest<MailboxIndexAcknowledge.State> {
+        
+        static final class State {
+            final SignalMailbox mailbox = mailboxWith(SignalMailbox.OFFER, SignalMailbox.ANSWER, SignalMailbox.OFFER);
+        }
+        
+        MailboxIndexAcknowledge() {
+            super("mailbox-index-ack");
+            outcome("[s2]", Expect.ACCEPTABLE, "se confirmaron s0 y s1");
+            outcome("[s1]", Expect.ACCEPTABLE_INTERESTING,
+                "la primera confirmación desplazó el índice y se confirmó s2 en lugar de s1 "
+                + "(acknowledgeWebRTCSignal; usar acknowledgeWebRTCSignals)");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(s -> s.mailbox.removeAt(0), s -> s.mailbox.removeAt(1));
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            StringBuilder remaining = new StringBuilder();
+            for (SignalBatch batch : s.mailbox.fetchBatches()) {
+                for (String data : batch.data) {
+                    remaining.append(remaining.length() > 0 ? " " : "").append(data);
+                }
+            }
+            return "[" + remaining + "]";
+        }
+    }
+    
+    // ========== Marcas de lectura ==========
+    
+    // Un mensaje nuevo mientras otro usuario marca todo como leído: la marca nunca pasa del último publicado
+    static final class UnreadAppendMarkRead extends OutcomeTest<UnreadAppendMarkRead.State> {
+        
+        static final class State {
+            final UnreadTracker tracker = new UnreadTracker();
+            final Message message = new Message();
+            long mark;
+            
+            State() {
+                message.senderId = "sender";
+            }
+        }
+        
+        UnreadAppendMarkRead() {
+            super("unread-append-mark");
+            outcome("0,1", Expect.ACCEPTABLE, "la marca se aplicó antes del mensaje");
+            outcome("1,0", Expect.ACCEPTABLE, "la marca se aplicó después del mensaje");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(
+                s -> {
+                    synchronized (s) { // el lock de la cola de la conversación
+                        s.tracker.onAppend("chat", s.message);
+                    }
+                },
+                s -> s.mark = s.tracker.markRead("reader", "chat", Long.MAX_VALUE));
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            return s.mark + "," + s.tracker.unreadCount("reader", "chat");
+        }
+    }
+    
+    // ========== Índice de IDs de mensaje ==========
+    
+    // Lectura concurrente con la inserción: no encontrado o la ubicación completa
+    static final class MessageIndexPutGet extends OutcomeTest<MessageIndexPutGet.State> {
+        
+        private static final long ID = 42L << 22;
+        
+        static final class State {
+            final MessageIdIndex index = new MessageIdIndex();
+            final MessageIdIndex.Location location = new MessageIdIndex.Location("chat", 7, new Message());
+            MessageIdIndex.Location seen;
+        }
+        
+        MessageIndexPutGet() {
+            super("message-index-put-get");
+            outcome("null", Expect.ACCEPTABLE, "la lectura ocurrió antes de la inserción");
+            outcome("chat:7", Expect.ACCEPTABLE, "la lectura vio la ubicación completa");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(s -> s.index.put(ID, s.location), s -> s.seen = s.index.get(ID));
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            return s.seen == null ? "null" : s.seen.chatKey + ":" + s.seen.seq;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.compunet.chatapp.stress;
+
+import com.compunet.chatapp.core.ChatCore;
+import com.compunet.chatapp.util.MessageIdGenerator;
+import compunet.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pruebas de carga sobre la API pública de ChatCore. Cada una usa un ChatCore nuevo,
+ * lo martilla desde varios hilos y al terminar compara el estado con lo que cada hilo
+ * sabe que hizo: ningún mensaje, miembro, unión o señal perdidos, y el orden de cada
+ * remitente conservado dentro de su conversación.
+ */
+public final class ChatCoreLoadTests {
+    
+    // Violaciones que se listan por prueba (el resto solo se cuenta)
+    private static final int MAX_REPORTED = 20;
+    
+    private ChatCoreLoadTests() {
+    }
+    
+    public static List<LoadTest> all() {
+        return Arrays.asList(
+            test("direct-messages", ChatCoreLoadTests::directMessages),
+            test("group-messages", ChatCoreLoadTests::groupMessages),
+            test("group-membership", ChatCoreLoadTests::groupMembership),
+            test("group-call-roster", ChatCoreLoadTests::groupCallRoster),
+            test("webrtc-signals", ChatCoreLoadTests::webrtcSignals),
+            test("read-marks", ChatCoreLoadTests::readMarks));
+    }
+    
+    private interface Body {
+        void run(int threads, long durationMs, List<String> violations) throws Exception;
+    }
+    
+    private static LoadTest test(String name, Body body) {
+        return new LoadTest() {
+            @Override
+            public String getName() {
+                return name;
+            }
+            
+            @Override
+            public List<String> run(int threads, long durationMs) throws Exception {
+                List<String> violations = new ArrayList<>();
+                body.run(threads, durationMs, violations);
+                return violations;
+            }
+        };
+    }
+    
+    private static void violation(List<String> violations, String description) {
+        synchronized (violations) {
+            if (violations.size() < MAX_REPORTED) {
+                violations.add(description);
+            } else if (violations.size() == MAX_REPORTED) {
+                violations.add("... (más violaciones omitidas)");
+            }
+        }
+    }
+    
+    private static ChatCore coreWithUsers(int count) {
+        ChatCore core = new ChatCore();
+        for (int u = 0; u < count; u++) {
+            core.registerUser(user(u), "Usuario " + u);
+        }
+        return core;
+    }
+    
+    private static String user(int worker) {
+        return "u" + worker;
+    }
+    
+    private static String[] users(int count) {
+        String[] ids = new String[count];
+        for (int u = 0; u < count; u++) {
+            ids[u] = user(u);
+        }
+        return ids;
+    }
+    
+    // ========== Mensajes ==========
+    
+    /**
+     * Recorre una conversación y verifica: cada remitente aparece con sus contenidos
+     * "worker:i" consecutivos desde 0, los IDs no se repiten y getMessageById ubica cada
+     * mensaje en su posición. nextBySender acumula lo visto por remitente.
+     */
+    private static void checkConversation(ChatCore core, String label, List<Message> messages,
+                                          Map<String, Long> nextBySender, Set<Long> ids,
+                                          List<String> violations) {
+        for (int pos = 0; pos < messages.size(); pos++) {
+            Message message = messages.get(pos);
+            long index = Long.parseLong(message.content.substring(message.content.indexOf(':') + 1));
+            long expected = nextBySender.getOrDefault(message.senderId, 0L);
+            if (index != expected) {
+                violation(violations, label + ": " + message.senderId + " esperaba " + expected
+                    + " y encontró " + index + " en la posición " + pos);
+            }
+            nextBySender.put(message.senderId, index + 1);
+            
+            if (!ids.add(MessageIdGenerator.parse(message.id))) {
+                violation(violations, label + ": ID de mensaje repetido " + message.id);
+            }
+            
+            LocatedMessage located = core.getMessageById(message.senderId, message.id);
+            if (located.message != message || located.seq != pos + 1) {
+                violation(violations, label + ": getMessageById(" + message.id + ") retornó seq "
+                    + located.seq + " para la posición " + pos);
+            }
+        }
+    }
+    
+    private static void checkSent(long[] sent, Map<String, Long> nextBySender, List<String> violations) {
+        for (int w = 0; w < sent.length; w++) {
+            long seen = nextBySender.getOrDefault(user(w), 0L);
+            if (seen != sent[w]) {
+                violation(violations, user(w) + " envió " + sent[w] + " mensajes y se encontraron " + seen);
+            }
+        }
+    }
+    
+    // Pares u0<->u1, u2<->u3...: cada conversación recibe escrituras de dos hilos
+    private static int partner(int worker, int threads) {
+        int partner = worker ^ 1;
+        return partner < threads ? partner : 0;
+    }
+    
+    private static void directMessages(int threads, long durationMs, List<String> violations) throws Exception {
+        ChatCore core = coreWithUsers(threads);
+        long[] sent = Workers.hammer(threads, durationMs, (w, i) ->
+            core.sendDirectMessage(user(w), user(partner(w, threads)), w + ":" + i), violations);
+        
+        Map<String, Long> nextBySender = new HashMap<>();
+        Set<Long> ids = new HashSet<>();
+        Set<String> checked = new HashSet<>();
+        for (int w = 0; w < threads; w++) {
+            String key = ChatCore.getConversationKey(user(w), user(partner(w, threads)));
+            if (checked.add(key)) {
+                checkConversation(core, key, core.getDirectChatMessages(user(w), user(partner(w, threads))),
+                    nextBySender, ids, violations);
+            }
+        }
+        checkSent(sent, nextBySender, violations);
+    }
+    
+    private static void groupMessages(int threads, long durationMs, List<String> violations) throws Exception {
+        ChatCore core = coreWithUsers(threads);
+        String groupId = core.createGroup(user(0), "Estrés", users(threads));
+        
+        long[] sent = Workers.hammer(threads, durationMs, (w, i) ->
+            core.sendGroupMessage(user(w), groupId, w + ":" + i), violations);
+        
+        List<Message> messages = core.getGroupChatMessages(user(0), groupId);
+        Map<String, Long> nextBySender = new HashMap<>();
+        checkConversation(core, groupId, messages, nextBySender, new HashSet<>(), violations);
+        checkSent(sent, nextBySender, violations);
+        
+        for (ChatSummary chat : core.getUserGroupChats(user(0))) {
+            if (chat.chatId.equals(groupId) && chat.lastSeq != messages.size()) {
+                violation(violations, "lastSeq " + chat.lastSeq + " con " + messages.size() + " mensajes");
+            }
+        }
+    }
+    
+    // ========== Membresía de grupos ==========
+    
+    private static String member(int worker, long iteration) {
+        return "m" + worker + "_" + iteration;
+    }
+    
+    private static void groupMembership(int threads, long durationMs, List<String> violations) throws Exception {
+        ChatCore core = coreWithUsers(1);
+        String owner = user(0);
+        String groupId = core.createGroup(owner, "Membresía", new String[0]);
+        
+        // El miembro recién agregado escribe de inmediato: la membresía debe verse ya
+        long[] added = Workers.hammer(threads, durationMs, (w, i) -> {
+            String member = member(w, i);
+            core.registerUser(member, member);
+            core.addUserToGroup(groupId, member);
+            if (i % 16 == 0) {
+                core.sendGroupMessage(member, groupId, w + ":" + i);
+            }
+        }, violations);
+        
+        Collection<String> participants = core.getChatParticipants(owner, groupId);
+        long expected = 1;
+        for (int w = 0; w < threads; w++) {
+            expected += added[w];
+            for (long i = 0; i < added[w]; i++) {
+                if (!participants.contains(member(w, i))) {
+                    violation(violations, "miembro perdido: " + member(w, i));
+                }
+            }
+        }
+        if (participants.size() != expected) {
+            violation(violations, "el grupo tiene " + participants.size() + " miembros, se esperaban " + expected);
+        }
+    }
+    
+    // ========== Roster de llamadas grupales ==========
+    
+    // Aplica un delta sobre la vista local; retorna false si los eventos no son consecutivos
+    private static boolean applyDelta(Set<String> view, long viewVersion, RosterDelta delta) {
+        long next = viewVersion;
+        if (delta.full) {
+            view.clear();
+            view.addAll(Arrays.asList(delta.participants));
+            next = delta.snapshotVersion;
+        }
+        for (RosterEvent event : delta.events) {
+            if (event.version != next + 1) {
+                return false;
+            }
+            next = event.version;
+            if (event.joined) {
+                view.add(event.userId);
+            } else {
+                view.remove(event.userId);
+            }
+        }
+        return next == delta.version;
+    }
+    
+    private static void groupCallRoster(int threads, long durationMs, List<String> violations) throws Exception {
+        ChatCore core = coreWithUsers(threads + 1);
+        String owner = user(threads);
+        String groupId = core.createGroup(owner, "Llamada", users(threads));
+        
+        // Historial corto para pasar también por las instantáneas completas; instantánea siempre fresca
+        core.setRosterLimits(64, 0);
+        String callId = core.startGroupCall(owner, groupId);
+        
+        // El hilo 0 sigue el roster con deltas; el resto entra y sale (el creador nunca sale)
+        boolean[] joined = new boolean[threads];
+        Set<String> view = new HashSet<>();
+        long[] viewVersion = new long[1];
+        Workers.hammer(threads, durationMs, (w, i) -> {
+            if (w == 0) {
+                RosterDelta delta = core.getGroupCallRosterDelta(callId, viewVersion[0]);
+                if (delta.version < viewVersion[0] || !applyDelta(view, viewVersion[0], delta)) {
+                    violation(violations, "delta inconsistente desde la versión " + viewVersion[0]);
+                }
+                viewVersion[0] = delta.version;
+                return;
+            }
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                core.joinGroupCall(callId, user(w));
+                joined[w] = true;
+            } else {
+                core.leaveGroupCall(callId, user(w));
+                joined[w] = false;
+            }
+        }, violations);
+        
+        Set<String> expected = new HashSet<>();
+        expected.add(owner);
+        for (int w = 1; w < threads; w++) {
+            if (joined[w]) {
+                expected.add(user(w));
+            }
+        }
+        
+        VoiceCall call = core.getCallStatus(callId);
+        if (call.status != CallStatus.ACTIVE) {
+            violation(violations, "la llamada terminó con el creador dentro: " + call.status);
+        }
+        Set<String> participants = new HashSet<>(Arrays.asList(call.participants));
+        if (!participants.equals(expected)) {
+            violation(violations, "participants " + participants + ", se esperaba " + expected);
+        }
+        
+        // Último delta incremental y reconstrucción completa desde cero
+        RosterDelta delta = core.getGroupCallRosterDelta(callId, viewVersion[0]);
+        if (!applyDelta(view, viewVersion[0], delta) || !view.equals(expected)) {
+            violation(violations, "la vista por deltas quedó en " + view + ", se esperaba " + expected);
+        }
+        Set<String> rebuilt = new HashSet<>();
+        if (!applyDelta(rebuilt, 0, core.getGroupCallRosterDelta(callId, 0)) || !rebuilt.equals(expected)) {
+            violation(violations, "la reconstrucción completa quedó en " + rebuilt + ", se esperaba " + expected);
+        }
+    }
+    
+    // ========== Señalización WebRTC ==========
+    
+    private static void webrtcSignals(int threads, long durationMs, List<String> violations) throws Exception {
+        ChatCore core = new ChatCore();
+        String callee = "callee";
+        
+        // Hilos 1..n producen (ofertas y candidatos que se agrupan); el hilo 0 consume y confirma,
+        // alternando la confirmación en lote con la confirmación por índice
+        Map<String, Long> nextByProducer = new HashMap<>();
+        long[] consumed = new long[1];
+        long[] produced = Workers.hammer(threads, durationMs, (w, i) -> {
+            if (w == 0) {
+                consume(core, callee, i % 2 == 0, nextByProducer, consumed, violations);
+                return;
+            }
+            String type = i % 4 == 0 ? "offer" : "ice-candidate";
+            core.sendWebRTCSignal("call" + w, user(w), callee, type, w + ":" + i);
+        }, violations);
+        
+        while (!core.getWebRTCSignalBatches(callee).isEmpty()) {
+            consume(core, callee, true, nextByProducer, consumed, violations);
+        }
+        
+        long total = 0;
+        for (int w = 1; w < threads; w++) {
+            total += produced[w];
+            long seen = nextByProducer.getOrDefault(user(w), 0L);
+            if (seen != produced[w]) {
+                violation(violations, user(w) + " envió " + produced[w] + " señales y se confirmaron " + seen);
+            }
+        }
+        if (consumed[0] != total) {
+            violation(violations, "se confirmaron " + consumed[0] + " de " + total + " señales");
+        }
+        long pending = core.getFootprint().getSummary().pendingSignals;
+        if (pending != 0) {
+            violation(violations, "la contabilidad de memoria registra " + pending + " señales pendientes");
+        }
+    }
+    
+    private static void consume(ChatCore core, String callee, boolean batch, Map<String, Long> nextByProducer,
+                                long[] consumed, List<String> violations) {
+        List<SignalBatch> batches = core.getWebRTCSignalBatches(callee);
+        if (batches.isEmpty()) {
+            return;
+        }
+        
+        if (batch) {
+            for (SignalBatch entry : batches) {
+                for (String data : entry.data) {
+                    checkSignal(entry.fromUserId, data, nextByProducer, violations);
+                }
+                consumed[0] += entry.data.length;
+            }
+            core.acknowledgeWebRTCSignals(callee, batches.get(batches.size() - 1).seq);
+        } else {
+            // Solo este hilo confirma y los productores agregan al final: el índice 0 es estable
+            SignalBatch first = batches.get(0);
+            checkSignal(first.fromUserId, first.data[0], nextByProducer, violations);
+            consumed[0]++;
+            core.acknowledgeWebRTCSignal(first.callId, callee, 0);
+        }
+    }
+    
+    private static void checkSignal(String fromUserId, String data, Map<String, Long> nextByProducer,
+                                    List<String> violations) {
+        long index = Long.parseLong(data.substring(data.indexOf(':') + 1));
+        long expected = nextByProducer.getOrDefault(fromUserId, 0L);
+        if (index != expected) {
+            violation(violations, fromUserId + ": señal " + index + " entregada cuando se esperaba " + expected);
+        }
+        nextByProducer.put(fromUserId, index + 1);
+    }
+    
+    // ========== Marcas de lectura ==========
+    
+    private static void readMarks(int threads, long durationMs, List<String> violations) throws Exception {
+        ChatCore core = coreWithUsers(threads);
+        String groupId = core.createGroup(user(0), "Lecturas", users(threads));
+        
+        // Hilos pares escriben; impares consultan su resumen y marcan hasta una posición al azar
+        long[] iterations = Workers.hammer(threads, durationMs, (w, i) -> {
+            if (w % 2 == 0) {
+                core.sendGroupMessage(user(w), groupId, w + ":" + i);
+                return;
+            }
+            ChatSummary chat = groupSummary(core, user(w), groupId);
+            if (chat.unreadCount < 0 || chat.unreadCount > chat.lastSeq) {
+                violation(violations, user(w) + ": " + chat.unreadCount + " no leídos con lastSeq " + chat.lastSeq);
+            }
+            core.markRead(user(w), groupId, ThreadLocalRandom.current().nextLong(chat.lastSeq + 1));
+        }, violations);
+        
+        long sent = 0;
+        for (int w = 0; w < threads; w += 2) {
+            sent += iterations[w];
+        }
+        for (int w = 0; w < threads; w++) {
+            core.markRead(user(w), groupId, Long.MAX_VALUE);
+            ChatSummary chat = groupSummary(core, user(w), groupId);
+            if (chat.lastSeq != sent || chat.unreadCount != 0) {
+                violation(violations, user(w) + ": lastSeq " + chat.lastSeq + " y " + chat.unreadCount
+                    + " no leídos tras leer todo; se enviaron " + sent);
+            }
+        }
+    }
+    
+    private static ChatSummary groupSummary(ChatCore core, String userId, String groupId) {
+        for (ChatSummary chat : core.getUserGroupChats(userId)) {
+            if (chat.chatId.equals(groupId)) {
+                return chat;
+            }
+        }
+        throw new IllegalStateException("El grupo " + groupId + " no aparece en los chats de " + userId);
+    }
+}
@@ -0,0 +1,15 @@
+package com.compunet.chatapp.stress;
+
+import java.util.List;
+
+/**
+ * Prueba de carga: martilla una ruta de ChatCore desde varios hilos durante un tiempo
+ * y al final verifica sus invariantes (sin mensajes ni uniones perdidas, orden por remitente...).
+ */
+public interface LoadTest {
+    
+    String getName();
+    
+    // Violaciones de invariantes encontradas (vacía si todo se cumple)
+    List<String> run(int threads, long durationMs) throws Exception;
+}
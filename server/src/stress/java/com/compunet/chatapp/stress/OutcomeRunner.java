@@ -0,0 +1,116 @@
+package com.compunet.chatapp.stress;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ejecuta una OutcomeTest por rondas. Cada actor tiene su propio hilo, que se mantiene
+ * entre rondas y espera activamente la siguiente para arrancar casi a la vez que los demás.
+ * En cada ronda los actores recorren el mismo lote de estados nuevos (como el "stride" de
+ * jcstress), y el hilo principal arbitra cada estado cuando todos terminaron.
+ */
+final class OutcomeRunner<S> {
+    
+    private static final int STRIDE = 64;
+    private static final int SPINS_BEFORE_YIELD = 1000;
+    
+    private final OutcomeTest<S> test;
+    private final List<OutcomeTest.Actor<S>> actors;
+    
+    // Lote de la ronda actual; se publican antes de avanzar round
+    private volatile Object[] batch;
+    private volatile String[] failures;
+    private volatile int round;
+    private volatile boolean stopped;
+    private final AtomicInteger finished = new AtomicInteger();
+    
+    OutcomeRunner(OutcomeTest<S> test) {
+        this.test = test;
+        this.actors = test.actors();
+    }
+    
+    /**
+     * Ejecuta las rondas y retorna cuántas veces se observó cada resultado.
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Long> run(int rounds) throws InterruptedException {
+        Map<String, Long> histogram = new TreeMap<>();
+        Thread[] threads = new Thread[actors.size()];
+        for (int a = 0; a < threads.length; a++) {
+            final int actor = a;
+            threads[a] = new Thread(() -> actorLoop(actors.get(actor)), "stress-" + test.getName() + "-" + a);
+            threads[a].setDaemon(true);
+            threads[a].start();
+        }
+        
+        try {
+            for (int r = 1; r <= rounds; r++) {
+                Object[] states = new Object[STRIDE];
+                for (int i = 0; i < STRIDE; i++) {
+                    states[i] = test.newState();
+                }
+                batch = states;
+                failures = new String[STRIDE];
+                finished.set(0);
+                round = r;
+                
+                int spins = 0;
+                while (finished.get() < threads.length) {
+                    spins = spinWait(spins);
+                }
+                
+                String[] roundFailures = failures;
+                for (int i = 0; i < STRIDE; i++) {
+                    String outcome = roundFailures[i] != null ? roundFailures[i] : test.arbiter((S) states[i]);
+                    histogram.merge(outcome, 1L, Long::sum);
+                }
+            }
+        } finally {
+            stopped = true;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        return histogram;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void actorLoop(OutcomeTest.Actor<S> actor) {
+        int seen = 0;
+        while (true) {
+            int spins = 0;
+            int current;
+            while ((current = round) == seen) {
+                if (stopped) {
+                    return;
+                }
+                spins = spinWait(spins);
+            }
+            seen = current;
+            
+            Object[] states = batch;
+            String[] roundFailures = failures;
+            for (int i = 0; i < states.length; i++) {
+                try {
+                    actor.act((S) states[i]);
+                } catch (RuntimeException e) {
+                    // Una excepción de un actor es un resultado más (prohibido salvo que se declare)
+                    roundFailures[i] = "excepción: " + e.getClass().getSimpleName();
+                }
+            }
+            finished.incrementAndGet();
+        }
+    }
+    
+    // Espera activa; cede el procesador si hay menos núcleos que hilos
+    private static int spinWait(int spins) {
+        if (spins < SPINS_BEFORE_YIELD) {
+            Thread.onSpinWait();
+            return spins + 1;
+        }
+        Thread.yield();
+        return spins;
+    }
+}
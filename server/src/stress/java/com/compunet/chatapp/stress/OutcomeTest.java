@@ -0,0 +1,57 @@
+package com.compunet.chatapp.stress;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prueba de concurrencia al estilo jcstress: varios actores operan a la vez sobre un
+ * estado nuevo, el árbitro resume el resultado en un string y cada resultado se clasifica
+ * como aceptable, aceptable pero interesante (una carrera conocida) o prohibido.
+ * Cualquier resultado no declarado se considera prohibido.
+ */
+public abstract class OutcomeTest<S> {
+    
+    public enum Expect {
+        ACCEPTABLE,
+        ACCEPTABLE_INTERESTING,
+        FORBIDDEN
+    }
+    
+    // Operación de un actor sobre el estado compartido
+    public interface Actor<S> {
+        void act(S state);
+    }
+    
+    private final String name;
+    private final Map<String, Expect> expectations = new LinkedHashMap<>();
+    private final Map<String, String> descriptions = new LinkedHashMap<>();
+    
+    protected OutcomeTest(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    protected void outcome(String outcome, Expect expect, String description) {
+        expectations.put(outcome, expect);
+        descriptions.put(outcome, description);
+    }
+    
+    public Expect classify(String outcome) {
+        return expectations.getOrDefault(outcome, Expect.FORBIDDEN);
+    }
+    
+    public String describe(String outcome) {
+        return descriptions.getOrDefault(outcome, "no declarado");
+    }
+    
+    public abstract S newState();
+    
+    public abstract List<Actor<S>> actors();
+    
+    // Se invoca cuando todos los actores terminaron con el estado
+    public abstract String arbiter(S state);
+}
@@ -0,0 +1,133 @@
+package com.compunet.chatapp.stress;
+
+import com.compunet.chatapp.core.CoreOutcomeTests;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Arnés de estrés de concurrencia de ChatCore (./gradlew stressTest).
+ * Ejecuta primero las pruebas al estilo jcstress de las estructuras internas y luego
+ * las pruebas de carga sobre ChatCore, e imprime los resultados observados. Termina con
+ * código 1 si aparece un resultado prohibido o se viola un invariante.
+ *
+ * Argumentos (todos opcionales):
+ *   --rounds N         rondas por prueba de resultados (64 estados por ronda, por defecto 2000)
+ *   --duration-ms N    duración de cada prueba de carga (por defecto 3000)
+ *   --threads N        hilos de las pruebas de carga (por defecto los núcleos, mínimo 4)
+ *   --only TEXTO       solo las pruebas cuyo nombre contiene TEXTO
+ */
+public class StressHarness {
+    
+    public static void main(String[] args) throws Exception {
+        int rounds = 2000;
+        long durationMs = 3000;
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        String only = "";
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rounds": rounds = Integer.parseInt(args[i + 1]); break;
+                case "--duration-ms": durationMs = Long.parseLong(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--only": only = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (threads < 2) {
+            throw new IllegalArgumentException("Se necesitan al menos 2 hilos");
+        }
+        
+        List<OutcomeTest<?>> outcomeTests = new ArrayList<>();
+        outcomeTests.addAll(CoreOutcomeTests.all());
+        outcomeTests.addAll(UtilOutcomeTests.all());
+        
+        // ChatCore registra cada operación en consola: se descarta mientras corren las pruebas
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        
+        int failed = 0;
+        int executed = 0;
+        out.println("=== Pruebas de resultados (" + rounds + " rondas) ===");
+        for (OutcomeTest<?> test : outcomeTests) {
+            if (!test.getName().contains(only)) {
+                continue;
+            }
+            executed++;
+            System.setOut(discard);
+            System.setErr(discard);
+            Map<String, Long> histogram;
+            try {
+                histogram = new OutcomeRunner<>(test).run(rounds);
+            } finally {
+                System.setOut(out);
+                System.setErr(err);
+            }
+            if (!report(out, test, histogram)) {
+                failed++;
+            }
+        }
+        
+        out.println();
+        out.println("=== Pruebas de carga (" + threads + " hilos, " + durationMs + " ms) ===");
+        for (LoadTest test : ChatCoreLoadTests.all()) {
+            if (!test.getName().contains(only)) {
+                continue;
+            }
+            executed++;
+            System.setOut(discard);
+            System.setErr(discard);
+            List<String> violations;
+            long start = System.currentTimeMillis();
+            try {
+                violations = test.run(threads, durationMs);
+            } finally {
+                System.setOut(out);
+                System.setErr(err);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            
+            out.println((violations.isEmpty() ? "[OK]    " : "[FALLA] ") + test.getName() + " (" + elapsed + " ms)");
+            for (String violation : violations) {
+                out.println("          " + violation);
+            }
+            if (!violations.isEmpty()) {
+                failed++;
+            }
+        }
+        
+        out.println();
+        if (executed == 0) {
+            out.println("Ninguna prueba coincide con: " + only);
+            System.exit(1);
+        }
+        out.println(failed == 0
+            ? "✓ " + executed + " pruebas sin violaciones"
+            : "✗ " + failed + " de " + executed + " pruebas con violaciones");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+    
+    // Imprime el histograma; false si se observó algún resultado prohibido
+    private static boolean report(PrintStream out, OutcomeTest<?> test, Map<String, Long> histogram) {
+        boolean forbidden = false;
+        boolean interesting = false;
+        long samples = 0;
+        for (Map.Entry<String, Long> entry : histogram.entrySet()) {
+            OutcomeTest.Expect expect = test.classify(entry.getKey());
+            forbidden |= expect == OutcomeTest.Expect.FORBIDDEN;
+            interesting |= expect == OutcomeTest.Expect.ACCEPTABLE_INTERESTING;
+            samples += entry.getValue();
+        }
+        
+        String status = forbidden ? "[FALLA] " : interesting ? "[INTER] " : "[OK]    ";
+        out.println(status + test.getName() + " (" + samples + " muestras)");
+        for (Map.Entry<String, Long> entry : histogram.entrySet()) {
+            out.println(String.format("          %-16s %10d  %-22s %s", entry.getKey(), entry.getValue(),
+                test.classify(entry.getKey()), test.describe(entry.getKey())));
+        }
+        return !forbidden;
+    }
+}
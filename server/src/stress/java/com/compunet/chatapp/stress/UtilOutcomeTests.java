@@ -0,0 +1,105 @@
+package com.compunet.chatapp.stress;
+
+import com.compunet.chatapp.stress.OutcomeTest.Expect;
+import com.compunet.chatapp.util.MessageIdGenerator;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pruebas al estilo jcstress de las utilidades compartidas.
+ */
+public final class UtilOutcomeTests {
+    
+    private UtilOutcomeTests() {
+    }
+    
+    public static List<OutcomeTest<?>> all() {
+        return Arrays.asList(new IdGeneratorNextNext(), new IdGeneratorObserveNext());
+    }
+    
+    // Dos IDs pedidos a la vez: distintos y del mismo nodo
+    static final class IdGeneratorNextNext extends OutcomeTest<IdGeneratorNextNext.State> {
+        
+        static final class State {
+            final MessageIdGenerator generator = new MessageIdGenerator();
+            long a;
+            long b;
+            
+            State() {
+                generator.setNodeId(5);
+            }
+        }
+        
+        IdGeneratorNextNext() {
+            super("id-next-next");
+            outcome("distintos", Expect.ACCEPTABLE, "cada actor obtuvo su propio ID");
+            outcome("repetidos", Expect.FORBIDDEN, "dos mensajes con el mismo ID");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(s -> s.a = s.generator.next(), s -> s.b = s.generator.next());
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            if (MessageIdGenerator.nodeOf(s.a) != 5 || MessageIdGenerator.nodeOf(s.b) != 5) {
+                return "nodo incorrecto";
+            }
+            return s.a != s.b ? "distintos" : "repetidos";
+        }
+    }
+    
+    // Un ID replicado del futuro observado mientras se genera otro:
+    // el generado después de observe nunca lo repite ni queda por debajo
+    static final class IdGeneratorObserveNext extends OutcomeTest<IdGeneratorObserveNext.State> {
+        
+        static final class State {
+            final MessageIdGenerator generator = new MessageIdGenerator();
+            final long observed;
+            long generated;
+            
+            State() {
+                generator.setNodeId(1);
+                MessageIdGenerator source = new MessageIdGenerator();
+                source.setNodeId(1);
+                // Un ID con el reloj adelantado un minuto: next() no lo alcanzaría por sí solo
+                observed = source.next() + (60_000L << 22);
+            }
+        }
+        
+        IdGeneratorObserveNext() {
+            super("id-observe-next");
+            outcome("antes", Expect.ACCEPTABLE, "next() se ejecutó antes de observe()");
+            outcome("después", Expect.ACCEPTABLE, "next() continuó después del ID observado");
+            outcome("repetido", Expect.FORBIDDEN, "se generó el ID ya observado");
+        }
+        
+        @Override
+        public State newState() {
+            return new State();
+        }
+        
+        @Override
+        public List<Actor<State>> actors() {
+            return Arrays.asList(s -> s.generator.observe(s.observed), s -> s.generated = s.generator.next());
+        }
+        
+        @Override
+        public String arbiter(State s) {
+            if (s.generated == s.observed) {
+                return "repetido";
+            }
+            if (s.generated < s.observed) {
+                // Si next() fue antes, el siguiente ID sí debe superar al observado
+                return s.generator.next() > s.observed ? "antes" : "no avanzó";
+            }
+            return "después";
+        }
+    }
+}
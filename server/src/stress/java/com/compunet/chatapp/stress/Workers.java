@@ -0,0 +1,56 @@
+package com.compunet.chatapp.stress;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Hilos de carga que arrancan a la vez y repiten un paso hasta el plazo.
+ */
+final class Workers {
+    
+    // Un paso del hilo worker en su iteración número iteration
+    interface Step {
+        void run(int worker, long iteration) throws Exception;
+    }
+    
+    private Workers() {
+    }
+    
+    /**
+     * Ejecuta step en threads hilos durante durationMs y retorna las iteraciones
+     * completadas por cada uno. Una excepción detiene al hilo y se agrega a violations.
+     */
+    static long[] hammer(int threads, long durationMs, Step step, List<String> violations)
+            throws InterruptedException {
+        long[] iterations = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        
+        for (int w = 0; w < threads; w++) {
+            final int worker = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    start.await();
+                    long i = 0;
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        step.run(worker, i);
+                        iterations[worker] = ++i;
+                    }
+                } catch (Exception e) {
+                    synchronized (violations) {
+                        violations.add("hilo " + worker + ": " + e);
+                    }
+                }
+            }, "stress-worker-" + w);
+            workers[w].start();
+        }
+        
+        deadline[0] = System.currentTimeMillis() + durationMs;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return iterations;
+    }
+}